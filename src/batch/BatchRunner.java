@@ -0,0 +1,473 @@
+package batch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+
+import motif.CountIndex;
+import motif.DatasetCache;
+import motif.KMer;
+import motif.MedianKMer;
+import motif.SamplingSearch;
+import motif.SequenceStore;
+
+/**
+ * Runs many median k-mer searches (over several datasets and values of k) in
+ * one JVM.
+ *
+ * The jobs are read from a manifest with one job per line, written as the
+ * options of {@link MedianKMer#main(String[])}, e.g.
+ * <pre>
+ * -f data/malT_5.fasta -k 8 -e trie
+ * -f data/chipseq_2400.fasta -k 6 -e exhaustive -t 2
+ * </pre>
+ * Blank lines and lines starting with '#' are skipped.
+ *
+ * The jobs are sorted by their estimated cost, cheapest first, and submitted
+ * to a shared work-stealing pool. All jobs on the same file share one loaded
+ * copy of it (and of its count indexes), which is dropped once its last job
+ * has finished. Every job first takes its estimated working memory from a
+ * global budget, so that large jobs do not run at the same time when they
+ * would not fit together. Each result is written as soon as its job finishes,
+ * as a CSV row or a JSON object per line, together with its timings.
+ */
+public class BatchRunner {
+
+	private static final long MB = 1024 * 1024;
+
+	private final List<Job> jobs; // in manifest order
+	private final DatasetCache cache; // one loaded copy per file
+	private final Map<String, Integer> remaining = new HashMap<String, Integer>();
+	private final Semaphore memory; // the budget in MB
+	private final int budget; // the number of permits of memory
+	private final Writer out; // destination of the results
+	private final boolean json; // JSON lines rather than CSV
+	private int failed; // the number of jobs that did not finish
+
+	/**
+	 * Prepares a batch of jobs
+	 *
+	 * @param jobs
+	 *            the jobs, in manifest order
+	 * @param budget
+	 *            the memory (in MB) that running jobs may use together
+	 * @param out
+	 *            destination of the results
+	 * @param json
+	 *            true for one JSON object per line, false for CSV
+	 */
+	public BatchRunner(List<Job> jobs, int budget, Writer out, boolean json) {
+		this.jobs = jobs;
+		this.budget = budget < 1 ? 1 : budget;
+		this.memory = new Semaphore(this.budget, true);
+		this.out = out;
+		this.json = json;
+		for (Job job : jobs) {
+			Integer left = remaining.get(job.file);
+			remaining.put(job.file, left == null ? 1 : left + 1);
+		}
+		this.cache = new DatasetCache(Math.max(1, remaining.size()));
+	}
+
+	/**
+	 * Runs all jobs and waits for them to finish
+	 *
+	 * @param parallelism
+	 *            the number of jobs that may run at the same time
+	 * @return the number of jobs that failed
+	 * @throws IOException
+	 *             if the results cannot be written
+	 */
+	public int run(int parallelism) throws IOException {
+		List<Job> queue = new ArrayList<Job>(jobs);
+		Collections.sort(queue); // cheapest first
+
+		if (!json)
+			out.write("job,file,k,engine,status,kmer,distance,wait_ms,load_ms,search_ms,nodes\n");
+		out.flush();
+
+		/* FIFO (async) mode, so the workers take the jobs in the order given */
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism),
+				ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		try {
+			List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			long submitted = System.currentTimeMillis();
+			for (final Job job : queue) {
+				job.submitted = submitted;
+				tasks.add(pool.submit(new Runnable() {
+					public void run() {
+						execute(job);
+					}
+				}));
+			}
+			for (ForkJoinTask<?> task : tasks)
+				task.join();
+		} finally {
+			pool.shutdown();
+		}
+		out.flush();
+		return failed;
+	}
+
+	/**
+	 * Runs one job: waits for its share of the memory budget, fetches the
+	 * (shared) dataset, searches and reports
+	 */
+	private void execute(Job job) {
+		int permits = (int) Math.min(budget, job.memory);
+		boolean acquired = false;
+		try {
+			memory.acquire(permits);
+			acquired = true;
+			long t1 = System.currentTimeMillis();
+			job.waitTime = t1 - job.submitted;
+
+			DatasetCache.Dataset dataset = cache.get(job.file);
+			SequenceStore seqs = dataset.getStore();
+			MedianKMer ms = new MedianKMer(seqs);
+			ms.setThreads(job.threads);
+			ms.setQuorum(job.quorum);
+			ms.setOrdering(job.ordering);
+			ms.setNeighborhood(job.mismatches);
+			if (job.engine == MedianKMer.Engine.TRIE && job.seed == null)
+				ms.setIndex(dataset.getIndex(job.k));
+			long t2 = System.currentTimeMillis();
+			job.loadTime = t2 - t1;
+
+			KMer best;
+			if (job.seed != null) {
+				SamplingSearch approx = new SamplingSearch(seqs, job.k, job.seed);
+				approx.setQuorum(job.quorum);
+				approx.search(job.threads);
+				best = approx.getKMer();
+				job.distance = approx.getDistance();
+			} else {
+				MedianKMer.Distance d = ms.findMedianKMer(job.k, job.engine);
+				best = d.getKMer();
+				job.distance = d.getDistance();
+				if (ms.getStats() != null)
+					job.nodes = ms.getStats().getNodes();
+			}
+			job.searchTime = System.currentTimeMillis() - t2;
+			job.kmer = best.toString();
+			job.status = "ok";
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			job.status = "interrupted";
+		} catch (IOException e) {
+			job.status = e.getMessage();
+		} catch (RuntimeException e) {
+			job.status = e.getMessage() == null ? e.toString() : e.getMessage();
+		} catch (OutOfMemoryError e) {
+			job.status = "out of memory";
+		} finally {
+			if (acquired)
+				memory.release(permits);
+			finished(job);
+		}
+		report(job);
+	}
+
+	/**
+	 * Drops the dataset of a file once its last job has finished
+	 */
+	private void finished(Job job) {
+		synchronized (remaining) {
+			int left = remaining.get(job.file) - 1;
+			remaining.put(job.file, left);
+			if (left > 0)
+				return;
+		}
+		try {
+			cache.remove(job.file);
+		} catch (IOException e) {
+			// it was never loaded
+		}
+	}
+
+	/**
+	 * Writes the result of a job as soon as it is known
+	 */
+	private synchronized void report(Job job) {
+		try {
+			if (json)
+				out.write("{\"job\":" + job.line + ",\"file\":" + quote(job.file)
+						+ ",\"k\":" + job.k + ",\"engine\":"
+						+ quote(job.engineName()) + ",\"status\":"
+						+ quote(job.status) + ",\"kmer\":"
+						+ (job.kmer == null ? "null" : quote(job.kmer))
+						+ ",\"distance\":" + job.distance + ",\"wait_ms\":"
+						+ job.waitTime + ",\"load_ms\":" + job.loadTime
+						+ ",\"search_ms\":" + job.searchTime + ",\"nodes\":"
+						+ job.nodes + "}\n");
+			else
+				out.write(job.line + "," + csv(job.file) + "," + job.k + ","
+						+ job.engineName() + "," + csv(job.status) + ","
+						+ (job.kmer == null ? "" : job.kmer) + ","
+						+ job.distance + "," + job.waitTime + ","
+						+ job.loadTime + "," + job.searchTime + "," + job.nodes
+						+ "\n");
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot write results: "
+					+ e.getMessage());
+		}
+		if (!"ok".equals(job.status))
+			failed++;
+	}
+
+	private static String csv(String field) {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0)
+			return field;
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String quote(String field) {
+		return "\"" + field.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * Reads a manifest
+	 *
+	 * @param filename
+	 *            the name of the manifest
+	 * @return the jobs in manifest order
+	 * @throws IOException
+	 *             if the manifest cannot be read
+	 */
+	public static List<Job> readManifest(String filename) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			for (int number = 1; (line = reader.readLine()) != null; number++) {
+				line = line.trim();
+				if (line.length() == 0 || line.charAt(0) == '#')
+					continue;
+				jobs.add(new Job(number, line.split("\\s+")));
+			}
+		} finally {
+			reader.close();
+		}
+		return jobs;
+	}
+
+	/**
+	 * One search of the batch, with its options, estimates, result and
+	 * timings
+	 */
+	public static class Job implements Comparable<Job> {
+
+		final int line; // the line of the manifest
+		final String file; // FASTA file or saved store
+		int k = 10; // the length of the sought k-mer
+		MedianKMer.Engine engine = MedianKMer.Engine.NAIVE;
+		int threads = 1; // threads of the engine (jobs run side by side)
+		int quorum = 0; // sum over the best q sequences, 0 for all
+		Long seed = null; // seed of an approximate search
+		CountIndex.Ordering ordering = CountIndex.Ordering.COUNT;
+		int mismatches = -1; // neighbourhood counts for the trie (-1: exact)
+
+		final double cost; // estimated running time (relative)
+		final long memory; // estimated working memory in MB
+
+		long submitted; // when the job was handed to the pool
+		long waitTime, loadTime, searchTime; // ms
+		String status = "pending";
+		String kmer; // the result, null if there is none
+		int distance = -1;
+		long nodes = -1; // nodes visited, -1 if not counted
+
+		/**
+		 * Constructs a job from its options
+		 *
+		 * @param line
+		 *            the line of the manifest
+		 * @param args
+		 *            the options
+		 */
+		Job(int line, String[] args) {
+			this.line = line;
+			String f = null;
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].length() < 2 || args[i].charAt(0) != '-'
+						|| i + 1 >= args.length)
+					throw new RuntimeException("Line " + line
+							+ ": cannot read \"" + args[i] + "\"");
+				switch (args[i].charAt(1)) {
+				case 'f':
+					f = args[++i];
+					break;
+				case 'k':
+					k = Integer.parseInt(args[++i]);
+					break;
+				case 'e':
+					engine = MedianKMer.Engine.valueOf(args[++i].toUpperCase());
+					break;
+				case 't':
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case 'z':
+					quorum = Integer.parseInt(args[++i]);
+					break;
+				case 'a':
+					seed = Long.parseLong(args[++i]);
+					break;
+				case 'r':
+					ordering = CountIndex.Ordering.valueOf(args[++i]
+							.toUpperCase());
+					break;
+				case 'n':
+					mismatches = Integer.parseInt(args[++i]);
+					break;
+				default:
+					throw new RuntimeException("Line " + line
+							+ ": unsupported option \"" + args[i] + "\"");
+				}
+			}
+			if (f == null)
+				throw new RuntimeException("Line " + line
+						+ ": no file specified (-f)");
+			this.file = f;
+
+			/*
+			 * Estimates from the size of the file (about one byte per base).
+			 * The cost grows with the number of k-mers for the exhaustive
+			 * engine; branch-and-bound typically explores far fewer nodes, so
+			 * the exponent is halved. Memory: the exhaustive engine keeps a
+			 * match array per symbol and a window array per thread, the
+			 * others a window list per depth (plus the trie for TRIE).
+			 */
+			long size = new File(file).length();
+			double kmers = Math.pow(4, engine == MedianKMer.Engine.EXHAUSTIVE ? k
+					: k / 2.0);
+			this.cost = size * kmers / (seed == null ? 1 : 4);
+			long bytes;
+			switch (engine) {
+			case EXHAUSTIVE:
+				bytes = size * (4 + 4L * Math.max(1, threads));
+				break;
+			case TRIE:
+				bytes = size * (5L * (k + 1) + 48L * k);
+				break;
+			default:
+				bytes = size * 5L * (k + 1);
+			}
+			bytes += size; // the sequences themselves
+			this.memory = Math.max(1, bytes / MB);
+		}
+
+		String engineName() {
+			if (seed != null)
+				return "sampling";
+			if (engine == MedianKMer.Engine.TRIE
+					&& ordering != CountIndex.Ordering.COUNT)
+				return "trie-" + ordering.name().toLowerCase();
+			return engine.name().toLowerCase();
+		}
+
+		public int compareTo(Job other) {
+			return cost < other.cost ? -1 : cost > other.cost ? 1 : line
+					- other.line;
+		}
+	}
+
+	/**
+	 * A command line application that runs a manifest.
+	 * -m <manifest>
+	 * -o <output>
+	 * -p <parallel-jobs>
+	 * -b <budget-MB>
+	 * -j
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String manifest = null; // file with one job per line
+		String output = null; // results file (default: standard output)
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		int budget = (int) (Runtime.getRuntime().maxMemory() / MB * 3 / 4);
+		boolean json = false; // JSON lines rather than CSV
+
+		// parse the parameters
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].charAt(0) == '-') // option
+			{
+				switch (args[i].charAt(1)) {
+				case 'm':
+					if (i + 1 < args.length)
+						manifest = args[++i];
+					break;
+				case 'o':
+					if (i + 1 < args.length)
+						output = args[++i];
+					break;
+				case 'p':
+					if (i + 1 < args.length)
+						parallelism = Integer.parseInt(args[++i]);
+					break;
+				case 'b':
+					if (i + 1 < args.length)
+						budget = Integer.parseInt(args[++i]);
+					break;
+				case 'j':
+					json = true;
+					break;
+				default:
+					System.err.println("Unknown option \"-" + args[i].charAt(1)
+							+ "\"");
+				}
+			}
+		}
+
+		if (manifest == null) {
+			System.err
+					.println("Usage: BatchRunner -m <manifest> [-o <output>] [-p <parallel-jobs>] [-b <budget-MB>] [-j]");
+			System.err
+					.println("where each line of <manifest> holds the options of one MedianKMer search (-f, -k, -e, -t, -z, -r, -n, -a)");
+			System.err
+					.println("-o writes the results to <output> (default: standard output)");
+			System.err
+					.println("-p sets the number of jobs run at the same time (default: all processors)");
+			System.err
+					.println("-b sets the memory that running jobs may use together (default: 3/4 of the heap)");
+			System.err.println("-j writes JSON lines instead of CSV");
+			System.exit(1);
+		}
+
+		try {
+			Writer out = new BufferedWriter(output == null ? new OutputStreamWriter(
+					System.out) : new FileWriter(output));
+			try {
+				long started = System.currentTimeMillis();
+				BatchRunner runner = new BatchRunner(readManifest(manifest),
+						budget, out, json);
+				int failed = runner.run(parallelism);
+				System.err.println(runner.jobs.size() + " jobs in "
+						+ (System.currentTimeMillis() - started) + " ms ("
+						+ failed + " failed)");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		} catch (RuntimeException e) { // errors in the manifest
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
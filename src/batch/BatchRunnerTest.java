@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package batch;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import motif.CountIndex;
+import motif.MedianKMer;
+
+import org.junit.Test;
+
+/**
+ */
+public class BatchRunnerTest {
+
+	@Test
+	public void testJob() {
+		BatchRunner.Job job = new BatchRunner.Job(3,
+				"-f data/malT_5.fasta -k 6 -e trie -z 3 -r support -n 1"
+						.split(" "));
+		assertEquals(3, job.line);
+		assertEquals("data/malT_5.fasta", job.file);
+		assertEquals(6, job.k);
+		assertEquals(MedianKMer.Engine.TRIE, job.engine);
+		assertEquals(3, job.quorum);
+		assertEquals(CountIndex.Ordering.SUPPORT, job.ordering);
+		assertEquals(1, job.mismatches);
+		assertEquals("trie-support", job.engineName());
+		assertEquals("sampling", new BatchRunner.Job(1,
+				"-f data/malT_5.fasta -a 7".split(" ")).engineName());
+		// no file, an option without a value, an option that is not supported
+		for (String bad : new String[] { "-k 6", "-f data/malT_5.fasta -k",
+				"-f data/malT_5.fasta -o table.txt" }) {
+			try {
+				new BatchRunner.Job(1, bad.split(" "));
+				fail("Accepted \"" + bad + "\"");
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage().startsWith("Line 1"));
+			}
+		}
+	}
+
+	@Test
+	public void testJobOrder() {
+		List<BatchRunner.Job> jobs = new ArrayList<BatchRunner.Job>();
+		jobs.add(new BatchRunner.Job(1,
+				"-f data/chipseq_2400.fasta -k 8 -e exhaustive".split(" ")));
+		jobs.add(new BatchRunner.Job(2,
+				"-f data/malT_5.fasta -k 8 -e exhaustive".split(" ")));
+		jobs.add(new BatchRunner.Job(3, "-f data/malT_5.fasta -k 8"
+				.split(" ")));
+		jobs.add(new BatchRunner.Job(4, "-f data/malT_5.fasta -k 8"
+				.split(" ")));
+		Collections.sort(jobs);
+		// cheapest first, ties in manifest order
+		assertEquals(3, jobs.get(0).line);
+		assertEquals(4, jobs.get(1).line);
+		assertEquals(2, jobs.get(2).line);
+		assertEquals(1, jobs.get(3).line);
+	}
+
+	@Test
+	public void testRun() {
+		for (boolean json : new boolean[] { false, true }) {
+			List<BatchRunner.Job> jobs = new ArrayList<BatchRunner.Job>();
+			jobs.add(new BatchRunner.Job(1, "-f data/malT_5.fasta -k 5"
+					.split(" ")));
+			jobs.add(new BatchRunner.Job(2, "-f data/malT_5.fasta -k 5 -e trie"
+					.split(" ")));
+			jobs.add(new BatchRunner.Job(3, "-f data/no_such_file.fasta -k 5"
+					.split(" ")));
+			StringWriter out = new StringWriter();
+			try {
+				assertEquals(1, new BatchRunner(jobs, 64, out, json).run(2));
+			} catch (IOException e) {
+				fail("Cannot write results: " + e.getMessage());
+			}
+			String[] rows = out.toString().split("\n");
+			assertEquals(json ? 3 : 4, rows.length); // CSV has a header
+			int ok = 0;
+			for (String row : rows)
+				if (row.contains(json ? "\"status\":\"ok\"" : ",ok,"))
+					ok++;
+			assertEquals(2, ok);
+			if (json)
+				for (String row : rows)
+					assertTrue(row.startsWith("{\"job\":") && row.endsWith("}"));
+			else
+				assertTrue(rows[0].startsWith("job,file,k,engine,status"));
+			// both searches of the same file find the same distance
+			assertEquals(jobs.get(0).distance, jobs.get(1).distance);
+			assertTrue(jobs.get(0).distance >= 0);
+		}
+	}
+}
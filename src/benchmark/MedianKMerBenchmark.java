@@ -1,8 +1,14 @@
 package benchmark;
 
 import motif.Alphabet;
+import motif.CountIndex;
 import motif.DNASequence;
+import motif.EnginePlanner;
 import motif.MedianKMer;
+import motif.SearchStats;
+import motif.SequenceStore;
+import motif.SketchCountIndex;
+import motif.TrieKMer;
 
 import java.io.*;
 import java.util.*;
@@ -11,6 +17,19 @@ public class MedianKMerBenchmark {
 	final static char[] alphabet = { 'A', 'C', 'G', 'T' };
 	
 	public static void main(String[] args) throws IOException {
+		if (args.length > 0 && args[0].equals("-r")) {
+			runOrderings(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-p")) {
+			runCalibration(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-c")) {
+			runSketches(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
 		// warm-up
 		runTest(3,1);
 		runTest(4,2);
@@ -66,6 +85,238 @@ public class MedianKMerBenchmark {
 		return average_time/(double)iterations;
 	}
 	
+	/**
+	 * Compares the ordering policies of the trie engine on FASTA files: for
+	 * every file, k and policy the nodes visited and pruned are written to
+	 * orderings.csv (fewer nodes means the policy found a good incumbent
+	 * earlier)
+	 * @param files
+	 * 			the FASTA files (default: the files in data/)
+	 */
+	public static void runOrderings(String[] files) throws IOException {
+		if (files.length == 0) {
+			File[] found = new File("data").listFiles();
+			Arrays.sort(found);
+			files = new String[found.length];
+			for (int i = 0; i < found.length; i++)
+				files[i] = found[i].getPath();
+		}
+		
+		FileWriter fw = new FileWriter("orderings.csv", false);
+		BufferedWriter bw = new BufferedWriter(fw);
+		bw.write("file,k,ordering,nodes,pruned,ms");
+		bw.newLine();
+		
+		for (String file : files) {
+			SequenceStore store = SequenceStore.open(new Alphabet(), file);
+			MedianKMer m = new MedianKMer(store);
+			for (int k = 6; k <= 9; k++) {
+				long slowest = 0;
+				for (CountIndex.Ordering ordering : CountIndex.Ordering.values()) {
+					m.setOrdering(ordering);
+					long start = System.currentTimeMillis();
+					m.findMedianKMer(k, MedianKMer.Engine.TRIE);
+					long time = System.currentTimeMillis() - start;
+					SearchStats stats = m.getStats();
+					String line = file + "," + k + "," + ordering + ","
+							+ stats.getNodes() + "," + stats.getPruned() + ","
+							+ time;
+					System.out.println(line);
+					bw.write(line);
+					bw.newLine();
+					bw.flush();
+					slowest = Math.max(slowest, time);
+				}
+				
+				/* Don't care to do more if more than 30 seconds */
+				if (slowest > 30000) break;
+			}
+		}
+		bw.close();
+	}
+	
+	/**
+	 * Times every strategy of the planner on FASTA files, from k=4 until a
+	 * search takes more than 10 seconds, and writes the runs to
+	 * calibration.csv (see {@link EnginePlanner#HEADER}) for
+	 * {@link EnginePlanner#calibrate(String)}. Each run starts from a fresh
+	 * searcher, so building indexes is part of the time. The fitted
+	 * coefficients are printed at the end.
+	 * @param files
+	 * 			the FASTA files (default: the files in data/)
+	 */
+	public static void runCalibration(String[] files) throws IOException {
+		if (files.length == 0) {
+			File[] found = new File("data").listFiles();
+			Arrays.sort(found);
+			files = new String[found.length];
+			for (int i = 0; i < found.length; i++)
+				files[i] = found[i].getPath();
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		
+		FileWriter fw = new FileWriter("calibration.csv", false);
+		BufferedWriter bw = new BufferedWriter(fw);
+		bw.write(EnginePlanner.HEADER);
+		bw.newLine();
+		
+		for (String file : files) {
+			SequenceStore store = SequenceStore.open(new Alphabet(), file);
+			EnginePlanner planner = new EnginePlanner(store);
+			for (EnginePlanner.Choice choice : EnginePlanner.Choice.values()) {
+				for (int k = 4; k <= 16; k++) {
+					if (Double.isInfinite(planner.predict(choice, k, threads)))
+						break;
+					MedianKMer m = new MedianKMer(store);
+					m.setNeighborhood(choice.getMismatches());
+					long start = System.currentTimeMillis();
+					m.findMedianKMer(k, choice.getEngine());
+					long time = System.currentTimeMillis() - start;
+					double[] profile = planner.profile(k);
+					String line = choice.name().toLowerCase() + ","
+							+ store.getCount() + "," + (long) profile[0] + ","
+							+ k + "," + String.format("%.4f,%.4f", profile[1],
+									profile[2]) + "," + threads + "," + time;
+					System.out.println(file + "," + line);
+					bw.write(line);
+					bw.newLine();
+					bw.flush();
+					
+					/* Don't care to do more if more than 10 seconds */
+					if (time > 10000) break;
+				}
+			}
+		}
+		bw.close();
+		
+		EnginePlanner fitted = new EnginePlanner(SequenceStore.open(
+				new Alphabet(), files[0]));
+		fitted.calibrate("calibration.csv");
+		for (EnginePlanner.Choice choice : EnginePlanner.Choice.values())
+			System.out.println(choice + " " + Arrays.toString(fitted
+					.getCoefficients(choice)));
+	}
+	
+	/**
+	 * Compares count-min sketches of several sizes with the exact trie as the
+	 * ordering source of the trie engine: for every file, k, size and update
+	 * rule, sketches.csv gets the nodes visited, how often the sketch picks the
+	 * same first extension as the trie (over sampled windows), and the mean
+	 * relative error of the counts of sampled k-mers
+	 * @param files
+	 * 			the FASTA files (default: the files in data/)
+	 */
+	public static void runSketches(String[] files) throws IOException {
+		if (files.length == 0) {
+			File[] found = new File("data").listFiles();
+			Arrays.sort(found);
+			files = new String[found.length];
+			for (int i = 0; i < found.length; i++)
+				files[i] = found[i].getPath();
+		}
+		long[] sizes = { 16 << 10, 256 << 10, 4 << 20 };
+		
+		FileWriter fw = new FileWriter("sketches.csv", false);
+		BufferedWriter bw = new BufferedWriter(fw);
+		bw.write("file,k,index,bytes,nodes,top1_agreement,mean_rel_error,ms");
+		bw.newLine();
+		
+		for (String file : files) {
+			SequenceStore store = SequenceStore.open(new Alphabet(), file);
+			MedianKMer m = new MedianKMer(store);
+			for (int k = 6; k <= 9; k++) {
+				TrieKMer trie = new TrieKMer(store, k);
+				long slowest = 0;
+				for (int v = -1; v < 2 * sizes.length; v++) {
+					CountIndex index = trie;
+					String name = "trie";
+					long bytes = 0;
+					if (v >= 0) {
+						SketchCountIndex sketch = new SketchCountIndex(store, k,
+								sizes[v / 2], v % 2 == 1);
+						index = sketch;
+						name = sketch.isConservative() ? "conservative" : "sketch";
+						bytes = sketch.getBytes();
+					}
+					double[] quality = compare(store, k, trie, index);
+					m.setIndex(index);
+					long start = System.currentTimeMillis();
+					m.findMedianKMer(k, MedianKMer.Engine.TRIE);
+					long time = System.currentTimeMillis() - start;
+					String line = file + "," + k + "," + name + "," + bytes
+							+ "," + m.getStats().getNodes() + ","
+							+ String.format("%.4f,%.4f", quality[0], quality[1])
+							+ "," + time;
+					System.out.println(line);
+					bw.write(line);
+					bw.newLine();
+					bw.flush();
+					slowest = Math.max(slowest, time);
+				}
+				
+				/* Don't care to do more if more than 30 seconds */
+				if (slowest > 30000) break;
+			}
+		}
+		bw.close();
+	}
+	
+	/**
+	 * Samples up to 20000 windows and compares an index with the exact one:
+	 * the fraction of their proper prefixes whose highest-count extension is
+	 * the same, and the mean relative error of the count of the whole window
+	 */
+	private static double[] compare(SequenceStore store, int k,
+			CountIndex exact, CountIndex approx) {
+		long windows = store.getTotalLength();
+		long stride = Math.max(1, windows / 20000);
+		int radix = store.getAlphabet().getSize();
+		long agree = 0, prefixes = 0, sampled = 0;
+		double error = 0;
+		int[] path = new int[k];
+		long next = 0, seen = 0;
+		for (int s = 0; s < store.getCount(); s++) {
+			long start = store.getStart(s);
+			for (int i = 0; i + k <= store.getLength(s); i++, seen++) {
+				if (seen < next)
+					continue;
+				next += stride;
+				for (int p = 0; p < k; p++)
+					path[p] = store.symbolAt(start + i + p);
+				for (int level = 0; level < k; level++) {
+					int keep = path[level];
+					if (top(exact, path, level, radix) == top(approx, path,
+							level, radix))
+						agree++;
+					prefixes++;
+					path[level] = keep;
+				}
+				int count = exact.getCount(path, k);
+				error += (approx.getCount(path, k) - count) / (double) count;
+				sampled++;
+			}
+		}
+		return new double[] { agree / (double) Math.max(1, prefixes),
+				error / Math.max(1, sampled) };
+	}
+	
+	/**
+	 * The extension of path[0..level) with the highest count (first in
+	 * alphabet order on ties), as the trie engine would visit it
+	 */
+	private static int top(CountIndex index, int[] path, int level, int radix) {
+		int best = 0, bestCount = -1;
+		for (int c = 0; c < radix; c++) {
+			path[level] = c;
+			int count = index.getCount(path, level + 1);
+			if (count > bestCount) {
+				bestCount = count;
+				best = c;
+			}
+		}
+		return best;
+	}
+	
 	static Random generator = new Random(System.currentTimeMillis());
 	
 	private static char[] randomSeq() {
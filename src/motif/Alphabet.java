@@ -3,6 +3,12 @@ package motif;
 /**
  * A class for representing valid symbols (to be used for constructing
  * sequences, k-mers etc)
+ *
+ * An alphabet may also have degenerate codes, such as the IUPAC codes of DNA
+ * (R for A or G, N for any base), which can occur in sequences and queries
+ * but are never chosen as a symbol of a sought k-mer. Their indices follow
+ * those of the symbols, and each stands for a set of symbols: two codes
+ * match if their sets share a symbol.
  */
 public class Alphabet {
 
@@ -12,6 +18,22 @@ public class Alphabet {
 	// sequence, note index
 	// of array is used
 
+	private char[] CODES = SYMBOLS; // the symbols, then any degenerate codes
+	private int[] SETS; // per degenerate code, its symbols (bit per symbol)
+
+	/* The IUPAC codes for several bases and their sets over A, C, G and T */
+	private static final char[] IUPAC = { 'R', 'Y', 'S', 'W', 'K', 'M', 'B',
+			'D', 'H', 'V', 'N' };
+	private static final int[] IUPAC_SETS = { 5, 10, 6, 9, 12, 3, 14, 13, 11,
+			7, 15 };
+
+	/* The amino acids, and the codes for several of them with their sets */
+	private static final char[] AMINO = { 'A', 'C', 'D', 'E', 'F', 'G', 'H',
+			'I', 'K', 'L', 'M', 'N', 'P', 'Q', 'R', 'S', 'T', 'V', 'W', 'Y' };
+	private static final char[] AMINO_CODES = { 'B', 'Z', 'J', 'X' };
+	private static final int[] AMINO_SETS = { 1 << 2 | 1 << 11,
+			1 << 3 | 1 << 13, 1 << 7 | 1 << 9, (1 << 20) - 1 };
+
 	/**
 	 * Constructs the default DNA alphabet consisting of symbols A, C, G and T
 	 */
@@ -27,6 +49,99 @@ public class Alphabet {
 	 */
 	public Alphabet(char[] symbols) {
 		this.SYMBOLS = symbols;
+		this.CODES = symbols;
+	}
+
+	/**
+	 * Constructs an alphabet with degenerate codes
+	 * 
+	 * @param symbols
+	 *            the symbols
+	 * @param degenerate
+	 *            the degenerate codes, which follow the symbols
+	 * @param sets
+	 *            per degenerate code, the symbols it stands for (bit i for
+	 *            symbol i)
+	 */
+	Alphabet(char[] symbols, char[] degenerate, int[] sets) {
+		if (degenerate.length != sets.length || symbols.length > 31)
+			throw new AlphabetRuntimeException("Invalid degenerate codes");
+		this.SYMBOLS = symbols;
+		this.CODES = new char[symbols.length + degenerate.length];
+		System.arraycopy(symbols, 0, CODES, 0, symbols.length);
+		System.arraycopy(degenerate, 0, CODES, symbols.length,
+				degenerate.length);
+		this.SETS = sets.clone();
+	}
+
+	/**
+	 * Constructs the DNA alphabet with the IUPAC codes, so that sequences
+	 * with ambiguous bases are read rather than dropped
+	 * 
+	 * @param skipN
+	 *            true if N stands for any base, so it never counts as a
+	 *            mismatch (it is skipped); false if it stands for none, so it
+	 *            always does
+	 * @return the alphabet A, C, G, T followed by R, Y, S, W, K, M, B, D, H,
+	 *         V and N
+	 */
+	public static Alphabet iupac(boolean skipN) {
+		int[] sets = IUPAC_SETS.clone();
+		if (!skipN)
+			sets[sets.length - 1] = 0;
+		return new Alphabet(new char[] { 'A', 'C', 'G', 'T' }, IUPAC, sets);
+	}
+
+	/**
+	 * Constructs the alphabet of the 20 amino acids, for protein motifs.
+	 * Their indices take 5 bits in a store or a k-mer code.
+	 * 
+	 * @return the alphabet A, C, D, E, F, G, H, I, K, L, M, N, P, Q, R, S, T,
+	 *         V, W and Y
+	 */
+	public static Alphabet protein() {
+		return new Alphabet(AMINO.clone());
+	}
+
+	/**
+	 * Constructs the amino acid alphabet with the ambiguity codes B (D or N),
+	 * Z (E or Q), J (I or L) and X, so that sequences with them are read
+	 * rather than dropped
+	 * 
+	 * @param skipX
+	 *            true if X stands for any amino acid (it is skipped); false
+	 *            if it stands for none, so it always counts as a mismatch
+	 * @return the alphabet of {@link #protein()} followed by B, Z, J and X
+	 */
+	public static Alphabet protein(boolean skipX) {
+		int[] sets = AMINO_SETS.clone();
+		if (!skipX)
+			sets[sets.length - 1] = 0;
+		return new Alphabet(AMINO.clone(), AMINO_CODES, sets);
+	}
+
+	/**
+	 * Constructs an alphabet from the options of the command line (-l and -y
+	 * of {@link MedianKMer#main(String[])})
+	 * 
+	 * @param letters
+	 *            dna or protein, null for dna
+	 * @param unknown
+	 *            null for no degenerate codes; otherwise the codes are read,
+	 *            and N (or X) is skipped if this is skip and counts as a
+	 *            mismatch if not
+	 * @return the alphabet
+	 * @throws RuntimeException
+	 *             if the letters are not known
+	 */
+	public static Alphabet forName(String letters, String unknown) {
+		boolean skip = "skip".equalsIgnoreCase(unknown);
+		if (letters == null || letters.equalsIgnoreCase("dna"))
+			return unknown == null ? new Alphabet() : iupac(skip);
+		if (letters.equalsIgnoreCase("protein"))
+			return unknown == null ? protein() : protein(skip);
+		throw new AlphabetRuntimeException("Unknown alphabet \"" + letters
+				+ "\"");
 	}
 
 	/**
@@ -37,10 +152,12 @@ public class Alphabet {
 	 * @return true if the alphabets are identical, false otherwise
 	 */
 	public boolean equals(Alphabet other) {
-		if (SYMBOLS.length != other.getSize())
+		if (SYMBOLS.length != other.getSize()
+				|| CODES.length != other.getCodes().length)
 			return false;
-		for (int i = 0; i < SYMBOLS.length; i++)
-			if (SYMBOLS[i] != other.getSymbol(i))
+		for (int i = 0; i < CODES.length; i++)
+			if (CODES[i] != other.getSymbol(i)
+					|| getSet(i) != other.getSet(i))
 				return false;
 		return true;
 	}
@@ -62,8 +179,8 @@ public class Alphabet {
 	 * @return the printable character
 	 */
 	public char getSymbol(int index) {
-		if (index >= 0 && index < SYMBOLS.length)
-			return SYMBOLS[index];
+		if (index >= 0 && index < CODES.length)
+			return CODES[index];
 		else
 			return '-';
 	}
@@ -77,6 +194,50 @@ public class Alphabet {
 		return SYMBOLS.length;
 	}
 
+	/**
+	 * Retrieves all characters that may occur in a sequence: the symbols,
+	 * then the degenerate codes
+	 * 
+	 * @return the characters, whose indices are the codes
+	 */
+	public char[] getCodes() {
+		return CODES;
+	}
+
+	/**
+	 * @return true if the alphabet has degenerate codes
+	 */
+	public boolean isDegenerate() {
+		return CODES.length > SYMBOLS.length;
+	}
+
+	/**
+	 * Retrieves the symbols that a code stands for
+	 * 
+	 * @param code
+	 *            a symbol or degenerate code
+	 * @return bit i set for symbol i (one bit for a symbol)
+	 */
+	public int getSet(int code) {
+		return code < SYMBOLS.length ? 1 << code : SETS[code - SYMBOLS.length];
+	}
+
+	/**
+	 * Checks if two codes can stand for the same symbol
+	 * 
+	 * @param a
+	 *            a symbol or degenerate code
+	 * @param b
+	 *            another
+	 * @return true if they are the same symbol, or if either is degenerate
+	 *         and their sets share a symbol
+	 */
+	public boolean matches(int a, int b) {
+		if (a < SYMBOLS.length && b < SYMBOLS.length)
+			return a == b;
+		return (getSet(a) & getSet(b)) != 0;
+	}
+
 	/**
 	 * Utility method for translating a sequence represented by characters, to a
 	 * sequence represented by indices
@@ -93,8 +254,8 @@ public class Alphabet {
 		for (int i = 0; i < seq.length; i++) {
 			// assume that the char is NOT valid
 			int index = -1;
-			for (int j = 0; j < SYMBOLS.length; j++) {
-				if (seq[i] == SYMBOLS[j]) {
+			for (int j = 0; j < CODES.length; j++) {
+				if (seq[i] == CODES[j]) {
 					index = j;
 					break;
 				}
@@ -120,13 +281,13 @@ public class Alphabet {
 	public char[] toChar(int[] seq) {
 		char[] arr = new char[seq.length];
 		for (int i = 0; i < seq.length; i++) {
-			if (seq[i] >= SYMBOLS.length)
+			if (seq[i] >= CODES.length)
 				throw new DNASequenceRuntimeException("Invalid index \""
 						+ seq[i] + "\" at position " + i);
 			if (seq[i] < 0)
 				arr[i] = '-';
 			else
-				arr[i] = SYMBOLS[seq[i]];
+				arr[i] = CODES[seq[i]];
 		}
 		return arr;
 	}
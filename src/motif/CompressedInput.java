@@ -0,0 +1,294 @@
+package motif;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a file that may be compressed with gzip, inflating it ahead of the
+ * reader so that decompression overlaps with parsing.
+ *
+ * A BGZF file (the blocked gzip of samtools and tabix) is a series of gzip
+ * members of at most 64 KB each, whose headers give their compressed size.
+ * The blocks are read one after the other and inflated by a pool of threads;
+ * a number of blocks per thread are kept in flight, and the reader takes
+ * them in file order. Any other gzip file is inflated in chunks by one
+ * background thread, which still runs ahead of the reader. Files that do not
+ * start like gzip are read as they are.
+ */
+public class CompressedInput extends InputStream {
+
+	private static final int AHEAD = 4; // chunks in flight per thread
+	private static final int CHUNK = 1 << 16; // bytes per chunk of plain gzip
+
+	/* Daemon threads, so that a stream nobody closes cannot keep the JVM up */
+	private static final ThreadFactory DAEMON = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	private final InputStream raw; // the file
+	private final InputStream gzip; // a plain gzip stream, null for BGZF
+	private final ExecutorService pool; // the inflating threads
+	private final int ahead; // the number of chunks kept in flight
+	private final ArrayDeque<Future<byte[]>> pending; // in file order
+	private boolean exhausted; // all chunks have been submitted
+	private byte[] current = new byte[0]; // the chunk being read
+	private int pos; // the next byte of the chunk
+	private long compressed; // bytes of BGZF blocks read from the file
+
+	/**
+	 * Opens a file, inflating it if it is compressed
+	 *
+	 * @param filename
+	 *            the name of the file
+	 * @param threads
+	 *            the number of threads that inflate BGZF blocks
+	 * @return a stream of the (inflated) contents
+	 * @throws IOException
+	 *             if the file operation fails
+	 */
+	public static InputStream open(String filename, int threads)
+			throws IOException {
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(
+				filename), CHUNK);
+		byte[] head = new byte[16];
+		in.mark(head.length);
+		int n = 0;
+		for (int r; n < head.length
+				&& (r = in.read(head, n, head.length - n)) > 0;)
+			n += r;
+		in.reset();
+		if (n < 2 || (head[0] & 0xFF) != 0x1F || (head[1] & 0xFF) != 0x8B)
+			return in;
+		return new CompressedInput(in, n == head.length && isBgzf(head),
+				threads);
+	}
+
+	/**
+	 * Checks if a gzip header has the BGZF extra field first
+	 */
+	private static boolean isBgzf(byte[] head) {
+		return (head[3] & 4) != 0 && head[12] == 'B' && head[13] == 'C'
+				&& head[14] == 2 && head[15] == 0;
+	}
+
+	private CompressedInput(InputStream raw, boolean bgzf, int threads)
+			throws IOException {
+		this.raw = raw;
+		this.pending = new ArrayDeque<Future<byte[]>>();
+		if (bgzf) {
+			threads = Math.max(1, threads);
+			this.gzip = null;
+			this.pool = Executors.newFixedThreadPool(threads, DAEMON);
+			this.ahead = AHEAD * threads;
+		} else {
+			this.gzip = new GZIPInputStream(raw, CHUNK);
+			this.pool = Executors.newSingleThreadExecutor(DAEMON);
+			this.ahead = AHEAD;
+		}
+	}
+
+	/**
+	 * @return the number of compressed bytes read so far (BGZF only)
+	 */
+	public long getCompressed() {
+		return compressed;
+	}
+
+	public int read() throws IOException {
+		if (pos == current.length && !advance())
+			return -1;
+		return current[pos++] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (pos == current.length && !advance())
+			return -1;
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	/**
+	 * Moves on to the next chunk that is not empty
+	 *
+	 * @return false at the end of the file
+	 */
+	private boolean advance() throws IOException {
+		while (true) {
+			while (!exhausted && pending.size() < ahead)
+				submit();
+			if (pending.isEmpty())
+				return false;
+			current = get(pending.poll());
+			pos = 0;
+			if (current.length > 0)
+				return true;
+			if (gzip != null) { // an empty chunk ends a plain gzip file
+				exhausted = true;
+				pending.clear();
+			}
+		}
+	}
+
+	/**
+	 * Puts the next chunk in flight, or notes that there is none
+	 */
+	private void submit() throws IOException {
+		if (gzip != null) {
+			/* The single thread runs the reads in order */
+			pending.add(pool.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					byte[] chunk = new byte[CHUNK];
+					int n = 0;
+					for (int r; n < CHUNK
+							&& (r = gzip.read(chunk, n, CHUNK - n)) > 0;)
+						n += r;
+					return n == CHUNK ? chunk : Arrays.copyOf(chunk, n);
+				}
+			}));
+			return;
+		}
+		byte[] block = readBlock();
+		if (block == null)
+			exhausted = true;
+		else
+			pending.add(pool.submit(new Block(block)));
+	}
+
+	/**
+	 * Reads the next BGZF block from the file
+	 *
+	 * @return the whole block, or null at the end of the file
+	 */
+	private byte[] readBlock() throws IOException {
+		byte[] head = new byte[12];
+		int n = readFully(head, 0, head.length);
+		if (n == 0)
+			return null;
+		if (n < head.length || (head[0] & 0xFF) != 0x1F
+				|| (head[1] & 0xFF) != 0x8B || (head[3] & 4) == 0)
+			throw new IOException("Invalid BGZF block at byte " + compressed);
+		int xlen = (head[10] & 0xFF) | (head[11] & 0xFF) << 8;
+		byte[] extra = new byte[xlen];
+		if (readFully(extra, 0, xlen) < xlen)
+			throw new IOException("Truncated BGZF block at byte " + compressed);
+		int size = -1;
+		for (int i = 0; i + 4 <= xlen;) {
+			int slen = (extra[i + 2] & 0xFF) | (extra[i + 3] & 0xFF) << 8;
+			if (i + 4 + slen > xlen)
+				throw new IOException("Invalid BGZF block at byte "
+						+ compressed);
+			if (extra[i] == 'B' && extra[i + 1] == 'C' && slen == 2)
+				size = ((extra[i + 4] & 0xFF) | (extra[i + 5] & 0xFF) << 8) + 1;
+			i += 4 + slen;
+		}
+		if (size < head.length + xlen + 8)
+			throw new IOException("Invalid BGZF block at byte " + compressed);
+		byte[] block = new byte[size];
+		System.arraycopy(head, 0, block, 0, head.length);
+		System.arraycopy(extra, 0, block, head.length, xlen);
+		int offset = head.length + xlen;
+		if (readFully(block, offset, size - offset) < size - offset)
+			throw new IOException("Truncated BGZF block at byte " + compressed);
+		compressed += size;
+		return block;
+	}
+
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int n = 0;
+		for (int r; n < len && (r = raw.read(b, off + n, len - n)) > 0;)
+			n += r;
+		return n;
+	}
+
+	private static byte[] get(Future<byte[]> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Reading was interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	public void close() throws IOException {
+		pool.shutdownNow();
+		raw.close();
+	}
+
+	/**
+	 * The inflation of one BGZF block, checked against its CRC-32 and size
+	 */
+	private static class Block implements Callable<byte[]> {
+
+		private final byte[] block; // the whole block
+
+		Block(byte[] block) {
+			this.block = block;
+		}
+
+		public byte[] call() throws IOException {
+			int end = block.length - 8;
+			if (end < 12)
+				throw new IOException("Damaged BGZF block");
+			int xlen = (block[10] & 0xFF) | (block[11] & 0xFF) << 8;
+			int isize = readInt(end + 4);
+			/* A block holds at most 64 KiB, whatever its trailer claims */
+			if (12 + xlen > end || isize < 0 || isize > 65536)
+				throw new IOException("Damaged BGZF block");
+			long crc = readInt(end) & 0xFFFFFFFFL;
+			byte[] out = new byte[isize];
+			Inflater inflater = new Inflater(true); // raw deflate data
+			try {
+				inflater.setInput(block, 12 + xlen, end - 12 - xlen);
+				int n = 0;
+				while (n < out.length && !inflater.finished()) {
+					int r = inflater.inflate(out, n, out.length - n);
+					if (r == 0 && inflater.needsInput())
+						break; // ends before its size
+					n += r;
+				}
+				if (n != out.length)
+					throw new IOException("Damaged BGZF block");
+			} catch (DataFormatException e) {
+				throw new IOException("Damaged BGZF block: " + e.getMessage());
+			} finally {
+				inflater.end();
+			}
+			CRC32 check = new CRC32();
+			check.update(out);
+			if (check.getValue() != crc)
+				throw new IOException("BGZF block fails its CRC check");
+			return out;
+		}
+
+		private int readInt(int i) {
+			return (block[i] & 0xFF) | (block[i + 1] & 0xFF) << 8
+					| (block[i + 2] & 0xFF) << 16 | (block[i + 3] & 0xFF) << 24;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package motif;
+
+/**
+ * Prefix statistics of the windows of a sequence set, used to decide in which
+ * order a search visits the extensions of a prefix.
+ */
+public interface CountIndex {
+
+	/**
+	 * The policies for ranking the extensions of a prefix (highest first,
+	 * ties in alphabet order)
+	 */
+	public enum Ordering {
+		COUNT, // by the number of windows that start with the extension
+		SUPPORT, // by the number of sequences that contain the extension
+		COMBINED; // by support, ties broken by count
+
+		/**
+		 * Scores a prefix under this policy
+		 *
+		 * @param index
+		 *            the statistics
+		 * @param path
+		 *            the symbol indices of the prefix
+		 * @param level
+		 *            the number of symbols of the prefix
+		 * @return the score, higher is visited earlier
+		 */
+		public long score(CountIndex index, int[] path, int level) {
+			switch (this) {
+			case SUPPORT:
+				return index.getSupport(path, level);
+			case COMBINED:
+				return ((long) index.getSupport(path, level) << 32)
+						| index.getCount(path, level);
+			default:
+				return index.getCount(path, level);
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the number of windows that start with a prefix.
+	 *
+	 * @param path
+	 *            the symbol indices of the prefix
+	 * @param level
+	 *            the number of symbols of the prefix
+	 * @return the number of occurrences, 0 if the prefix does not occur
+	 */
+	public int getCount(int[] path, int level);
+
+	/**
+	 * Retrieves the number of distinct sequences that have a window starting
+	 * with a prefix.
+	 *
+	 * @param path
+	 *            the symbol indices of the prefix
+	 * @param level
+	 *            the number of symbols of the prefix
+	 * @return the number of sequences, 0 if the prefix does not occur
+	 */
+	public int getSupport(int[] path, int level);
+
+	/**
+	 * @return the length of the windows that were counted
+	 */
+	public int getDepth();
+}
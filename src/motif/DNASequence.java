@@ -1,9 +1,8 @@
 package motif;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -88,7 +87,7 @@ public class DNASequence {
 	 */
 	public char getSymbolChar(int position) {
 		int symindex = getSymbolIndex(position);
-		if (symindex >= 0 && symindex < alpha.getSize())
+		if (symindex >= 0 && symindex < alpha.getCodes().length)
 			return alpha.getSymbol(symindex);
 		else
 			throw new DNASequenceRuntimeException("Invalid symbol index \""
@@ -108,6 +107,15 @@ public class DNASequence {
 					"Invalid symbol sequence in \"" + name + "\"");
 	}
 
+	/**
+	 * Retrieves the name of the sequence
+	 * 
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
 	/**
 	 * Retrieves the alphabet that is used for this sequence
 	 * 
@@ -125,7 +133,8 @@ public class DNASequence {
 	}
 
 	/**
-	 * Reads DNA sequences from a file on the FASTA standard format
+	 * Reads DNA sequences from a file on the FASTA standard format, which may
+	 * be compressed with gzip or BGZF
 	 * 
 	 * @param filename
 	 *            the name of the file
@@ -136,57 +145,63 @@ public class DNASequence {
 	public static DNASequence[] readFile(Alphabet alpha, String filename)
 			throws IOException {
 		List<DNASequence> seqs = new ArrayList<DNASequence>();
-		BufferedReader br = new BufferedReader(new FileReader(
-				new File(filename)));
-		// buffer variables to hold recently read data
-		String name = null;
-		StringBuffer buf = null;
-
-		int row = 0;
-		String line = br.readLine();
-		while (line != null) {
-			row++;
-			line = line.trim(); // remove any spaces, tabs etc at the ends
-			if (line.startsWith(">")) {
-				if (buf != null) // there is data in the buffer, we need to
-				// store it before processing the new entry
-				{
+		BufferedReader br = new BufferedReader(new InputStreamReader(
+				CompressedInput.open(filename, Runtime.getRuntime()
+						.availableProcessors())));
+		try {
+			// buffer variables to hold recently read data
+			String name = null;
+			StringBuffer buf = null;
+
+			int row = 0;
+			String line = br.readLine();
+			while (line != null) {
+				row++;
+				line = line.trim(); // remove any spaces, tabs etc at the ends
+				if (line.startsWith(">")) {
+					if (buf != null) // there is data in the buffer, we need to
+					// store it before processing the new entry
+					{
+						try {
+							seqs.add(new DNASequence(alpha, name, buf.toString()
+									.toCharArray()));
+						} catch (DNASequenceRuntimeException e) {
+							System.err.println("Ignored " + name + ": "
+									+ e.getMessage());
+						}
+						buf = null;
+						name = null;
+					}
 					try {
-						seqs.add(new DNASequence(alpha, name, buf.toString()
-								.toCharArray()));
-					} catch (DNASequenceRuntimeException e) {
-						System.err.println("Ignored " + name + ": "
-								+ e.getMessage());
+						StringTokenizer stok = new StringTokenizer(line, " \t");
+						name = stok.nextToken().substring(1);
+					} catch (NoSuchElementException e) {
+						throw new RuntimeException("Invalid format in file "
+								+ filename + " at row " + row);
+					}
+					buf = new StringBuffer();
+				} else {
+					if (buf != null) {
+						buf.append(line);
 					}
-					buf = null;
-					name = null;
 				}
+				line = br.readLine();
+			}
+			if (buf != null) // there is data in the buffer, we need to store
+							 // it before processing the new entry
+			{
 				try {
-					StringTokenizer stok = new StringTokenizer(line, " \t");
-					name = stok.nextToken().substring(1);
-				} catch (NoSuchElementException e) {
-					throw new RuntimeException("Invalid format in file "
-							+ filename + " at row " + row);
-				}
-				buf = new StringBuffer();
-			} else {
-				if (buf != null) {
-					buf.append(line);
+					seqs.add(new DNASequence(alpha, name, buf.toString()
+							.toCharArray()));
+				} catch (DNASequenceRuntimeException e) {
+					System.err.println("Ignored " + name + ": "
+							+ e.getMessage());
 				}
+				buf = null;
+				name = null;
 			}
-			line = br.readLine();
-		}
-		if (buf != null) // there is data in the buffer, we need to store it
-						 // before processing the new entry
-		{
-			try {
-				seqs.add(new DNASequence(alpha, name, buf.toString()
-						.toCharArray()));
-			} catch (DNASequenceRuntimeException e) {
-				System.err.println("Ignored " + name + ": " + e.getMessage());
-			}
-			buf = null;
-			name = null;
+		} finally {
+			br.close();
 		}
 		DNASequence[] all = new DNASequence[seqs.size()];
 		seqs.toArray(all);
@@ -0,0 +1,226 @@
+package motif;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of loaded sequence sets and their count indexes, so that a
+ * long-running process does not parse the same file for every search.
+ *
+ * Entries are keyed by the canonical path of the file and the alphabet it is
+ * read with (a FASTA file with IUPAC codes is another dataset under the
+ * plain alphabet), and hold its modification time and size: a file that has
+ * changed on disk is loaded again. When the cache is full the least recently used entry is dropped.
+ * Loading happens outside the cache lock, so requests for other datasets are
+ * not held up by a slow load, while concurrent requests for the same dataset
+ * share a single load.
+ */
+public class DatasetCache {
+
+	private final int capacity; // the largest number of datasets kept
+	private final LinkedHashMap<String, Dataset> entries; // in access order
+	private long hits; // lookups that found a current entry
+	private long misses; // lookups that had to (re)load the file
+	private long evictions; // entries dropped to make room
+
+	/**
+	 * Constructs an empty cache
+	 *
+	 * @param capacity
+	 *            the largest number of datasets kept at a time
+	 */
+	public DatasetCache(int capacity) {
+		if (capacity < 1)
+			throw new RuntimeException("Invalid cache capacity " + capacity);
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<String, Dataset>(16, 0.75f, true);
+	}
+
+	/**
+	 * Retrieves the dataset of a file read with the DNA alphabet
+	 *
+	 * @param filename
+	 *            the name of the file
+	 * @return the dataset
+	 * @throws IOException
+	 *             if the file does not exist or cannot be read
+	 * @see #get(String, Alphabet)
+	 */
+	public Dataset get(String filename) throws IOException {
+		return get(filename, new Alphabet());
+	}
+
+	/**
+	 * Retrieves the dataset of a file, loading it (FASTA or saved store) if it
+	 * is not cached or has changed since it was loaded.
+	 *
+	 * @param filename
+	 *            the name of the file
+	 * @param alpha
+	 *            the alphabet of a FASTA file (a saved store has its own)
+	 * @return the dataset
+	 * @throws IOException
+	 *             if the file does not exist or cannot be read
+	 */
+	public Dataset get(String filename, Alphabet alpha) throws IOException {
+		File file = new File(filename);
+		if (!file.isFile())
+			throw new IOException("No such file: " + filename);
+		String path = file.getCanonicalPath();
+		String key = path + "\n" + describe(alpha);
+		long modified = file.lastModified();
+		long length = file.length();
+
+		Dataset dataset;
+		synchronized (this) {
+			dataset = entries.get(key);
+			if (dataset != null && dataset.modified == modified
+					&& dataset.length == length)
+				hits++;
+			else {
+				misses++;
+				dataset = new Dataset(path, alpha, modified, length);
+				entries.put(key, dataset);
+				Iterator<Dataset> lru = entries.values().iterator();
+				while (entries.size() > capacity) {
+					lru.next();
+					lru.remove();
+					evictions++;
+				}
+			}
+		}
+		dataset.getStore(); // loads the file on first use
+		return dataset;
+	}
+
+	/**
+	 * Describes an alphabet by its codes and the sets of the degenerate ones
+	 */
+	private static String describe(Alphabet alpha) {
+		char[] codes = alpha.getCodes();
+		StringBuffer sbuf = new StringBuffer(String.valueOf(codes));
+		for (int i = alpha.getSize(); i < codes.length; i++)
+			sbuf.append("," + alpha.getSet(i));
+		return sbuf.toString();
+	}
+
+	/**
+	 * Drops the datasets of a file (under any alphabet), e.g. once no more
+	 * searches will use them
+	 *
+	 * @param filename
+	 *            the name of the file
+	 * @throws IOException
+	 *             if the name cannot be resolved
+	 */
+	public synchronized void remove(String filename) throws IOException {
+		String path = new File(filename).getCanonicalPath();
+		Iterator<Dataset> it = entries.values().iterator();
+		while (it.hasNext())
+			if (it.next().path.equals(path))
+				it.remove();
+	}
+
+	/**
+	 * Drops all cached datasets
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * @return the number of cached datasets
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of lookups that found a current entry
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that had to load the file
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of entries that were dropped to make room
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * A loaded sequence set and the count indexes built over it so far (one
+	 * per depth). Datasets are shared between concurrent searches, which only
+	 * read them.
+	 */
+	public static class Dataset {
+
+		private final String path; // the canonical path of the file
+		private final Alphabet alpha; // the alphabet it is read with
+		private final long modified; // its modification time when loaded
+		private final long length; // its size when loaded
+		private SequenceStore store; // loaded on first use
+		private final Map<Integer, TrieKMer> indexes = new HashMap<Integer, TrieKMer>();
+
+		Dataset(String path, Alphabet alpha, long modified, long length) {
+			this.path = path;
+			this.alpha = alpha;
+			this.modified = modified;
+			this.length = length;
+		}
+
+		/**
+		 * @return the canonical path of the file
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Retrieves the sequences, loading them if this has not been done
+		 *
+		 * @return the sequences
+		 * @throws IOException
+		 *             if the file cannot be read
+		 */
+		public synchronized SequenceStore getStore() throws IOException {
+			if (store == null)
+				store = SequenceStore.open(alpha, path);
+			return store;
+		}
+
+		/**
+		 * Retrieves the count index of the specified depth, building it if
+		 * this has not been done
+		 *
+		 * @param k
+		 *            the depth of the index
+		 * @return the count index
+		 * @throws IOException
+		 *             if the file cannot be read
+		 */
+		public TrieKMer getIndex(int k) throws IOException {
+			SequenceStore seqs = getStore();
+			synchronized (indexes) {
+				TrieKMer index = indexes.get(k);
+				if (index == null) {
+					index = new TrieKMer(seqs, k);
+					indexes.put(k, index);
+				}
+				return index;
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ *
+ */
+package motif;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+/**
+ */
+public class DatasetCacheTest {
+
+	@Test
+	public void testDatasetCacheReload() {
+		try {
+			File fasta = writeFasta(">s1\nACGT\n");
+			DatasetCache cache = new DatasetCache(2);
+			DatasetCache.Dataset first = cache.get(fasta.getPath());
+			assertEquals(1, first.getStore().getCount());
+			assertSame(first, cache.get(fasta.getPath()));
+			assertEquals(1, cache.getHits());
+			assertEquals(1, cache.getMisses());
+			// a file of another size is loaded again
+			write(fasta, ">s1\nACGT\n>s2\nTTGCA\n");
+			DatasetCache.Dataset second = cache.get(fasta.getPath());
+			assertTrue(first != second);
+			assertEquals(2, second.getStore().getCount());
+			// and so is one with another modification time
+			assertTrue(fasta.setLastModified(fasta.lastModified() - 10000));
+			assertTrue(second != cache.get(fasta.getPath()));
+			assertEquals(1, cache.getHits());
+			assertEquals(3, cache.getMisses());
+			assertEquals(1, cache.size());
+		} catch (IOException e) {
+			fail("Temporary file failed: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDatasetCacheAlphabet() {
+		try {
+			File fasta = writeFasta(">s1\nACGT\n>s2\nACNT\n");
+			DatasetCache cache = new DatasetCache(4);
+			// the record with N is only read with the IUPAC codes
+			assertEquals(1, cache.get(fasta.getPath()).getStore().getCount());
+			DatasetCache.Dataset iupac = cache.get(fasta.getPath(), Alphabet
+					.iupac(true));
+			assertEquals(2, iupac.getStore().getCount());
+			assertSame(iupac, cache.get(fasta.getPath(), Alphabet.iupac(true)));
+			assertTrue(iupac != cache.get(fasta.getPath(), Alphabet
+					.iupac(false)));
+			assertEquals(3, cache.size());
+			cache.remove(fasta.getPath());
+			assertEquals(0, cache.size());
+		} catch (IOException e) {
+			fail("Temporary file failed: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDatasetCacheEviction() {
+		try {
+			File a = writeFasta(">a\nAAAA\n");
+			File b = writeFasta(">b\nCCCC\n");
+			File c = writeFasta(">c\nGGGG\n");
+			DatasetCache cache = new DatasetCache(2);
+			cache.get(a.getPath());
+			cache.get(b.getPath());
+			cache.get(a.getPath()); // b is now the least recently used
+			cache.get(c.getPath());
+			assertEquals(2, cache.size());
+			assertEquals(1, cache.getEvictions());
+			cache.get(a.getPath());
+			assertEquals(2, cache.getHits());
+			cache.get(b.getPath()); // loaded again, dropping c
+			assertEquals(4, cache.getMisses());
+			assertEquals(2, cache.getEvictions());
+			cache.get(a.getPath());
+			assertEquals(3, cache.getHits());
+		} catch (IOException e) {
+			fail("Temporary file failed: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDatasetCacheMissingFile() {
+		DatasetCache cache = new DatasetCache(1);
+		try {
+			cache.get("data/no_such_file.fasta");
+			fail("A missing file was loaded");
+		} catch (IOException e) {
+			assertEquals(0, cache.size());
+		}
+	}
+
+	private static File writeFasta(String contents) throws IOException {
+		File file = File.createTempFile("cache", ".fasta");
+		file.deleteOnExit();
+		write(file, contents);
+		return file;
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		out.write(contents.getBytes("US-ASCII"));
+		out.close();
+	}
+}
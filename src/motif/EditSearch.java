@@ -0,0 +1,334 @@
+package motif;
+
+/**
+ * Branch-and-bound search for the median k-mer under edit distance: the
+ * distance of a k-mer to a sequence is the fewest substitutions, insertions
+ * and deletions that turn it into some substring of the sequence, so a
+ * binding site with a base inserted or deleted still matches.
+ *
+ * The search runs the dynamic program of approximate matching with the
+ * k-mer down the rows and the sequence along the columns: row i holds, for
+ * every end position j, the distance of the first i symbols to the best
+ * substring ending at j. Extending a prefix by one symbol adds one row, so
+ * every node of the search tree derives its rows from its parent's. A row
+ * is kept as two bit vectors over the positions of a sequence, the places
+ * where it goes up by one and where it goes down by one, and the next row
+ * is computed with Myers' bit-parallel step, a few word operations per 64
+ * positions. The step reads, for the new symbol, a mask of the positions of
+ * the sequence that hold it; these masks are made once per sequence and
+ * symbol. A degenerate code is set in the mask of every symbol it matches.
+ *
+ * No row's minimum is below the minimum of the row before it, so the sum of
+ * the row minima of a prefix is a lower bound for all its extensions, and
+ * the minima of the last row are the distances. The minimum of a row is
+ * found from its two vectors, a byte at a time through a table of the sum
+ * and lowest prefix sum of every byte pair. A child stops summing as soon
+ * as its bound reaches the incumbent. With a quorum q, only the q smallest
+ * distances are summed, as in {@link WindowSearch}.
+ */
+public class EditSearch {
+
+	private final Alphabet alpha; // the alphabet of the sequences
+	private final int k; // the length of the sought k-mer
+	private final CountIndex index; // statistics for ordering, may be null
+	private CountIndex.Ordering ordering = CountIndex.Ordering.COUNT;
+	private final SearchStats stats; // counters for this search
+
+	private final int[] first; // the first word of each sequence
+	private final int[] lengths; // the length of each sequence
+	private final int[] weights; // the number of copies of each sequence
+	private final long copies; // the number of sequences with their copies
+	private final long[][] masks; // per symbol, the positions that hold it
+	private final long[] zero; // the empty row: no ups and downs
+	private final long[][][] ups, downs; // per depth and child, the rows
+	private final int[][] bounds; // per depth, the lower bound of each child
+	private final int[][] order; // per depth, the order of the children
+	private final long[][] scores; // per depth, the score of each child
+	private final int[] pattern; // the symbols of the current node
+	private Quorum quorum; // selection of the best q sequences, null for all
+	private int best; // the distance of the incumbent
+	private int[] bestKMer; // the incumbent, null until one is found
+	private int limit = Integer.MAX_VALUE; // only k-mers below are sought
+
+	private static final int POLL = 256; // nodes between cancellation checks
+	private int poll = POLL; // nodes left until the next check
+
+	/* Per pair of bytes (ups << 8 | downs), the sum and the lowest prefix */
+	private static final byte[] SUM = new byte[1 << 16];
+	private static final byte[] LOW = new byte[1 << 16];
+
+	static {
+		for (int up = 0; up < 256; up++)
+			for (int down = 0; down < 256; down++) {
+				int sum = 0, low = 0;
+				for (int b = 0; b < 8; b++) {
+					sum += ((up >>> b) & 1) - ((down >>> b) & 1);
+					low = Math.min(low, sum);
+				}
+				SUM[up << 8 | down] = (byte) sum;
+				LOW[up << 8 | down] = (byte) low;
+			}
+	}
+
+	/**
+	 * Prepares a search over the specified sequences
+	 *
+	 * @param store
+	 *            the sequence data
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @param index
+	 *            prefix statistics used to visit promising extensions first,
+	 *            or null to visit the children with the lowest bound first
+	 */
+	public EditSearch(SequenceStore store, int k, CountIndex index) {
+		int n = store.getCount();
+		if (n < 1)
+			throw new RuntimeException("No sequences to search");
+		if (k < 1)
+			throw new RuntimeException("Invalid k-mer length " + k);
+		this.alpha = store.getAlphabet();
+		this.k = k;
+		this.index = index;
+		this.stats = new SearchStats(k);
+
+		/* Bit j - 1 of a sequence's words stands for its position j */
+		this.first = new int[n + 1];
+		this.lengths = new int[n];
+		this.weights = new int[n];
+		this.copies = store.getTotalWeight();
+		for (int s = 0; s < n; s++) {
+			lengths[s] = store.getLength(s);
+			weights[s] = store.getWeight(s);
+			first[s + 1] = first[s] + (lengths[s] + 63) / 64;
+		}
+		int words = first[n], radix = alpha.getSize();
+		this.masks = new long[radix][words];
+		for (int s = 0; s < n; s++) {
+			long start = store.getStart(s);
+			for (int j = 0; j < lengths[s]; j++) {
+				int code = store.symbolAt(start + j), x = first[s] + (j >>> 6);
+				if (code < radix)
+					masks[code][x] |= 1L << j;
+				else
+					for (int c = 0; c < radix; c++)
+						if (alpha.matches(code, c))
+							masks[c][x] |= 1L << j;
+			}
+		}
+		this.zero = new long[words];
+		this.ups = new long[k][radix][words];
+		this.downs = new long[k][radix][words];
+		this.bounds = new int[k][radix];
+		this.order = new int[k][radix];
+		this.scores = new long[k][radix];
+		this.pattern = new int[k];
+	}
+
+	/**
+	 * Restricts the distance to the sum over the q best-matching sequences
+	 *
+	 * @param q
+	 *            the quorum, 1..n (n or more sums over all sequences)
+	 */
+	public void setQuorum(int q) {
+		if (q < 1)
+			throw new RuntimeException("Invalid quorum " + q);
+		quorum = q < copies ? new Quorum(q, k) : null;
+	}
+
+	/**
+	 * Sets the policy by which the extensions of a prefix are ranked when an
+	 * index is available
+	 *
+	 * @param ordering
+	 *            the policy (COUNT by default)
+	 */
+	public void setOrdering(CountIndex.Ordering ordering) {
+		this.ordering = ordering;
+	}
+
+	/**
+	 * Only looks for k-mers whose distance is below a limit
+	 *
+	 * @param limit
+	 *            the distance that a k-mer must beat
+	 * @see WindowSearch#setLimit(int)
+	 */
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Runs the search
+	 *
+	 * @return the distance of the median k-mer, or the limit if no k-mer
+	 *         beats it
+	 * @throws RuntimeException
+	 *             if the thread is interrupted during the search
+	 */
+	public int search() {
+		best = (int) Math.min(k * copies + 1, limit);
+		bestKMer = null;
+		expand(0, zero, zero);
+		return best;
+	}
+
+	/**
+	 * @return the distance found by the last search
+	 */
+	public int getDistance() {
+		return best;
+	}
+
+	/**
+	 * @return the (first found) median k-mer of the last search, or null if
+	 *         no k-mer beat the limit
+	 */
+	public KMer getKMer() {
+		if (bestKMer == null)
+			return null;
+		return new KMer(alpha, bestKMer.clone());
+	}
+
+	/**
+	 * @return the counters collected by the last search
+	 */
+	public SearchStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Scores the children of a node and visits those that are not pruned
+	 *
+	 * @param depth
+	 *            the number of specified symbols
+	 * @param up
+	 *            the rises of the node's row
+	 * @param down
+	 *            the falls of the node's row
+	 */
+	private void expand(int depth, long[] up, long[] down) {
+		if (--poll == 0) { // look for cancellation now and then
+			poll = POLL;
+			if (Thread.currentThread().isInterrupted())
+				throw new RuntimeException("Search was interrupted");
+		}
+		int radix = alpha.getSize();
+		for (int c = 0; c < radix; c++)
+			bounds[depth][c] = step(depth, c, up, down);
+		int[] children = orderChildren(depth);
+		for (int c : children) {
+			pattern[depth] = c;
+			int bound = bounds[depth][c];
+			boolean cut = bound >= best; // the incumbent may have improved
+			stats.node(depth + 1, cut);
+			if (cut)
+				continue;
+			if (depth + 1 == k) {
+				best = bound;
+				bestKMer = pattern.clone();
+			} else
+				expand(depth + 1, ups[depth][c], downs[depth][c]);
+		}
+	}
+
+	/**
+	 * Computes the rows of a child in all sequences and their minima
+	 *
+	 * @param depth
+	 *            the depth of the parent
+	 * @param c
+	 *            the symbol of the child
+	 * @param up
+	 *            the rises of the parent's row
+	 * @param down
+	 *            the falls of the parent's row
+	 * @return the lower bound of the child, or a value of at least the
+	 *         incumbent if it is pruned before all sequences are done
+	 */
+	private int step(int depth, int c, long[] up, long[] down) {
+		long[] mask = masks[c], upNext = ups[depth][c], downNext = downs[depth][c];
+		int row = depth + 1, bound = 0;
+		if (quorum != null)
+			quorum.clear();
+		for (int s = 0; s < lengths.length; s++) {
+			int min = row, cur = row, left = lengths[s];
+			int hin = 1; // the first column is the row number, one higher
+			for (int x = first[s]; x < first[s + 1]; x++, left -= 64) {
+				long pv = up[x], mv = down[x], eq = mask[x];
+
+				/* Myers' step, the carry coming in at the low bit */
+				long xv = eq | mv;
+				if (hin < 0)
+					eq |= 1;
+				long xh = (((eq & pv) + pv) ^ pv) | eq;
+				long ph = mv | ~(xh | pv);
+				long mh = pv & xh;
+				int hout = ph < 0 ? 1 : mh < 0 ? -1 : 0;
+				ph <<= 1;
+				mh <<= 1;
+				if (hin < 0)
+					mh |= 1;
+				else if (hin > 0)
+					ph |= 1;
+				long p = mh | ~(xv | ph), m = ph & xv;
+				if (left < 64) { // no positions beyond the end
+					p &= (1L << left) - 1;
+					m &= (1L << left) - 1;
+				}
+				upNext[x] = p;
+				downNext[x] = m;
+				hin = hout;
+
+				/* The lowest value of the row in this word */
+				if (m == 0) {
+					cur += Long.bitCount(p);
+					continue;
+				}
+				for (int b = 0; b < 64 && (p | m) != 0; b += 8) {
+					int pair = (int) (p & 0xFF) << 8 | (int) (m & 0xFF);
+					min = Math.min(min, cur + LOW[pair]);
+					cur += SUM[pair];
+					p >>>= 8;
+					m >>>= 8;
+				}
+			}
+			if (quorum != null)
+				quorum.add(min, weights[s]);
+			else if ((bound += weights[s] * min) >= best)
+				return bound; // pruned anyway
+		}
+		return quorum == null ? bound : quorum.sum();
+	}
+
+	/**
+	 * Determines the order in which the children of a node are visited: by
+	 * the index if there is one, otherwise lowest bound first
+	 *
+	 * @param depth
+	 *            the depth of the node
+	 * @return the symbols of the children in visiting order
+	 */
+	private int[] orderChildren(int depth) {
+		int[] children = order[depth];
+		long[] counts = scores[depth];
+		for (int c = 0; c < children.length; c++) {
+			children[c] = c;
+			pattern[depth] = c;
+			counts[c] = index != null ? ordering.score(index, pattern,
+					depth + 1) : -bounds[depth][c];
+		}
+
+		/* Highest score first, ties in alphabet order (insertion sort) */
+		for (int i = 1; i < children.length; i++) {
+			int current = children[i], j = i;
+			while (j > 0 && counts[children[j - 1]] < counts[current]) {
+				children[j] = children[j - 1];
+				j--;
+			}
+			children[j] = current;
+		}
+		return children;
+	}
+}
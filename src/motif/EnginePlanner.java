@@ -0,0 +1,400 @@
+package motif;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the search strategy that is expected to finish first for a given
+ * sequence set and k.
+ *
+ * The running time of every strategy is modelled as
+ * ln(1 + ms) = b0 + b1 ln(windows) + b2 k + b3 distinct + b4 entropy
+ * + b5 ln(threads), where windows is the number of windows of length k,
+ * distinct the fraction of them that are distinct, and entropy that of the
+ * base composition (in bits). The coefficients are fitted (ridge least
+ * squares) to a calibration file written by the benchmark harness; without
+ * one, coefficients fitted on the data sets of this project are used. A
+ * feature that does not vary in the calibration runs (typically the number of
+ * threads) keeps its built-in coefficient.
+ */
+public class EnginePlanner {
+
+	/**
+	 * The strategies to choose from
+	 */
+	public enum Choice {
+		NAIVE, // branch-and-bound in alphabet order
+		TRIE, // branch-and-bound ordered by exact k-mer counts
+		EXHAUSTIVE, // Gray-code enumeration of all k-mers
+		NEIGHBORHOOD; // branch-and-bound ordered by 1-mismatch counts
+
+		/**
+		 * @return the engine that runs this strategy
+		 */
+		public MedianKMer.Engine getEngine() {
+			switch (this) {
+			case NAIVE:
+				return MedianKMer.Engine.NAIVE;
+			case EXHAUSTIVE:
+				return MedianKMer.Engine.EXHAUSTIVE;
+			default:
+				return MedianKMer.Engine.TRIE;
+			}
+		}
+
+		/**
+		 * @return the mismatches of the neighbourhood counts, -1 for none
+		 */
+		public int getMismatches() {
+			return this == NEIGHBORHOOD ? 1 : -1;
+		}
+	}
+
+	/**
+	 * The header of a calibration file
+	 */
+	public static final String HEADER = "engine,n,windows,k,distinct,entropy,threads,ms";
+
+	private static final int FEATURES = 6; // coefficients per strategy
+	private static final int SAMPLE = 1 << 18; // windows profiled at most
+	private static final double RIDGE = 1e-3; // keeps the fit well posed
+
+	/*
+	 * Fitted on data/*.fasta, k = 4 until 10 s, on one core; the exhaustive
+	 * engine is assumed to scale with the threads, the others use one
+	 */
+	private static final double[][] DEFAULTS = {
+			{ -10.70, 1.150, 0.813, 0.744, -0.160, 0.0 }, // NAIVE
+			{ -8.03, 1.202, 0.890, 0.317, -2.006, 0.0 }, // TRIE
+			{ -17.90, 0.782, 1.129, 0.204, 4.306, -1.0 }, // EXHAUSTIVE
+			{ -12.57, 1.067, 0.831, 0.500, 1.093, 0.0 } }; // NEIGHBORHOOD
+
+	private final SequenceStore store; // the sequences
+	private final double[][] coefficients; // per strategy
+	private final Map<Integer, double[]> profiles = new HashMap<Integer, double[]>();
+
+	/**
+	 * Prepares a planner with the built-in coefficients
+	 *
+	 * @param store
+	 *            the sequences
+	 */
+	public EnginePlanner(SequenceStore store) {
+		this.store = store;
+		this.coefficients = new double[DEFAULTS.length][];
+		for (int c = 0; c < DEFAULTS.length; c++)
+			coefficients[c] = DEFAULTS[c].clone();
+	}
+
+	/**
+	 * Fits the coefficients of every strategy with enough runs in a
+	 * calibration file (the others keep their coefficients)
+	 *
+	 * @param filename
+	 *            a file in the format of {@link #HEADER}
+	 * @throws IOException
+	 *             if the file operation fails
+	 */
+	public void calibrate(String filename) throws IOException {
+		List<double[]>[] rows = read(filename);
+		for (Choice choice : Choice.values()) {
+			double[] fitted = fit(rows[choice.ordinal()],
+					coefficients[choice.ordinal()]);
+			if (fitted != null)
+				coefficients[choice.ordinal()] = fitted;
+		}
+	}
+
+	/**
+	 * @param choice
+	 *            a strategy
+	 * @return the coefficients b0..b5 of its model
+	 */
+	public double[] getCoefficients(Choice choice) {
+		return coefficients[choice.ordinal()].clone();
+	}
+
+	/**
+	 * Reads the runs of a calibration file: per strategy, the features
+	 * followed by ln(1 + ms)
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static List<double[]>[] read(String filename) throws IOException {
+		List<double[]>[] rows = new List[Choice.values().length];
+		for (int c = 0; c < rows.length; c++)
+			rows[c] = new ArrayList<double[]>();
+		BufferedReader br = new BufferedReader(new FileReader(filename));
+		try {
+			String line = br.readLine(); // the header
+			int row = 1;
+			while ((line = br.readLine()) != null) {
+				row++;
+				String[] f = line.split(",");
+				if (f.length < 8)
+					continue;
+				try {
+					Choice choice = Choice.valueOf(f[0].trim().toUpperCase());
+					double[] x = features(Double.parseDouble(f[2]), Integer
+							.parseInt(f[3]), Double.parseDouble(f[4]), Double
+							.parseDouble(f[5]), Integer.parseInt(f[6]));
+					double[] r = Arrays.copyOf(x, FEATURES + 1);
+					r[FEATURES] = Math.log1p(Double.parseDouble(f[7]));
+					rows[choice.ordinal()].add(r);
+				} catch (IllegalArgumentException e) {
+					throw new RuntimeException("Invalid format in file "
+							+ filename + " at row " + row);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Fits coefficients by ridge least squares (normal equations). A feature
+	 * that has the same value in all runs keeps its prior coefficient.
+	 *
+	 * @return the coefficients, or null with fewer runs than coefficients
+	 */
+	static double[] fit(List<double[]> rows, double[] prior) {
+		if (rows.size() < FEATURES)
+			return null;
+		boolean[] fixed = new boolean[FEATURES];
+		for (int i = 1; i < FEATURES; i++) {
+			fixed[i] = true;
+			for (double[] r : rows)
+				fixed[i] &= r[i] == rows.get(0)[i];
+		}
+		double[][] a = new double[FEATURES][FEATURES + 1];
+		for (double[] r : rows) {
+			double y = r[FEATURES];
+			for (int i = 0; i < FEATURES; i++)
+				if (fixed[i])
+					y -= prior[i] * r[i];
+			for (int i = 0; i < FEATURES; i++) {
+				for (int j = 0; j < FEATURES; j++)
+					a[i][j] += r[i] * r[j];
+				a[i][FEATURES] += r[i] * y;
+			}
+		}
+		for (int i = 1; i < FEATURES; i++) { // the intercept is not shrunk
+			a[i][i] += RIDGE * rows.size();
+			if (fixed[i]) { // solves to the prior
+				Arrays.fill(a[i], 0);
+				a[i][i] = 1;
+				a[i][FEATURES] = prior[i];
+				for (int j = 0; j < FEATURES; j++)
+					if (j != i)
+						a[j][i] = 0;
+			}
+		}
+
+		/* Gaussian elimination with partial pivoting */
+		for (int p = 0; p < FEATURES; p++) {
+			int max = p;
+			for (int i = p + 1; i < FEATURES; i++)
+				if (Math.abs(a[i][p]) > Math.abs(a[max][p]))
+					max = i;
+			double[] tmp = a[p];
+			a[p] = a[max];
+			a[max] = tmp;
+			if (Math.abs(a[p][p]) < 1e-12)
+				return null;
+			for (int i = p + 1; i < FEATURES; i++) {
+				double f = a[i][p] / a[p][p];
+				for (int j = p; j <= FEATURES; j++)
+					a[i][j] -= f * a[p][j];
+			}
+		}
+		double[] b = new double[FEATURES];
+		for (int i = FEATURES - 1; i >= 0; i--) {
+			double sum = a[i][FEATURES];
+			for (int j = i + 1; j < FEATURES; j++)
+				sum -= a[i][j] * b[j];
+			b[i] = sum / a[i][i];
+		}
+		return b;
+	}
+
+	private static double[] features(double windows, int k, double distinct,
+			double entropy, int threads) {
+		return new double[] { 1, Math.log(Math.max(1, windows)), k, distinct,
+				entropy, Math.log(Math.max(1, threads)) };
+	}
+
+	/**
+	 * Describes the sequences for a k: the number of windows, the fraction of
+	 * distinct windows (of length up to 16, less for large alphabets) and
+	 * the entropy of the base composition, both over up to 2^18 evenly
+	 * spread windows
+	 *
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @return windows, distinct and entropy
+	 */
+	public synchronized double[] profile(int k) {
+		double[] profile = profiles.get(k);
+		if (profile != null)
+			return profile;
+		int radix = store.getAlphabet().getCodes().length;
+		int L = Math.min(k, 16);
+		while (L > 1 && Math.pow(radix, L) > Long.MAX_VALUE)
+			L--; // the codes must not overflow, e.g. for amino acids
+		long windows = 0;
+		for (int s = 0; s < store.getCount(); s++)
+			windows += Math.max(0, store.getLength(s) - k + 1);
+		long stride = Math.max(1, windows / SAMPLE);
+		long[] codes = new long[(int) Math.min(windows, SAMPLE + 1)];
+		long[] bases = new long[radix];
+		int sampled = 0;
+		long seen = 0, next = 0;
+		for (int s = 0; s < store.getCount(); s++) {
+			long start = store.getStart(s);
+			for (int w = 0; w + k <= store.getLength(s); w++, seen++) {
+				if (seen < next || sampled == codes.length)
+					continue;
+				next += stride;
+				long code = 0;
+				for (int i = 0; i < L; i++) {
+					int symbol = store.symbolAt(start + w + i);
+					code = code * radix + symbol;
+					bases[symbol]++;
+				}
+				codes[sampled++] = code;
+			}
+		}
+		Arrays.sort(codes, 0, sampled);
+		int distinct = 0;
+		for (int i = 0; i < sampled; i++)
+			if (i == 0 || codes[i] != codes[i - 1])
+				distinct++;
+		double entropy = 0, total = (double) sampled * L;
+		for (long b : bases)
+			if (b > 0)
+				entropy -= b / total * Math.log(b / total) / Math.log(2);
+		profile = new double[] { windows,
+				sampled == 0 ? 0 : distinct / (double) sampled, entropy };
+		profiles.put(k, profile);
+		return profile;
+	}
+
+	/**
+	 * Predicts the running time of a strategy
+	 *
+	 * @param choice
+	 *            the strategy
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @param threads
+	 *            the number of threads
+	 * @return the predicted time in milliseconds, infinite if the strategy
+	 *         cannot search this k
+	 */
+	public double predict(Choice choice, int k, int threads) {
+		if (choice == Choice.EXHAUSTIVE
+				&& Math.pow(store.getAlphabet().getSize(), k) > ExhaustiveKMer.MAX_CODES)
+			return Double.POSITIVE_INFINITY;
+		double[] p = profile(k);
+		double[] x = features(p[0], k, p[1], p[2], threads);
+		double[] b = coefficients[choice.ordinal()];
+		double y = 0;
+		for (int i = 0; i < FEATURES; i++)
+			y += b[i] * x[i];
+		return Math.expm1(y);
+	}
+
+	/**
+	 * Chooses the strategy with the smallest predicted time
+	 *
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @param threads
+	 *            the number of threads
+	 * @return the plan
+	 */
+	public Plan plan(int k, int threads) {
+		Choice[] choices = Choice.values();
+		double[] predicted = new double[choices.length];
+		Choice best = Choice.NAIVE;
+		for (Choice choice : choices) {
+			predicted[choice.ordinal()] = predict(choice, k, threads);
+			if (predicted[choice.ordinal()] < predicted[best.ordinal()])
+				best = choice;
+		}
+		return new Plan(k, best, predicted);
+	}
+
+	/**
+	 * The decision of the planner for one search, with the predicted time of
+	 * every strategy and, once the search has run, the actual time
+	 */
+	public static class Plan {
+
+		private final int k; // the length of the sought k-mer
+		private final Choice choice; // the chosen strategy
+		private final double[] predicted; // per strategy, in milliseconds
+		private long actual = -1; // the time taken, -1 until known
+
+		Plan(int k, Choice choice, double[] predicted) {
+			this.k = k;
+			this.choice = choice;
+			this.predicted = predicted;
+		}
+
+		/**
+		 * @return the chosen strategy
+		 */
+		public Choice getChoice() {
+			return choice;
+		}
+
+		/**
+		 * @return the predicted time of the chosen strategy in milliseconds
+		 */
+		public double getPredicted() {
+			return predicted[choice.ordinal()];
+		}
+
+		/**
+		 * @return the time the search took in milliseconds, -1 if unknown
+		 */
+		public long getActual() {
+			return actual;
+		}
+
+		/**
+		 * Records the time the search took
+		 *
+		 * @param ms
+		 *            the time in milliseconds
+		 */
+		public void setActual(long ms) {
+			this.actual = ms;
+		}
+
+		/**
+		 * Printable decision, e.g. to log
+		 */
+		public String toString() {
+			StringBuffer sbuf = new StringBuffer();
+			sbuf.append("Plan for k=" + k + ": " + choice.name().toLowerCase()
+					+ " (predicted");
+			for (Choice c : Choice.values()) {
+				double ms = predicted[c.ordinal()];
+				sbuf.append(" " + c.name().toLowerCase() + " "
+						+ (Double.isInfinite(ms) ? "-" : String.format("%.0f",
+								ms)) + " ms" + (c.ordinal() + 1 < predicted.length ? "," : ")"));
+			}
+			if (actual >= 0)
+				sbuf.append(", took " + actual + " ms");
+			return sbuf.toString();
+		}
+	}
+}
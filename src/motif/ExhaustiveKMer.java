@@ -0,0 +1,393 @@
+package motif;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Exhaustive search for the median k-mer that scores every k-mer over the
+ * alphabet. For small k this is cheaper than branch-and-bound, since the
+ * bounds are weak at shallow depths anyway.
+ *
+ * The k-mers are visited in (modular) Gray-code order, in which two
+ * consecutive k-mers differ in exactly one position. Each worker keeps the
+ * number of mismatches of every window of every sequence, so moving to the
+ * next k-mer only needs a single-position update of each window followed by
+ * a minimum over the windows. Both loops are straight array arithmetic which
+ * the JIT can vectorise.
+ *
+ * The range of Gray-code ranks is split into contiguous parts, one per
+ * thread. Optionally the distance of every k-mer is kept in a table indexed
+ * by the k-mer code (see {@link #getCode(KMer)}).
+ */
+public class ExhaustiveKMer {
+
+	/**
+	 * The largest number of k-mers that will be enumerated (4^11 for DNA)
+	 */
+	public static final int MAX_CODES = 1 << 22;
+
+	private final Alphabet alpha; // the alphabet of the sequences
+	private final int k; // the length of the k-mers
+	private final int radix; // the number of symbols in the alphabet
+	private final int codes; // the number of k-mers, radix^k
+	private final int[] widths; // the number of windows in each sequence
+	private final int[] weights; // the number of copies of each sequence
+	private final long copies; // the number of sequences with their copies
+	private final byte[][] matches; // per sequence, 1 where symbol c is at i
+	private int quorum = 0; // sum over the best q sequences, 0 for all
+
+	private int[] table; // the distance of each k-mer (indexed by code)
+	private volatile boolean cancelled; // set to stop all workers
+	private int bestDistance; // the smallest distance found
+	private int bestCode; // the (smallest) code with that distance
+
+	/**
+	 * Prepares an exhaustive search over the specified sequences.
+	 *
+	 * @param seqs
+	 *            the sequence data
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @throws RuntimeException
+	 *             if there are too many k-mers to enumerate
+	 */
+	public ExhaustiveKMer(DNASequence[] seqs, int k) {
+		this(SequenceStore.fromSequences(seqs), k);
+	}
+
+	/**
+	 * Prepares an exhaustive search over the sequences of a store.
+	 *
+	 * @param store
+	 *            the sequence data
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @throws RuntimeException
+	 *             if there are too many k-mers to enumerate
+	 */
+	public ExhaustiveKMer(SequenceStore store, int k) {
+		if (store.getCount() < 1)
+			throw new RuntimeException("No sequences to search");
+		this.alpha = store.getAlphabet();
+		this.k = k;
+		this.radix = alpha.getSize();
+
+		long count = 1;
+		for (int i = 0; i < k; i++) {
+			count *= radix;
+			if (count > MAX_CODES)
+				throw new RuntimeException("Too many " + k
+						+ "-mers for an exhaustive search");
+		}
+		this.codes = (int) count;
+
+		/*
+		 * Match indicators: matches[s][c * L + i] is 1 if sequence s has
+		 * symbol c at position i (or a degenerate code whose set holds c).
+		 * Updating a window is then a plain add.
+		 */
+		this.widths = new int[store.getCount()];
+		this.weights = new int[store.getCount()];
+		this.copies = store.getTotalWeight();
+		this.matches = new byte[store.getCount()][];
+		for (int s = 0; s < widths.length; s++) {
+			weights[s] = store.getWeight(s);
+			int N = store.getLength(s);
+			long start = store.getStart(s);
+			widths[s] = N - k + 1;
+			matches[s] = new byte[radix * N];
+			for (int i = 0; i < N; i++) {
+				int code = store.symbolAt(start + i);
+				if (code < radix)
+					matches[s][code * N + i] = 1;
+				else
+					for (int c = 0; c < radix; c++)
+						if (alpha.matches(code, c))
+							matches[s][c * N + i] = 1;
+			}
+		}
+	}
+
+	/**
+	 * Restricts the distance to the sum over the q best-matching sequences
+	 *
+	 * @param q
+	 *            the quorum, 1..n (n or more sums over all sequences)
+	 * @see WindowSearch#setQuorum(int)
+	 */
+	public void setQuorum(int q) {
+		if (q < 1)
+			throw new RuntimeException("Invalid quorum " + q);
+		quorum = q < copies ? q : 0;
+	}
+
+	/**
+	 * Scores all k-mers and records the best one.
+	 *
+	 * @param threads
+	 *            the number of threads to use
+	 * @param keepTable
+	 *            true if the distance of every k-mer should be kept
+	 * @return the smallest distance
+	 * @throws RuntimeException
+	 *             if the calling thread is interrupted during the search
+	 */
+	public int search(int threads, boolean keepTable) {
+		if (threads < 1)
+			threads = 1;
+		if (threads > codes)
+			threads = codes;
+		table = keepTable ? new int[codes] : null;
+		cancelled = false;
+
+		Worker[] workers = new Worker[threads];
+		Thread[] running = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			/* Split the ranks into (almost) equal contiguous parts */
+			int from = (int) ((long) codes * t / threads);
+			int to = (int) ((long) codes * (t + 1) / threads);
+			workers[t] = new Worker(from, to);
+			if (t > 0) {
+				running[t] = new Thread(workers[t], "gray-" + t);
+				running[t].start();
+			}
+		}
+		workers[0].run(); // the calling thread takes the first part
+		boolean interrupted = false;
+		for (int t = 1; t < threads; t++) {
+			try {
+				running[t].join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+				cancelled = true; // stop the other workers, then wait again
+				t--;
+			}
+		}
+		if (interrupted || cancelled) {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			throw new RuntimeException("Search was interrupted");
+		}
+
+		/* Ties go to the smallest code, whatever the number of threads */
+		bestDistance = Integer.MAX_VALUE;
+		for (Worker w : workers) {
+			if (w.bestDistance < bestDistance
+					|| (w.bestDistance == bestDistance && w.bestCode < bestCode)) {
+				bestDistance = w.bestDistance;
+				bestCode = w.bestCode;
+			}
+		}
+		return bestDistance;
+	}
+
+	/**
+	 * @return the smallest distance found by the last search
+	 */
+	public int getDistance() {
+		return bestDistance;
+	}
+
+	/**
+	 * @return the (first) k-mer with the smallest distance
+	 */
+	public KMer getKMer() {
+		return getKMer(bestCode);
+	}
+
+	/**
+	 * Retrieves the distance of every k-mer, indexed by k-mer code.
+	 *
+	 * @return the table, or null if the last search did not keep it
+	 */
+	public int[] getTable() {
+		return table;
+	}
+
+	/**
+	 * Translates a k-mer into its code, i.e. the k-mer read as a number in
+	 * base |alphabet| with the first position as the most significant digit.
+	 *
+	 * @param kmer
+	 *            a complete k-mer
+	 * @return the code of the k-mer
+	 */
+	public int getCode(KMer kmer) {
+		int code = 0;
+		for (int symbol : kmer.getKMer())
+			code = code * radix + symbol;
+		return code;
+	}
+
+	/**
+	 * Translates a code back into a k-mer.
+	 *
+	 * @param code
+	 *            the k-mer code
+	 * @return the k-mer
+	 * @see #getCode(KMer)
+	 */
+	public KMer getKMer(int code) {
+		int[] kmer = new int[k];
+		for (int p = k - 1; p >= 0; p--) {
+			kmer[p] = code % radix;
+			code /= radix;
+		}
+		return new KMer(alpha, kmer);
+	}
+
+	/**
+	 * Writes the distance table as one "k-mer tab distance" line per k-mer,
+	 * in code order.
+	 *
+	 * @param out
+	 *            the destination
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public void writeTable(Writer out) throws IOException {
+		if (table == null)
+			throw new RuntimeException("No distance table was kept");
+		BufferedWriter bw = new BufferedWriter(out);
+		for (int code = 0; code < codes; code++) {
+			bw.write(getKMer(code).toString());
+			bw.write('\t');
+			bw.write(Integer.toString(table[code]));
+			bw.newLine();
+		}
+		bw.flush();
+	}
+
+	/**
+	 * Walks a contiguous range of Gray-code ranks. The Gray code of rank r has
+	 * digit j equal to (d[j] - d[j+1]) mod radix where d are the digits of r,
+	 * so incrementing r changes exactly one Gray digit: the one at the lowest
+	 * position that does not carry, and it increases by one (mod radix).
+	 * Digit j corresponds to k-mer position k-1-j.
+	 */
+	private class Worker implements Runnable {
+
+		private final int from, to; // ranks [from, to)
+		int bestDistance = Integer.MAX_VALUE;
+		int bestCode = 0;
+		private final Quorum select = quorum == 0 ? null : new Quorum(quorum, k);
+
+		Worker(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		public void run() {
+			int[] digits = new int[k + 1]; // digits of the rank
+			int[] gray = new int[k]; // digits of the Gray code
+			int[] weight = new int[k]; // radix^j
+			int code = 0;
+
+			int rank = from;
+			for (int j = 0; j < k; j++) {
+				digits[j] = rank % radix;
+				rank /= radix;
+			}
+			for (int j = 0; j < k; j++) {
+				gray[j] = ((digits[j] - digits[j + 1]) % radix + radix) % radix;
+				weight[j] = j == 0 ? 1 : weight[j - 1] * radix;
+				code += gray[j] * weight[j];
+			}
+
+			/* Full evaluation of the first k-mer in the range */
+			int[][] windows = new int[widths.length][];
+			int distance = 0;
+			if (select != null)
+				select.clear();
+			for (int s = 0; s < widths.length; s++) {
+				int W = widths[s];
+				if (W < 1) {
+					windows[s] = new int[0];
+					distance += add(s, k); // no window fits the k-mer
+					continue;
+				}
+				int N = W + k - 1;
+				int[] mm = windows[s] = new int[W];
+				byte[] eq = matches[s];
+				for (int j = 0; j < k; j++) {
+					int offset = gray[j] * N + (k - 1 - j);
+					for (int w = 0; w < W; w++)
+						mm[w] += 1 - eq[offset + w];
+				}
+				distance += add(s, min(mm));
+			}
+			record(code, select == null ? distance : select.sum());
+
+			for (rank = from + 1; rank < to; rank++) {
+				if ((rank & 0xFFF) == 0
+						&& (cancelled || Thread.currentThread().isInterrupted())) {
+					cancelled = true;
+					return;
+				}
+
+				/* Increment the rank; the carry length picks the digit */
+				int j = 0;
+				while (digits[j] == radix - 1)
+					digits[j++] = 0;
+				digits[j]++;
+
+				int a = gray[j];
+				int b = a + 1 == radix ? 0 : a + 1;
+				gray[j] = b;
+				code += (b - a) * weight[j];
+				int p = k - 1 - j;
+
+				distance = 0;
+				if (select != null)
+					select.clear();
+				for (int s = 0; s < widths.length; s++) {
+					int W = widths[s];
+					if (W < 1) {
+						distance += add(s, k);
+						continue;
+					}
+					int N = W + k - 1;
+					int[] mm = windows[s];
+					byte[] eq = matches[s];
+					int offA = a * N + p, offB = b * N + p;
+					int min = k;
+					for (int w = 0; w < W; w++) {
+						int v = mm[w] + eq[offA + w] - eq[offB + w];
+						mm[w] = v;
+						min = Math.min(min, v);
+					}
+					distance += add(s, min);
+				}
+				record(code, select == null ? distance : select.sum());
+			}
+		}
+
+		private void record(int code, int distance) {
+			if (table != null)
+				table[code] = distance;
+			if (distance < bestDistance
+					|| (distance == bestDistance && code < bestCode)) {
+				bestDistance = distance;
+				bestCode = code;
+			}
+		}
+
+		/**
+		 * Passes the distance of a sequence on to the quorum, if any, and
+		 * weighs it by the copies of the sequence
+		 */
+		private int add(int s, int d) {
+			if (select != null)
+				select.add(d, weights[s]);
+			return weights[s] * d;
+		}
+
+		private int min(int[] values) {
+			int min = k;
+			for (int v : values)
+				min = Math.min(min, v);
+			return min;
+		}
+	}
+}
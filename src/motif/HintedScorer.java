@@ -0,0 +1,219 @@
+package motif;
+
+/**
+ * Scores complete k-mers (or prefixes) against the sequences of a store,
+ * remembering for every sequence the offsets of a few windows that recently
+ * gave its minimum. Similar words, such as siblings in a search or the
+ * candidates of a sampling search, tend to match a sequence best in the same
+ * window, so these windows are tried first: they give a tight cap on the
+ * minimum, and the full scan that follows gives up on every other window as
+ * soon as it reaches that cap.
+ *
+ * A total can also be given a limit, the distance it has to beat. Each
+ * sequence's scan is then capped by what is left of the limit, and scoring
+ * stops as soon as the limit is reached.
+ *
+ * Words are made of plain symbols. If the store has degenerate codes, a
+ * position matches if the code's set holds the word's symbol.
+ *
+ * The hints are ordered most recent first and a scorer is not thread-safe;
+ * each thread should have its own.
+ */
+public class HintedScorer {
+
+	/**
+	 * The default number of hints kept per sequence
+	 */
+	public static final int HINTS = 4;
+
+	private final SequenceStore store; // the sequences
+	private final Alphabet alpha; // matches degenerate codes, if any occur
+	private final boolean degenerate; // the store has degenerate codes
+	private final int slots; // the number of hints per sequence
+	private final int[] hints; // per sequence, offsets most recent first
+	private long lookups; // scans that found a window below their cap
+	private long hits; // such scans whose minimum was at a hint
+
+	/**
+	 * Prepares a scorer with the default number of hints
+	 *
+	 * @param store
+	 *            the sequences
+	 */
+	public HintedScorer(SequenceStore store) {
+		this(store, HINTS);
+	}
+
+	/**
+	 * Prepares a scorer
+	 *
+	 * @param store
+	 *            the sequences
+	 * @param slots
+	 *            the number of hints kept per sequence (0 to scan from
+	 *            position 0 only)
+	 */
+	public HintedScorer(SequenceStore store, int slots) {
+		if (slots < 0)
+			throw new RuntimeException("Invalid number of hints " + slots);
+		this.store = store;
+		this.alpha = store.getAlphabet();
+		this.degenerate = store.isDegenerate();
+		this.slots = slots;
+		this.hints = new int[store.getCount() * slots];
+		for (int i = 0; i < hints.length; i++)
+			hints[i] = -1;
+	}
+
+	/**
+	 * Determines the minimum number of mismatches of a word in the windows of
+	 * a sequence, if it is below a cap
+	 *
+	 * @param s
+	 *            the number of the sequence
+	 * @param word
+	 *            the symbols of the word
+	 * @param length
+	 *            the number of symbols of the word that are compared
+	 * @param cap
+	 *            the value from which the exact minimum is not needed
+	 * @return the minimum if it is below the cap, otherwise a value of at
+	 *         least the cap (length if the sequence is too short)
+	 */
+	public int getDistance(int s, int[] word, int length, int cap) {
+		int W = store.getLength(s) - length + 1;
+		if (W < 1)
+			return length;
+		long start = store.getStart(s);
+		int best = Math.min(length, cap), at = -1, found = -1;
+
+		/* The hints first, to set a tight cap for the scan */
+		int first = s * slots;
+		for (int h = 0; h < slots && best > 0; h++) {
+			int w = hints[first + h];
+			if (w < 0 || w >= W)
+				continue;
+			int mm = mismatches(start + w, word, length, best);
+			if (mm < best) {
+				best = mm;
+				at = w;
+				found = h;
+			}
+		}
+		int hinted = best;
+
+		/* Every window, each given up once it reaches the best so far */
+		for (int w = 0; w < W && best > 0; w++) {
+			int mm = mismatches(start + w, word, length, best);
+			if (mm < best) {
+				best = mm;
+				at = w;
+				found = -1;
+			}
+		}
+		if (at < 0)
+			return best; // nothing below the cap
+		lookups++;
+		if (best == hinted)
+			hits++;
+		remember(first, found < 0 ? slots - 1 : found, at);
+		return best;
+	}
+
+	/**
+	 * Counts the mismatches of a word in a window, up to a cap
+	 */
+	private int mismatches(long start, int[] word, int length, int cap) {
+		int mm = 0;
+		if (degenerate) {
+			for (int j = 0; j < length && mm < cap; j++)
+				if (!alpha.matches(store.symbolAt(start + j), word[j]))
+					mm++;
+			return mm;
+		}
+		for (int j = 0; j < length && mm < cap; j++)
+			if (store.symbolAt(start + j) != word[j])
+				mm++;
+		return mm;
+	}
+
+	/**
+	 * Moves a window to the front of the hints of a sequence, dropping the
+	 * one in the specified slot
+	 */
+	private void remember(int first, int slot, int w) {
+		if (slots == 0)
+			return;
+		for (int h = slot; h > 0; h--)
+			hints[first + h] = hints[first + h - 1];
+		hints[first] = w;
+	}
+
+	/**
+	 * Sums the minima of a word over all sequences (each counted as often as
+	 * its weight), as long as the sum stays below a limit
+	 *
+	 * @param word
+	 *            the symbols of the word
+	 * @param length
+	 *            the number of symbols of the word that are compared
+	 * @param limit
+	 *            the distance that the word has to beat
+	 * @return the distance if it is below the limit, otherwise a value of at
+	 *         least the limit
+	 */
+	public int score(int[] word, int length, int limit) {
+		long total = 0;
+		for (int s = 0; s < store.getCount(); s++) {
+			long room = limit - total;
+			if (room <= 0)
+				break;
+			int w = store.getWeight(s);
+			int cap = (int) Math.min((room + w - 1) / w, length + 1);
+			total += (long) w * getDistance(s, word, length, cap);
+		}
+		return (int) Math.min(total, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Sums the minima of a word over the q best-matching sequences (each
+	 * counted as often as its weight)
+	 *
+	 * @param word
+	 *            the symbols of the word
+	 * @param length
+	 *            the number of symbols of the word that are compared
+	 * @param quorum
+	 *            the selection of the q smallest minima, cleared first
+	 * @return the distance
+	 */
+	int score(int[] word, int length, Quorum quorum) {
+		quorum.clear();
+		for (int s = 0; s < store.getCount(); s++)
+			quorum.add(getDistance(s, word, length, length + 1), store
+					.getWeight(s));
+		return quorum.sum();
+	}
+
+	/**
+	 * @return the number of scans that found a window below their cap
+	 */
+	public long getLookups() {
+		return lookups;
+	}
+
+	/**
+	 * @return the number of scans whose minimum was at a hint
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the fraction of scans whose minimum was at a hint, 0 if there
+	 *         were none
+	 */
+	public double getHitRate() {
+		return lookups == 0 ? 0 : hits / (double) lookups;
+	}
+}
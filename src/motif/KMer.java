@@ -65,6 +65,26 @@ public class KMer {
 			this.kmer[i] = seq.getSymbolIndex(pos + i);
 	}
 
+	/**
+	 * Constructs a k-mer from a sub-sequence of a sequence in a store
+	 * 
+	 * @param store
+	 *            the sequences
+	 * @param s
+	 *            the sequence number
+	 * @param pos
+	 *            the start position of the sub-sequence
+	 * @param k
+	 *            the length (width) of the sub-sequence
+	 */
+	public KMer(SequenceStore store, int s, int pos, int k) {
+		this.alpha = store.getAlphabet();
+		this.kmer = new int[k];
+		long start = store.getStart(s) + pos;
+		for (int i = 0; i < k; i++)
+			this.kmer[i] = store.symbolAt(start + i);
+	}
+
 	/**
 	 * Constructs a fully specified k-mer
 	 * 
@@ -107,13 +127,15 @@ public class KMer {
 
 	/**
 	 * Checks if the k-mer is completely specified, i.e. has no empty positions.
+	 * Positions may have been specified in any order.
 	 * 
 	 * @return true if all symbols are specified (that is, no "no-symbols": -1),
 	 *         false otherwise
 	 */
 	public boolean isComplete() {
-		if (kmer[kmer.length - 1] < 0)
-			return false;
+		for (int i = 0; i < kmer.length; i++)
+			if (kmer[i] < 0)
+				return false;
 		return true;
 	}
 
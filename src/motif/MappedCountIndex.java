@@ -0,0 +1,342 @@
+package motif;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A count index kept in a file, so that later runs over the same sequences
+ * map it instead of building a trie again.
+ *
+ * The file starts with a header: the alphabet, the depth k, the number and
+ * total length of the sequences, their fingerprint (see
+ * {@link SequenceStore#getFingerprint()}), the number of distinct prefixes of
+ * every level, a CRC-32 of the tables and a CRC-32 of the header itself. The
+ * tables follow, one per level from 1 to k: the codes of the prefixes in
+ * ascending order (first symbol in the most significant bits), their counts
+ * and their supports. A lookup is a binary search of the codes of its level,
+ * done directly on the mapping, so opening a file copies nothing to the heap.
+ * Opening only checks the header; the tables are checked once, when the file
+ * has just been written, since reading them all would make opening as slow
+ * as the size of the index.
+ */
+public class MappedCountIndex implements CountIndex {
+
+	private static final int MAGIC = 0x4D4B4931; // "MKI1"
+	private static final int VERSION = 2; // 2 packs codes with the exact width
+
+	private final Alphabet alpha; // the alphabet of the counted sequences
+	private final int depth; // the length of the windows that were counted
+	private final int bits; // the number of bits per symbol in a code
+	private final long fingerprint; // of the counted sequences
+	private final ByteBuffer tables; // the mapped tables
+	private final int[] sizes; // the number of prefixes per level
+	private final int[] offsets; // the position of the codes of a level
+
+	private MappedCountIndex(Alphabet alpha, int depth, long fingerprint,
+			int[] sizes, ByteBuffer tables) {
+		this.alpha = alpha;
+		this.depth = depth;
+		this.bits = SequenceStore.bitsFor(alpha);
+		this.fingerprint = fingerprint;
+		this.sizes = sizes;
+		this.tables = tables;
+		this.offsets = new int[depth];
+		int offset = 0;
+		for (int L = 0; L < depth; L++) {
+			offsets[L] = offset;
+			offset += sizes[L] * 16; // a code, a count and a support
+		}
+	}
+
+	/**
+	 * Maps the count index of a file if it was built over the same sequences
+	 * with the same depth, and otherwise builds one, writes it to the file and
+	 * maps that.
+	 *
+	 * @param store
+	 *            the sequences
+	 * @param k
+	 *            the depth of the index
+	 * @param filename
+	 *            the name of the index file
+	 * @param threads
+	 *            the number of threads used for a build
+	 * @return the count index
+	 * @throws IOException
+	 *             if the file operation fails
+	 */
+	public static MappedCountIndex open(SequenceStore store, int k,
+			String filename, int threads) throws IOException {
+		if (new File(filename).isFile()) {
+			try {
+				MappedCountIndex index = map(filename);
+				if (index.matches(store, k))
+					return index;
+			} catch (IOException e) {
+				/* Damaged or of another version: built again below */
+			}
+		}
+		write(new TrieKMer(store, k, threads), store, filename);
+		return map(filename, true);
+	}
+
+	/**
+	 * Checks if this index counts the windows of length k of some sequences
+	 *
+	 * @param store
+	 *            the sequences
+	 * @param k
+	 *            the depth
+	 * @return true if the alphabet, depth and fingerprint are the same
+	 */
+	public boolean matches(SequenceStore store, int k) {
+		return depth == k
+				&& String.valueOf(alpha.getSymbols()).equals(
+						String.valueOf(store.getAlphabet().getSymbols()))
+				&& fingerprint == store.getFingerprint();
+	}
+
+	/**
+	 * Writes the counts of a trie to a file. The file is written under a
+	 * temporary name of its own in the same directory and then renamed, so
+	 * that a concurrent run never maps a partial file.
+	 *
+	 * @param trie
+	 *            the count index
+	 * @param store
+	 *            the sequences that the trie was built over
+	 * @param filename
+	 *            the name of the file
+	 * @throws IOException
+	 *             if the file operation fails
+	 */
+	public static void write(TrieKMer trie, SequenceStore store,
+			String filename) throws IOException {
+		int k = trie.getDepth();
+		int bits = SequenceStore.bitsFor(store.getAlphabet());
+		if ((long) k * bits > 63)
+			throw new RuntimeException("Cannot store codes of " + k
+					+ "-mers in 63 bits");
+		final long[][] codes = new long[k][];
+		final int[][] counts = new int[k][];
+		final int[][] supports = new int[k][];
+		trie.flatten(bits, codes, counts, supports);
+
+		/* The checksum of the tables goes in the header, so it comes first */
+		CheckedOutputStream check = new CheckedOutputStream(
+				new OutputStream() {
+					public void write(int b) {
+					}
+
+					public void write(byte[] b, int off, int len) {
+					}
+				}, new CRC32());
+		DataOutputStream sink = new DataOutputStream(check);
+		writeTables(sink, codes, counts, supports);
+		sink.flush();
+		long tablesCRC = check.getChecksum().getValue();
+
+		File file = new File(filename).getAbsoluteFile();
+		File tmp = File.createTempFile(file.getName() + ".new", ".tmp", file
+				.getParentFile());
+		CRC32 headerCRC = new CRC32();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		boolean written = false;
+		try {
+			DataOutputStream header = new DataOutputStream(
+					new CheckedOutputStream(out, headerCRC));
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			char[] symbols = store.getAlphabet().getSymbols();
+			header.writeInt(symbols.length);
+			for (char c : symbols)
+				header.writeChar(c);
+			header.writeInt(k);
+			header.writeInt(store.getCount());
+			header.writeLong(store.getTotalLength());
+			header.writeLong(store.getFingerprint());
+			for (int L = 0; L < k; L++)
+				header.writeInt(codes[L].length);
+			header.writeLong(tablesCRC);
+			header.flush();
+			out.writeLong(headerCRC.getValue());
+			writeTables(out, codes, counts, supports);
+			out.close();
+			if (!tmp.renameTo(file)) {
+				file.delete(); // some platforms do not replace on rename
+				if (!tmp.renameTo(file))
+					throw new IOException("Cannot rename " + tmp + " to "
+							+ file);
+			}
+			written = true;
+		} finally {
+			if (!written) {
+				out.close();
+				tmp.delete();
+			}
+		}
+	}
+
+	private static void writeTables(DataOutputStream out, long[][] codes,
+			int[][] counts, int[][] supports) throws IOException {
+		for (int L = 0; L < codes.length; L++) {
+			for (long code : codes[L])
+				out.writeLong(code);
+			for (int count : counts[L])
+				out.writeInt(count);
+			for (int support : supports[L])
+				out.writeInt(support);
+		}
+	}
+
+	/**
+	 * Memory-maps an index file, checking its version and the checksum of its
+	 * header
+	 *
+	 * @param filename
+	 *            the name of a file written by
+	 *            {@link #write(TrieKMer, SequenceStore, String)}
+	 * @return the count index
+	 * @throws IOException
+	 *             if the file operation fails or the file is not a valid
+	 *             index
+	 */
+	public static MappedCountIndex map(String filename) throws IOException {
+		return map(filename, false);
+	}
+
+	/**
+	 * Memory-maps an index file, checking its version and checksums
+	 *
+	 * @param filename
+	 *            the name of the file
+	 * @param verify
+	 *            true to check the tables against their checksum as well,
+	 *            which reads the whole file
+	 * @return the count index
+	 * @throws IOException
+	 *             if the file operation fails or the file is not a valid
+	 *             index
+	 */
+	public static MappedCountIndex map(String filename, boolean verify)
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(filename + " is too large to map");
+			ByteBuffer all = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			need(all, 0, 0, 12, filename);
+			if (all.getInt() != MAGIC)
+				throw new IOException(filename + " is not a count index");
+			if (all.getInt() != VERSION)
+				throw new IOException(filename
+						+ " was written by another version");
+			int count = all.getInt();
+			need(all, count, 2, 24, filename);
+			char[] symbols = new char[count];
+			for (int i = 0; i < symbols.length; i++)
+				symbols[i] = all.getChar();
+			int k = all.getInt();
+			all.getInt(); // the number of sequences
+			all.getLong(); // their total length
+			long fingerprint = all.getLong();
+			need(all, k, 4, 16, filename);
+			int[] sizes = new int[k];
+			long length = 0;
+			for (int L = 0; L < k; L++) {
+				sizes[L] = all.getInt();
+				length += sizes[L] * 16L;
+			}
+			long tablesCRC = all.getLong();
+
+			CRC32 crc = new CRC32();
+			ByteBuffer header = all.duplicate();
+			header.flip();
+			crc.update(header);
+			if (all.getLong() != crc.getValue())
+				throw new IOException(filename + " has a damaged header");
+			if (all.remaining() != length)
+				throw new IOException(filename + " is truncated");
+			ByteBuffer tables = all.slice();
+			if (verify) {
+				crc.reset();
+				crc.update(tables.duplicate()); // streams through the mapping
+				if (crc.getValue() != tablesCRC)
+					throw new IOException(filename + " has damaged tables");
+			}
+			return new MappedCountIndex(new Alphabet(symbols), k,
+					fingerprint, sizes, tables);
+		} finally {
+			file.close(); // the mapping stays valid
+		}
+	}
+
+	/**
+	 * Checks that the rest of a header is in the file before it is read: n
+	 * items of some size, followed by more bytes
+	 *
+	 * @throws IOException
+	 *             if n is negative or the header runs past the end
+	 */
+	private static void need(ByteBuffer all, int n, int size, int more,
+			String filename) throws IOException {
+		if (n < 0)
+			throw new IOException(filename + " has a damaged header");
+		if ((long) n * size + more > all.remaining())
+			throw new IOException(filename + " is truncated");
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getCount(int[] path, int level) {
+		int i = find(path, level);
+		return i < 0 ? 0 : tables.getInt(offsets[level - 1] + sizes[level - 1]
+				* 8 + i * 4);
+	}
+
+	public int getSupport(int[] path, int level) {
+		int i = find(path, level);
+		return i < 0 ? 0 : tables.getInt(offsets[level - 1] + sizes[level - 1]
+				* 12 + i * 4);
+	}
+
+	/**
+	 * Finds the position of a prefix in the table of its level
+	 *
+	 * @return the position, or -1 if the prefix does not occur
+	 */
+	private int find(int[] path, int level) {
+		if (level < 1 || level > depth)
+			return -1;
+		long code = 0;
+		for (int i = 0; i < level; i++)
+			code = (code << bits) | path[i];
+		int base = offsets[level - 1];
+		int lo = 0, hi = sizes[level - 1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long found = tables.getLong(base + mid * 8);
+			if (found < code)
+				lo = mid + 1;
+			else if (found > code)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+}
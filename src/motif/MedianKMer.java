@@ -1,6 +1,11 @@
 package motif;
 
+import java.io.BufferedWriter;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.util.Arrays;
 
 /**
@@ -8,8 +13,37 @@ import java.util.Arrays;
  */
 public class MedianKMer {
 
-	private final DNASequence[] seqs; // the sequence data that are searched
+	private final SequenceStore store; // the sequence data that are searched
 	private final Alphabet alpha; // the alphabet that each of the sequences uses
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private SearchStats stats; // counters of the last search
+	private int quorum = 0; // sum over the best q sequences, 0 for all
+	private CountIndex index; // the count index of the last trie search
+	private CountIndex.Ordering ordering = CountIndex.Ordering.COUNT;
+	private NeighborhoodIndex neighborhood; // d-neighbourhood counts, or null
+	private String indexFile; // where the count index is kept, or null
+	private long sketchBytes; // memory of an approximate index, 0 for exact
+	private EnginePlanner planner; // chooses engines, made on first use
+	private EnginePlanner.Plan plan; // the decision of the last AUTO search
+	private NeighborhoodIndex planned; // neighbourhood counts for AUTO
+	private boolean dynamic; // branch-and-bound fixes positions in any order
+	private HintedScorer hinted; // scores prefixes in the recursive searches
+
+	/**
+	 * The number of k-mers proposed by the neighbourhood counts as a first
+	 * incumbent
+	 */
+	public static final int SEEDS = 16;
+
+	/**
+	 * The available search strategies
+	 */
+	public enum Engine {
+		NAIVE, // branch-and-bound in alphabet order
+		TRIE, // branch-and-bound ordered by k-mer frequencies
+		EXHAUSTIVE, // Gray-code enumeration of all k-mers (small k only)
+		AUTO // whichever the planner expects to finish first
+	}
 
 	/**
 	 * Constructs an instance of the class, prepares for search and checks for
@@ -20,15 +54,18 @@ public class MedianKMer {
 	 *            the sequence data
 	 */
 	public MedianKMer(DNASequence[] seqs) {
-		this.seqs = seqs;
-		Alphabet tmp = null;
-		for (DNASequence seq : seqs)
-			if (tmp == null)
-				tmp = seq.getAlphabet();
-			else if (tmp != seq.getAlphabet())
-				throw new RuntimeException(
-						"Sequences are using different alphabets");
-		this.alpha = tmp;
+		this(SequenceStore.fromSequences(seqs));
+	}
+
+	/**
+	 * Constructs an instance that searches the sequences of a store in place.
+	 * 
+	 * @param store
+	 *            the sequence data
+	 */
+	public MedianKMer(SequenceStore store) {
+		this.store = store;
+		this.alpha = store.getAlphabet();
 	}
 
 	/**
@@ -42,20 +79,284 @@ public class MedianKMer {
 	 *         distance
 	 */
 	public Distance findMedianKMer(int k) {
-		TrieKMer trie = new TrieKMer(seqs, k);
-		
-		//TESTS
-		//KMer p = new KMer(alpha, new int[] {3, 1, 2, 2, 3}); // 'TCGGT'
-		//KMer s = new KMer(alpha, new int[] {1}); // 'C'
-		//KMer p = new KMer(alpha, new int[] {0, 2}); // 'AG'
-		//KMer s = new KMer(alpha, new int[] {2}); // 'G'
-		//
-		//int[][] ds = getExtDists(p, s);
-		//System.out.println(Arrays.deepToString(ds) + " -> " + getMedianDistance(ds));
-		//END TESTS
-		
-		return findMedianKMer(null, k, null); // Naive Branch and Bound
-		//return findMedianKMer(null, null, k, null, trie); // Trie Branch and Bound
+		return findMedianKMer(k, Engine.NAIVE); // Naive Branch and Bound
+	}
+
+	/**
+	 * Start search for median k-mer of a specified length using the specified
+	 * search strategy.
+	 * 
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @param engine
+	 *            the search strategy
+	 * @return the minimum distance and the median k-mer that rendered that
+	 *         distance
+	 */
+	public Distance findMedianKMer(int k, Engine engine) {
+		switch (engine) {
+		case AUTO:
+			return findPlanned(k);
+		case EXHAUSTIVE:
+			ExhaustiveKMer ex = new ExhaustiveKMer(store, k);
+			if (quorum > 0)
+				ex.setQuorum(quorum);
+			ex.search(threads, false);
+			stats = null;
+			return new Distance(ex.getDistance(), ex.getKMer());
+		default:
+			CountIndex ranking = null; // alphabet order
+			if (engine == Engine.TRIE)
+				ranking = neighborhood != null ? neighborhood : getIndex(k);
+			WindowSearch search = new WindowSearch(store, k, ranking);
+			if (quorum > 0)
+				search.setQuorum(quorum);
+			search.setOrdering(ordering);
+			search.setDynamic(dynamic);
+			search.setThreads(threads);
+			if (engine == Engine.TRIE && neighborhood != null)
+				for (KMer seed : neighborhood.getCandidates(k, SEEDS))
+					search.offer(seed);
+			search.search();
+			stats = search.getStats();
+			return new Distance(search.getDistance(), search.getKMer());
+		}
+	}
+
+	/**
+	 * Start search for the median k-mer of a specified length under edit
+	 * distance, where a k-mer matches a sequence with substitutions,
+	 * insertions and deletions.
+	 * 
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @param engine
+	 *            NAIVE to visit the extensions with the lowest bound first,
+	 *            TRIE to rank them by the count index
+	 * @return the minimum distance and the median k-mer that rendered that
+	 *         distance
+	 * @see EditSearch
+	 */
+	public Distance findEditMedianKMer(int k, Engine engine) {
+		CountIndex ranking = null;
+		if (engine == Engine.TRIE)
+			ranking = neighborhood != null ? neighborhood : getIndex(k);
+		else if (engine != Engine.NAIVE)
+			throw new RuntimeException("Edit distance needs the naive or trie engine");
+		EditSearch search = new EditSearch(store, k, ranking);
+		if (quorum > 0)
+			search.setQuorum(quorum);
+		search.setOrdering(ordering);
+		search.search();
+		stats = search.getStats();
+		return new Distance(search.getDistance(), search.getKMer());
+	}
+
+	/**
+	 * Prepares the discovery of several distinct motifs with the settings of
+	 * this instance. A trie engine ranks extensions by the count index, whose
+	 * counts the discovery decrements as it masks windows; the index is
+	 * therefore handed over and no longer kept for later searches.
+	 * 
+	 * @param k
+	 *            the length of the motifs
+	 * @param engine
+	 *            NAIVE to visit extensions in alphabet order, otherwise
+	 *            ranked by the count index
+	 * @return the discovery, to be run for a number of motifs
+	 * @see MotifDiscovery
+	 */
+	public MotifDiscovery discover(int k, Engine engine) {
+		CountIndex ranking = null;
+		if (engine != Engine.NAIVE) {
+			ranking = getIndex(k);
+			index = null;
+		}
+		MotifDiscovery discovery = new MotifDiscovery(store, k, ranking);
+		discovery.setQuorum(quorum);
+		discovery.setOrdering(ordering);
+		discovery.setDynamic(dynamic);
+		discovery.setThreads(threads);
+		return discovery;
+	}
+
+	/**
+	 * Runs the engine chosen by the planner and records the time it took
+	 */
+	private Distance findPlanned(int k) {
+		EnginePlanner.Plan chosen = getPlanner().plan(k, threads);
+		NeighborhoodIndex requested = neighborhood;
+		if (chosen.getChoice() == EnginePlanner.Choice.NEIGHBORHOOD) {
+			if (planned == null)
+				planned = new NeighborhoodIndex(store, chosen.getChoice()
+						.getMismatches());
+			neighborhood = planned;
+		} else
+			neighborhood = null;
+		try {
+			long start = System.currentTimeMillis();
+			Distance found = findMedianKMer(k, chosen.getChoice().getEngine());
+			chosen.setActual(System.currentTimeMillis() - start);
+			plan = chosen;
+			return found;
+		} finally {
+			neighborhood = requested;
+		}
+	}
+
+	/**
+	 * Makes branch-and-bound searches fix, at each node, the free position
+	 * that varies most in the best-matching windows instead of the
+	 * leftmost one.
+	 * 
+	 * @param dynamic
+	 *            true to choose positions per node
+	 */
+	public void setDynamic(boolean dynamic) {
+		this.dynamic = dynamic;
+	}
+
+	/**
+	 * Retrieves the planner that chooses the engine of AUTO searches
+	 * 
+	 * @return the planner, e.g. to calibrate it
+	 */
+	public EnginePlanner getPlanner() {
+		if (planner == null)
+			planner = new EnginePlanner(store);
+		return planner;
+	}
+
+	/**
+	 * @return the decision of the last AUTO search, with predicted and actual
+	 *         times, or null if there was none
+	 */
+	public EnginePlanner.Plan getPlan() {
+		return plan;
+	}
+
+	/**
+	 * Makes searches minimise the sum over the q best-matching sequences
+	 * rather than over all sequences, so that sequences without the motif do
+	 * not dominate the distance.
+	 * 
+	 * @param q
+	 *            the quorum, or 0 to sum over all sequences
+	 */
+	public void setQuorum(int q) {
+		if (q < 0)
+			throw new RuntimeException("Invalid quorum " + q);
+		this.quorum = q;
+	}
+
+	/**
+	 * Retrieves the count index of depth k, building it unless the current
+	 * index already has that depth. With an index file, the index is mapped
+	 * from the file if it was written for these sequences and depth, and
+	 * otherwise built and written to it. With a sketch size, an approximate
+	 * index of that size is built instead.
+	 * 
+	 * @param k
+	 *            the depth of the index
+	 * @return the count index
+	 */
+	public CountIndex getIndex(int k) {
+		if (index == null || index.getDepth() != k) {
+			if (sketchBytes > 0)
+				index = new SketchCountIndex(store, k, sketchBytes, true);
+			else if (indexFile == null)
+				index = new TrieKMer(store, k, threads);
+			else {
+				try {
+					index = MappedCountIndex.open(store, k, indexFile, threads);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Keeps the count index of trie searches in a file, so that later runs
+	 * over the same sequences map it instead of building it.
+	 * 
+	 * @param filename
+	 *            the name of the index file, or null to build in memory
+	 * @see MappedCountIndex
+	 */
+	public void setIndexFile(String filename) {
+		this.indexFile = filename;
+	}
+
+	/**
+	 * Makes trie searches rank extensions by the counts of a count-min sketch
+	 * (with conservative update) of fixed size instead of an exact trie, for
+	 * sequence sets whose trie would not fit in memory.
+	 * 
+	 * @param bytes
+	 *            the memory of the sketch, or 0 to use exact counts
+	 * @see SketchCountIndex
+	 */
+	public void setSketch(long bytes) {
+		this.sketchBytes = bytes;
+	}
+
+	/**
+	 * Supplies a count index that was built earlier over the same sequences
+	 * (e.g. kept by a {@link DatasetCache}), so that trie searches of the same
+	 * depth do not rebuild it.
+	 * 
+	 * @param index
+	 *            the count index
+	 */
+	public void setIndex(CountIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Makes trie searches rank extensions by how many windows (or sequences)
+	 * match them with up to d mismatches, and start from the best k-mers
+	 * proposed by those counts. The counts are computed once per level and
+	 * kept for later searches.
+	 * 
+	 * @param d
+	 *            the number of mismatches, or -1 to use exact counts
+	 */
+	public void setNeighborhood(int d) {
+		if (d < 0)
+			neighborhood = null;
+		else if (neighborhood == null || neighborhood.getMismatches() != d)
+			neighborhood = new NeighborhoodIndex(store, d);
+	}
+
+	/**
+	 * Sets the policy by which trie searches rank the extensions of a prefix.
+	 * 
+	 * @param ordering
+	 *            the policy (COUNT by default)
+	 */
+	public void setOrdering(CountIndex.Ordering ordering) {
+		this.ordering = ordering;
+	}
+
+	/**
+	 * Retrieves the counters of the last branch-and-bound search.
+	 * 
+	 * @return the counters, or null if the last search did not collect any
+	 */
+	public SearchStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Sets the number of threads that engines may use.
+	 * 
+	 * @param threads
+	 *            the number of threads (at least 1)
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads < 1 ? 1 : threads;
 	}
 	
 	/**
@@ -67,16 +368,15 @@ public class MedianKMer {
 
 		int distance;
 		if (p_dist == null) {
-			distance = 0;
-			/* Find distance for unknown prefix */
-			for (DNASequence seq : this.seqs) {
-				distance += getDistance(seq, prefix);
-			}
+			/* Find distance for unknown prefix, as far as it can beat old_best */
+			distance = getHinted().score(prefix.getKMer(), prefix.getLevel(),
+					prefix.isComplete() || old_best == null ? Integer.MAX_VALUE
+							: old_best.actual);
 		} else {
 			distance = getMedianDistance(p_dist);
 		}
 		
-		Distance best_dist = new Distance(k * this.seqs.length + 1, prefix);
+		Distance best_dist = new Distance(k * store.getCount() + 1, prefix);
 
 		if (prefix.isComplete()) {
 			return new Distance(distance, prefix);
@@ -114,11 +414,11 @@ public class MedianKMer {
 	public int[][] getExtDists(KMer prefix, KMer suffix) {
 		/* Initialize everything */
 		int prefix_size = prefix.getLevel();
-		int[][] prefix_dists = new int[seqs.length][];
-		int[][] suffix_dists = new int[seqs.length][];
-		for (int i = 0; i < seqs.length; i++) {
-			prefix_dists[i] = getDistances(seqs[i], prefix);
-			suffix_dists[i] = getDistances(seqs[i], suffix);
+		int[][] prefix_dists = new int[store.getCount()][];
+		int[][] suffix_dists = new int[store.getCount()][];
+		for (int i = 0; i < store.getCount(); i++) {
+			prefix_dists[i] = getDistances(store, i, prefix);
+			suffix_dists[i] = getDistances(store, i, suffix);
 		}
 		
 		/* How many distance arrays to compare */
@@ -143,17 +443,40 @@ public class MedianKMer {
 	}
 	
 	public KMer[] sortedExtensions(KMer prefix, TrieKMer trie) {
+		return sortedExtensions(prefix, trie, CountIndex.Ordering.COUNT);
+	}
+
+	/**
+	 * Sorts the extensions of a prefix by their score under an ordering
+	 * policy, highest first (ties keep alphabet order).
+	 * 
+	 * @param prefix
+	 *            the prefix to extend
+	 * @param index
+	 *            the prefix statistics
+	 * @param ordering
+	 *            the policy
+	 * @return the extensions in the order they should be explored
+	 */
+	public KMer[] sortedExtensions(KMer prefix, CountIndex index,
+			CountIndex.Ordering ordering) {
 		KMer[] sorted = prefix.getExtensions().clone();
+		long[] scores = new long[sorted.length];
+		for (int i = 0; i < sorted.length; i++)
+			scores[i] = ordering.score(index, sorted[i].getKMer(), sorted[i]
+					.getLevel());
 		
 		for (int i = 1; i < sorted.length; i++){
 			  int j = i;
 			  KMer current = sorted[i];
-			  while ((j > 0) && 
-					  (trie.getCount(sorted[j-1]) < trie.getCount(current))){
+			  long score = scores[i];
+			  while ((j > 0) && (scores[j-1] < score)){
 			    sorted[j] = sorted[j-1];
+			    scores[j] = scores[j-1];
 			    j--;
 			  }
 			  sorted[j] = current;
+			  scores[j] = score;
 		    }
 			
 			return sorted;
@@ -180,20 +503,16 @@ public class MedianKMer {
 			prefix = new KMer(alpha, k); // empty k-mer
 
 		if (prefix.isComplete()) {
-			int distance = 0;
-			for (DNASequence seq : this.seqs) {
-				distance += getDistance(seq, prefix);
-			}
-			
+			int distance = getHinted().score(prefix.getKMer(), k,
+					Integer.MAX_VALUE);
 			return new Distance(distance, prefix);
 		}
-		Distance best_dist = new Distance(k * this.seqs.length + 1, prefix);
+		Distance best_dist = new Distance(k * store.getCount() + 1, prefix);
 		
 		if( old_best!=null) {
-			int distance = 0;	// total distance over all DNA sequences
-			
-			for (DNASequence sequence : this.seqs)
-				distance += getDistance(sequence, prefix);
+			/* total distance over all DNA sequences, if below old_best */
+			int distance = getHinted().score(prefix.getKMer(),
+					prefix.getLevel(), old_best.actual);
 			
 			if (distance >= old_best.actual) {
 				return old_best;
@@ -233,13 +552,14 @@ public class MedianKMer {
 	public static int[] getDistances(DNASequence seq, KMer word) {
 		int N = seq.getLength();
 		int K = word.getLevel();
+		Alphabet alpha = seq.getAlphabet();
 		int[] distances = new int[N - K + 1];
 		
 		for (int i = 0; i < (N - K + 1); i++) {
 			int count = 0;
 			
 			for (int j = 0; j < K; j++) {
-				if (seq.getSymbolChar(i + j) != word.toString().charAt(j)) {
+				if (!alpha.matches(seq.getSymbolIndex(i + j), word.getKMer()[j])) {
 					count++;
 				}
 			}
@@ -273,6 +593,7 @@ public class MedianKMer {
 	public static int getDistance(DNASequence seq, KMer word) {
 		int N = seq.getLength();
 		int K = word.getLevel();
+		Alphabet alpha = seq.getAlphabet();
 		int mismatches = K;
 		
 		for (int i = 0; i < (N - K + 1); i++) {
@@ -280,7 +601,7 @@ public class MedianKMer {
 			
 			for (int j = 0; j < K; j++) {
 				
-				if (seq.getSymbolIndex(i + j) != word.getKMer()[j]) {
+				if (!alpha.matches(seq.getSymbolIndex(i + j), word.getKMer()[j])) {
 					if (mismatches < count) break;
 					count++;
 				}
@@ -290,6 +611,108 @@ public class MedianKMer {
 		return mismatches;
 	}
 
+	/**
+	 * Determines the Hamming distance of a word aligned to each position of a
+	 * sequence in a store.
+	 * 
+	 * @param store
+	 *            the sequences
+	 * @param s
+	 *            the number of the sequence that is searched
+	 * @param word
+	 *            the word that is aligned to the sequence
+	 * @return an array with all the Hamming distances
+	 * @see #getDistances(DNASequence, KMer)
+	 */
+	public static int[] getDistances(SequenceStore store, int s, KMer word) {
+		int N = store.getLength(s);
+		int K = word.getLevel();
+		int[] symbols = word.getKMer();
+		Alphabet alpha = store.getAlphabet();
+		long start = store.getStart(s);
+		int[] distances = new int[N - K + 1];
+
+		for (int i = 0; i < (N - K + 1); i++) {
+			int count = 0;
+			for (int j = 0; j < K; j++)
+				if (!alpha.matches(store.symbolAt(start + i + j), symbols[j]))
+					count++;
+			distances[i] = count;
+		}
+		return distances;
+	}
+
+	/**
+	 * Determines the minimum Hamming distance of a word aligned to a sequence
+	 * in a store.
+	 * 
+	 * @param store
+	 *            the sequences
+	 * @param s
+	 *            the number of the sequence that is searched
+	 * @param word
+	 *            the word that is aligned to the sequence
+	 * @return the Hamming distance between the aligned word and the sequence
+	 * @see #getDistance(DNASequence, KMer)
+	 */
+	public static int getDistance(SequenceStore store, int s, KMer word) {
+		int N = store.getLength(s);
+		int K = word.getLevel();
+		int[] symbols = word.getKMer();
+		Alphabet alpha = store.getAlphabet();
+		long start = store.getStart(s);
+		int mismatches = K;
+
+		for (int i = 0; i < (N - K + 1); i++) {
+			int count = 0;
+			for (int j = 0; j < K && count < mismatches; j++)
+				if (!alpha.matches(store.symbolAt(start + i + j), symbols[j]))
+					count++;
+			mismatches = count < mismatches ? count : mismatches;
+		}
+		return mismatches;
+	}
+
+	/**
+	 * Determines the fewest substitutions, insertions and deletions that turn
+	 * a word into some substring of a sequence in a store (its approximate
+	 * match with indels).
+	 * 
+	 * @param store
+	 *            the sequences
+	 * @param s
+	 *            the number of the sequence that is searched
+	 * @param word
+	 *            the word that is matched to the sequence
+	 * @return the edit distance of the best match
+	 * @see EditSearch
+	 */
+	public static int getEditDistance(SequenceStore store, int s, KMer word) {
+		int N = store.getLength(s);
+		int K = word.getLevel();
+		int[] symbols = word.getKMer();
+		Alphabet alpha = store.getAlphabet();
+		long start = store.getStart(s);
+
+		/* column[i]: the first i symbols against the best substring so far */
+		int[] column = new int[K + 1];
+		for (int i = 0; i <= K; i++)
+			column[i] = i;
+		int best = K;
+		for (int j = 0; j < N; j++) {
+			int diagonal = 0, symbol = store.symbolAt(start + j); // row 0 is free
+			for (int i = 1; i <= K; i++) {
+				int d = Math.min(diagonal
+						+ (alpha.matches(symbols[i - 1], symbol) ? 0 : 1), Math.min(
+						column[i] + 1, column[i - 1] + 1));
+				diagonal = column[i];
+				column[i] = d;
+			}
+			best = Math.min(best, column[K]);
+		}
+		return best;
+	}
+
 	/**
 	 * Helper method that finds the position in a distance array that has the
 	 * smallest distance. Do not modify the "signature" of this constructor.
@@ -315,6 +738,24 @@ public class MedianKMer {
 		return pos;
 	}
 
+	/**
+	 * @return the scorer of the recursive searches, made on first use
+	 */
+	private HintedScorer getHinted() {
+		if (hinted == null)
+			hinted = new HintedScorer(store);
+		return hinted;
+	}
+
+	/**
+	 * Retrieves the sequences that are searched.
+	 * 
+	 * @return the sequence store
+	 */
+	public SequenceStore getStore() {
+		return store;
+	}
+
 	/**
 	 * Retrieves the alphabet that applies to this class.
 	 * 
@@ -331,25 +772,39 @@ public class MedianKMer {
 	 * @param kmer
 	 */
 	public void printReport(KMer kmer) {
-		System.out.println("REPORT for " + kmer);
+		printReport(kmer, System.out);
+	}
+
+	/**
+	 * Prints the report of {@link #printReport(KMer)} to the specified stream.
+	 * 
+	 * @param kmer
+	 *            the query k-mer
+	 * @param out
+	 *            the destination
+	 */
+	public void printReport(KMer kmer, PrintStream out) {
+		out.println("REPORT for " + kmer);
 		int[][] counts = new int[kmer.getK()][alpha.getSize()];
 		int total = 0;
-		for (int i = 0; i < seqs.length; i++) {
-			int[] d = getDistances(seqs[i], kmer);
+		for (int i = 0; i < store.getCount(); i++) {
+			int[] d = getDistances(store, i, kmer);
 			int pos = getMinPosition(d);
-			total += d[pos];
-			KMer found = new KMer(seqs[i], pos, kmer.getK());
-			System.out.println(found + "\t" + d[pos] + "\t@ " + pos + "\tin "
-					+ seqs[i]);
+			int copies = store.getWeight(i);
+			total += copies * d[pos];
+			KMer found = new KMer(store, i, pos, kmer.getK());
+			out.println(found + "\t" + d[pos] + "\t@ " + pos + "\tin "
+					+ store.toString(i) + (copies > 1 ? " x" + copies : ""));
 			for (int j = 0; j < found.getK(); j++)
-				counts[j][found.getKMer()[j]]++;
+				if (found.getKMer()[j] < alpha.getSize()) // not degenerate
+					counts[j][found.getKMer()[j]] += copies;
 		}
-		System.out.println("Distance: " + total);
-		System.out.println("Counts (can use as TomTom input): ");
+		out.println("Distance: " + total);
+		out.println("Counts (can use as TomTom input): ");
 		for (int i = 0; i < alpha.getSize(); i++) {
 			for (int j = 0; j < counts.length; j++)
-				System.out.print(String.format("%5d", counts[j][i]));
-			System.out.println();
+				out.print(String.format("%5d", counts[j][i]));
+			out.println();
 		}
 	}
 
@@ -358,6 +813,26 @@ public class MedianKMer {
 	 * -f <filename> 
 	 * -k <length-of-k-mer> 
 	 * -q <k-mer> 
+	 * -e <engine> 
+	 * -t <threads> 
+	 * -o <table-file> 
+	 * -v 
+	 * -s <store-file> 
+	 * -a <seed> 
+	 * -z <quorum> 
+	 * -r <ordering> 
+	 * -n <mismatches> 
+	 * -x <index-file> 
+	 * -c <sketch-MB> 
+	 * -p <shuffles> 
+	 * -w <seed> 
+	 * -b <calibration-file> 
+	 * -m <query-file> 
+	 * -d 
+	 * -g <motifs> 
+	 * -i 
+	 * -y <unknown> 
+	 * -l <alphabet> 
 	 * See usage message for more information.
 	 * 
 	 * @param args
@@ -367,7 +842,28 @@ public class MedianKMer {
 		int k = 10; // default length of k-mer
 		String file = null; // FASTA file
 		String kstr = null; // user-specified k-mer
-		DNASequence[] seqs = null; // loaded sequences
+		Engine engine = Engine.NAIVE; // search strategy
+		int threads = 0; // number of threads (0 for all processors)
+		String table = null; // file for the exhaustive distance table
+		boolean verbose = false; // print search statistics
+		String save = null; // file to save the packed sequences to
+		Long seed = null; // seed for the approximate (sampling) search
+		int quorum = 0; // number of sequences summed (0 for all)
+		CountIndex.Ordering ordering = CountIndex.Ordering.COUNT; // trie order
+		int mismatches = -1; // neighbourhood counts for the trie (-1: exact)
+		String indexFile = null; // file for the trie's count index
+		int sketch = 0; // MB of an approximate count index (0: exact)
+		int shuffles = 0; // shuffles for the significance test (0: none)
+		long shuffleSeed = 1; // seed for drawing the shuffles
+		String calibration = null; // runs that the planner is fitted to
+		String queries = null; // file of k-mers to report on
+		boolean dynamic = false; // fix positions in the most informative order
+		boolean unique = false; // collapse identical sequences into weights
+		int motifs = 0; // distinct motifs found by masking (0: just one)
+		boolean indels = false; // edit distance instead of mismatches
+		String letters = null; // dna or protein, null for dna
+		String unknown = null; // how N (or X) is matched, null for no codes
+		SequenceStore seqs = null; // loaded sequences
 
 		// parse the parameters
 		for (int i = 0; i < args.length; i++) {
@@ -389,6 +885,87 @@ public class MedianKMer {
 					if (i + 1 < args.length)
 						kstr = args[++i];
 					break;
+				case 'e':
+					if (i + 1 < args.length)
+						engine = Engine.valueOf(args[++i].toUpperCase());
+					break;
+				case 't':
+					if (i + 1 < args.length)
+						threads = Integer.parseInt(args[++i]);
+					break;
+				case 'o':
+					if (i + 1 < args.length)
+						table = args[++i];
+					break;
+				case 'v':
+					verbose = true;
+					break;
+				case 's':
+					if (i + 1 < args.length)
+						save = args[++i];
+					break;
+				case 'a':
+					if (i + 1 < args.length)
+						seed = Long.parseLong(args[++i]);
+					break;
+				case 'z':
+					if (i + 1 < args.length)
+						quorum = Integer.parseInt(args[++i]);
+					break;
+				case 'r':
+					if (i + 1 < args.length)
+						ordering = CountIndex.Ordering.valueOf(args[++i]
+								.toUpperCase());
+					break;
+				case 'n':
+					if (i + 1 < args.length)
+						mismatches = Integer.parseInt(args[++i]);
+					break;
+				case 'x':
+					if (i + 1 < args.length)
+						indexFile = args[++i];
+					break;
+				case 'c':
+					if (i + 1 < args.length)
+						sketch = Integer.parseInt(args[++i]);
+					break;
+				case 'p':
+					if (i + 1 < args.length)
+						shuffles = Integer.parseInt(args[++i]);
+					break;
+				case 'w':
+					if (i + 1 < args.length)
+						shuffleSeed = Long.parseLong(args[++i]);
+					break;
+				case 'b':
+					if (i + 1 < args.length)
+						calibration = args[++i];
+					break;
+				case 'd':
+					dynamic = true;
+					break;
+				case 'm':
+					if (i + 1 < args.length)
+						queries = args[++i];
+					break;
+				case 'u':
+					unique = true;
+					break;
+				case 'g':
+					if (i + 1 < args.length)
+						motifs = Integer.parseInt(args[++i]);
+					break;
+				case 'i':
+					indels = true;
+					break;
+				case 'y':
+					if (i + 1 < args.length)
+						unknown = args[++i];
+					break;
+				case 'l':
+					if (i + 1 < args.length)
+						letters = args[++i];
+					break;
 				default:
 					System.err.println("Unknown option \"-" + args[i].charAt(1)
 							+ "\"");
@@ -396,23 +973,93 @@ public class MedianKMer {
 			}
 		}
 
-		if (file == null && kstr == null) {
+		if (file == null && kstr == null && queries == null) {
 			System.err
-					.println("Usage: MedianKMer -f <filename> { -q <query-k-mer> | -k <length> }");
-			System.err.println("where <filename> is a FASTA file");
+					.println("Usage: MedianKMer -f <filename> { -q <query-k-mer> | -m <query-file> | -k <length> [-e <engine>] [-t <threads>] [-o <table-file>] [-v] [-s <store-file>] [-a <seed>] [-z <quorum>] [-r <ordering>] [-n <mismatches>] [-x <index-file>] [-c <sketch-MB>] [-p <shuffles>] [-w <seed>] [-b <calibration-file>] [-d] [-u] [-g <motifs>] [-i] [-y <unknown>] [-l <alphabet>] }");
+			System.err.println("where <filename> is a FASTA file or a saved store");
 			System.err
 					.println("-q will report on matches with the specified <query-k-mer> (-qs produces a short report)");
+			System.err
+					.println("-m will report on the k-mers in <query-file> (one per line) in a single pass");
 			System.err
 					.println("-k will search for the best median k-mer where k=<length>");
+			System.err
+					.println("-e selects the search engine: naive, trie, exhaustive or auto (planned)");
+			System.err
+					.println("-t sets the number of threads (default: all processors)");
+			System.err
+					.println("-o writes the distance of every k-mer to <table-file> (exhaustive)");
+			System.err
+					.println("-v prints statistics of the search");
+			System.err
+					.println("-s saves the packed sequences to <store-file>, which can later be given to -f");
+			System.err
+					.println("-a searches random subsamples drawn with <seed> and verifies the winners (approximate)");
+			System.err
+					.println("-z only sums the distances of the best <quorum> sequences (ZOOPS-style)");
+			System.err
+					.println("-r ranks extensions (trie) by count, support or combined (support, then count)");
+			System.err
+					.println("-n ranks extensions (trie) by matches within <mismatches> and starts from the best of them");
+			System.err
+					.println("-x keeps the count index (trie) in <index-file>, built on the first run and mapped on later runs");
+			System.err
+					.println("-c ranks extensions (trie) by approximate counts held in <sketch-MB> megabytes");
+			System.err
+					.println("-p tests the distance found against <shuffles> dinucleotide shuffles of the sequences");
+			System.err
+					.println("-w draws the shuffles of -p with <seed> (default: 1)");
+			System.err
+					.println("-d fixes k-mer positions that vary most first (naive, trie) instead of left to right");
+			System.err
+					.println("-u searches each distinct sequence once, weighted by its number of copies");
+			System.err
+					.println("-g finds <motifs> distinct motifs, masking the best windows of each before the next (naive, trie)");
+			System.err
+					.println("-i searches under edit distance, counting insertions and deletions as well (naive, trie)");
+			System.err
+					.println("-y reads IUPAC codes in sequences and queries, where N counts as a mismatch, or is skipped if <unknown> is skip");
+			System.err
+					.println("-l selects the <alphabet> of the sequences: dna (default) or protein, whose codes for -y are B, Z, J and X");
+			System.err
+					.println("-b fits the planner of -e auto to the runs in <calibration-file> (see the benchmark)");
 			System.exit(1);
 		}
 
+		/* The alphabet of the sequences and queries */
+		Alphabet alphabet = Alphabet.forName(letters, unknown);
+
 		if (file != null) {
 			try {
-				seqs = DNASequence.readFile(new Alphabet(), file); // read a
+				long loading = System.nanoTime();
+				seqs = SequenceStore.open(alphabet, file); // read a
 				// FASTA
-				// file with
+				// file (or map a saved store) with
 				// sequences
+				double ms = Math.max(1, System.nanoTime() - loading) / 1e6;
+				double mb = new java.io.File(file).length() / (double) (1 << 20);
+				double symbols = seqs.getTotalLength() / (double) (1 << 20);
+				System.out.println("Loaded " + seqs.getCount() + " sequences ("
+						+ String.format("%.1f", symbols) + " M symbols) from "
+						+ String.format("%.1f", mb) + " MB in "
+						+ String.format("%.0f", ms) + " ms: "
+						+ String.format("%.1f", mb * 1000 / ms) + " MB/s of file, "
+						+ String.format("%.1f", symbols * 1000 / ms)
+						+ " M symbols/s");
+				if (save != null)
+					seqs.write(save);
+				if (unique) {
+					SequenceStore distinct = seqs.deduplicate();
+					int removed = seqs.getCount() - distinct.getCount();
+					long windows = seqs.getTotalLength()
+							- distinct.getTotalLength();
+					System.out.println("Deduplicated: " + removed + " of "
+							+ seqs.getCount() + " sequences removed ("
+							+ String.format("%.1f", 100.0 * windows
+									/ Math.max(1, seqs.getTotalLength()))
+							+ "% of the symbols)");
+					seqs = distinct;
+				}
 			} catch (IOException e) {
 				System.err.println(e.getMessage());
 				System.exit(2);
@@ -423,22 +1070,98 @@ public class MedianKMer {
 				+ new java.util.Date(System.currentTimeMillis()));
 		MedianKMer ms = null;
 
-		if (seqs != null)
+		if (seqs != null) {
 			ms = new MedianKMer(seqs);
-		else {
+			if (threads > 0)
+				ms.setThreads(threads);
+			ms.setQuorum(quorum);
+			ms.setOrdering(ordering);
+			ms.setNeighborhood(mismatches);
+			ms.setIndexFile(indexFile);
+			ms.setSketch(sketch * (1L << 20));
+			ms.setDynamic(dynamic);
+			if (calibration != null) {
+				try {
+					ms.getPlanner().calibrate(calibration);
+				} catch (IOException e) {
+					System.err.println(e.getMessage());
+					System.exit(2);
+				}
+			}
+		} else {
 			System.err
 					.println("Usage: MedianKMer -f <filename> { -q[s] <query-k-mer> | -k <length> }");
 			System.exit(3);
 		}
 
-		if (kstr != null) // query
+		if (queries != null) // many queries
+		{
+			try {
+				QueryReport report = new QueryReport(seqs);
+				report.run(QueryReport.readQueries(ms.getAlphabet(), queries),
+						ms.threads);
+				Writer out = new BufferedWriter(new OutputStreamWriter(
+						System.out), 1 << 16);
+				report.write(out);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(2);
+			}
+		} else if (kstr != null) // query
 		{
 			ms.printReport(new KMer(ms.getAlphabet(), ms.getAlphabet().toIndex(
 					kstr.toCharArray())));
+		} else if (seed != null) // approximate search on subsamples
+		{
+			SamplingSearch approx = new SamplingSearch(seqs, k, seed);
+			approx.setQuorum(quorum);
+			approx.search(ms.threads);
+			System.out.println(approx);
+		} else if (table != null) // exhaustive search keeping all distances
+		{
+			ExhaustiveKMer ex = new ExhaustiveKMer(seqs, k);
+			if (quorum > 0)
+				ex.setQuorum(quorum);
+			ex.search(ms.threads, true);
+			try {
+				FileWriter fw = new FileWriter(table);
+				try {
+					ex.writeTable(fw);
+				} finally {
+					fw.close();
+				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(2);
+			}
+			System.out.println(ms.new Distance(ex.getDistance(), ex.getKMer()));
+		} else if (motifs > 0) // several motifs by masking
+		{
+			MotifDiscovery discovery = ms.discover(k, engine);
+			discovery.run(motifs);
+			System.out.print(discovery);
+			if (verbose)
+				System.out.println(discovery.getStats());
+		} else if (indels) // search under edit distance
+		{
+			System.out.println(ms.findEditMedianKMer(k, engine));
+			if (verbose)
+				System.out.println(ms.getStats());
 		} else // search
 		{
-			Distance dist = ms.findMedianKMer(k); // start searching
+			Distance dist = ms.findMedianKMer(k, engine); // start searching
 			System.out.println(dist); // print result
+			if (engine == Engine.AUTO)
+				System.out.println(ms.getPlan());
+			if (verbose && ms.getStats() != null)
+				System.out.println(ms.getStats());
+			if (shuffles > 0) {
+				Significance sig = new Significance(seqs, k, shuffleSeed);
+				sig.setShuffles(shuffles);
+				sig.setQuorum(quorum);
+				sig.test(dist.actual, ms.threads);
+				System.out.println(sig);
+			}
 		}
 
 		System.out.println("Ended at "
@@ -449,7 +1172,7 @@ public class MedianKMer {
 	 * Holder of score and the path leading to those scores. You may modify the
 	 * code for this but keep the original constructor signature.
 	 */
-	class Distance {
+	public class Distance {
 
 		final int actual; // the actual distance of this k-mer
 		final KMer path; // the k-mer to which the distance applies
@@ -468,6 +1191,20 @@ public class MedianKMer {
 			this.path = kmer;
 		}
 
+		/**
+		 * @return the distance
+		 */
+		public int getDistance() {
+			return actual;
+		}
+
+		/**
+		 * @return the k-mer to which the distance applies
+		 */
+		public KMer getKMer() {
+			return path;
+		}
+
 		public String toString() {
 			StringBuffer sbuf = new StringBuffer();
 			sbuf.append(path.toString() + ":" + actual);
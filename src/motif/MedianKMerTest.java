@@ -119,4 +119,475 @@ public class MedianKMerTest extends TestCase {
 			fail("Sequence file not found: " + e.getMessage());
 		}
 	}
+
+	public void testFindMedianKMerExhaustive1() {
+		Alphabet alpha = new Alphabet();
+		DNASequence[] seqs = new DNASequence[] {
+				new DNASequence(alpha, "s1", 
+						new char[] { 'T', 'C', 'G', 'G', 'A', 'C' }),
+				new DNASequence(alpha, "s2", 
+						new char[] { 'A', 'G', 'G', 'T', 'T', 'G' }),
+				new DNASequence(alpha, "s3", 
+						new char[] { 'T', 'A', 'A', 'G', 'G', 'C' }) };
+
+		MedianKMer m = new MedianKMer(seqs);
+		m.setThreads(3);
+		MedianKMer.Distance d = m.findMedianKMer(3, MedianKMer.Engine.EXHAUSTIVE);
+		assertEquals("AGG:1", d.toString());
+	}
+
+	public void testFindMedianKMerExhaustive2() {
+		Alphabet alpha = new Alphabet();
+		try {
+			DNASequence[] seqs = DNASequence.readFile(alpha,
+					"data/malT_5.fasta");
+			ExhaustiveKMer ex = new ExhaustiveKMer(seqs, 5);
+			ex.search(2, true);
+			assertEquals(1, ex.getDistance());
+			// the table agrees with a direct evaluation of the best k-mer
+			int distance = 0;
+			for (DNASequence seq : seqs)
+				distance += MedianKMer.getDistance(seq, ex.getKMer());
+			assertEquals(distance, ex.getTable()[ex.getCode(ex.getKMer())]);
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testFindMedianKMerTrie() {
+		Alphabet alpha = new Alphabet();
+		try {
+			DNASequence[] seqs = DNASequence.readFile(alpha,
+					"data/malT_5.fasta");
+			MedianKMer m = new MedianKMer(seqs);
+			MedianKMer.Distance d = m.findMedianKMer(8, MedianKMer.Engine.TRIE);
+			assertEquals(m.findMedianKMer(8).actual, d.actual);
+			// deep nodes only keep a fraction of the windows
+			assertTrue(m.getStats().getSurvival(8) < 1.0);
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testFindMedianKMerNeighborhood() {
+		Alphabet alpha = new Alphabet();
+		try {
+			DNASequence[] seqs = DNASequence.readFile(alpha,
+					"data/malT_5.fasta");
+			MedianKMer m = new MedianKMer(seqs);
+			int exact = m.findMedianKMer(7).actual;
+			for (int d = 0; d <= 2; d++) {
+				m.setNeighborhood(d);
+				m.setOrdering(CountIndex.Ordering.SUPPORT);
+				assertEquals(exact, m.findMedianKMer(7, MedianKMer.Engine.TRIE).actual);
+			}
+			// the index proposes complete k-mers to start from
+			NeighborhoodIndex index = new NeighborhoodIndex(m.getStore(), 1);
+			KMer[] seeds = index.getCandidates(12, 3);
+			assertEquals(3, seeds.length);
+			assertTrue(seeds[0].isComplete());
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testFindMedianKMerQuorum() {
+		Alphabet alpha = new Alphabet();
+		DNASequence[] seqs = new DNASequence[] {
+				new DNASequence(alpha, "s1", 
+						new char[] { 'A', 'C', 'G', 'G', 'A', 'C' }),
+				new DNASequence(alpha, "s2", 
+						new char[] { 'A', 'G', 'G', 'A', 'C', 'G' }),
+				new DNASequence(alpha, "s3", 
+						new char[] { 'A', 'A', 'C', 'G', 'C', 'C' }),
+				new DNASequence(alpha, "s4", // no trace of the motif
+						new char[] { 'T', 'T', 'T', 'T', 'T', 'T' }) };
+
+		MedianKMer m = new MedianKMer(seqs);
+		assertEquals(3, m.findMedianKMer(3).actual);
+		m.setQuorum(3);
+		for (MedianKMer.Engine engine : MedianKMer.Engine.values())
+			assertEquals("ACG:0", m.findMedianKMer(3, engine).toString());
+	}
+
+	public void testSignificance() {
+		Alphabet alpha = new Alphabet();
+		try {
+			SequenceStore store = SequenceStore.fromSequences(DNASequence
+					.readFile(alpha, "data/malT_5.fasta"));
+			// a shuffle keeps the ends and the pairs of every sequence
+			SequenceStore shuffled = Significance.shuffle(store,
+					new java.util.Random(7));
+			assertEquals(store.getCount(), shuffled.getCount());
+			for (int s = 0; s < store.getCount(); s++) {
+				int[] pairs = new int[16], same = new int[16];
+				long a = store.getStart(s), b = shuffled.getStart(s);
+				int L = store.getLength(s);
+				assertEquals(L, shuffled.getLength(s));
+				assertEquals(store.symbolAt(a), shuffled.symbolAt(b));
+				assertEquals(store.symbolAt(a + L - 1), shuffled.symbolAt(b + L
+						- 1));
+				for (int i = 0; i + 1 < L; i++) {
+					pairs[store.symbolAt(a + i) * 4 + store.symbolAt(a + i + 1)]++;
+					same[shuffled.symbolAt(b + i) * 4
+							+ shuffled.symbolAt(b + i + 1)]++;
+				}
+				assertTrue(java.util.Arrays.equals(pairs, same));
+			}
+			// the copies of a deduplicated sequence are shuffled one by one
+			DNASequence[] seqs = DNASequence.readFile(alpha,
+					"data/malT_5.fasta");
+			SequenceStore distinct = SequenceStore.fromSequences(
+					new DNASequence[] { seqs[0], seqs[0], seqs[1] })
+					.deduplicate();
+			shuffled = Significance.shuffle(distinct, new java.util.Random(7));
+			assertFalse(shuffled.isWeighted());
+			assertEquals(3, shuffled.getCount());
+			assertEquals(store.getLength(0), shuffled.getLength(1));
+			assertFalse(new String(shuffled.getSequence(0).getSymbolChars())
+					.equals(new String(shuffled.getSequence(1).getSymbolChars())));
+			MedianKMer m = new MedianKMer(store);
+			int real = m.findMedianKMer(6).actual;
+			Significance sig = new Significance(store, 6, 1);
+			sig.setShuffles(8);
+			sig.setCalibration(3);
+			double p = sig.test(real, 2);
+			assertTrue(p > 0 && p <= 1);
+			assertEquals((1 + sig.getAtMost()) / 9.0, p, 1e-9);
+			assertTrue(sig.getCensored() <= 5);
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testFindMedianKMerPlanned() {
+		Alphabet alpha = new Alphabet();
+		try {
+			DNASequence[] seqs = DNASequence.readFile(alpha,
+					"data/malT_5.fasta");
+			MedianKMer m = new MedianKMer(seqs);
+			int naive = m.findMedianKMer(8, MedianKMer.Engine.NAIVE).actual;
+			assertEquals(naive, m.findMedianKMer(8, MedianKMer.Engine.AUTO).actual);
+			EnginePlanner.Plan plan = m.getPlan();
+			assertFalse(Double.isInfinite(plan.getPredicted()));
+			assertTrue(plan.getActual() >= 0);
+			// too many k-mers to enumerate
+			assertTrue(Double.isInfinite(m.getPlanner().predict(
+					EnginePlanner.Choice.EXHAUSTIVE, 14, 1)));
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testQueryReport() {
+		Alphabet alpha = new Alphabet();
+		try {
+			SequenceStore store = SequenceStore.fromSequences(DNASequence
+					.readFile(alpha, "data/malT_5.fasta"));
+			KMer[] queries = new KMer[] {
+					new KMer(alpha, alpha.toIndex("GATGAGGGAT".toCharArray())),
+					new KMer(alpha, alpha.toIndex("ACGT".toCharArray())),
+					new KMer(alpha, alpha.toIndex("CCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCC"
+							.toCharArray())) }; // longer than a packed code
+			QueryReport report = new QueryReport(store);
+			report.run(queries, 2);
+			for (int q = 0; q < queries.length; q++)
+				for (int s = 0; s < store.getCount(); s++) {
+					int[] d = MedianKMer.getDistances(store, s, queries[q]);
+					int pos = MedianKMer.getMinPosition(d);
+					assertEquals(d[pos], report.getDistance(q, s));
+					assertEquals(pos, report.getPosition(q, s));
+				}
+			java.io.StringWriter out = new java.io.StringWriter();
+			report.write(out);
+			assertTrue(out.toString().startsWith("REPORT for GATGAGGGAT"));
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testFindMedianKMerDynamic() {
+		Alphabet alpha = new Alphabet();
+		try {
+			DNASequence[] seqs = DNASequence.readFile(alpha,
+					"data/malT_5.fasta");
+			MedianKMer m = new MedianKMer(seqs);
+			int exact = m.findMedianKMer(9, MedianKMer.Engine.NAIVE).actual;
+			m.setDynamic(true);
+			for (MedianKMer.Engine engine : new MedianKMer.Engine[] {
+					MedianKMer.Engine.NAIVE, MedianKMer.Engine.TRIE }) {
+				MedianKMer.Distance d = m.findMedianKMer(9, engine);
+				assertEquals(exact, d.actual);
+				int sum = 0;
+				for (int s = 0; s < m.getStore().getCount(); s++)
+					sum += MedianKMer.getDistance(m.getStore(), s, d.path);
+				assertEquals(exact, sum);
+			}
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testWindowSearchThreads() {
+		Alphabet alpha = new Alphabet();
+		try {
+			SequenceStore store = SequenceStore.fromSequences(DNASequence
+					.readFile(alpha, "data/chipseq_2400.fasta"));
+			// enough windows for the root and its children to be shared out
+			assertTrue(store.getTotalLength() > 2 * WindowSearch.PARALLEL);
+			for (int q : new int[] { 0, 1200 }) {
+				WindowSearch serial = new WindowSearch(store, 4, null);
+				WindowSearch parallel = new WindowSearch(store, 4, null);
+				parallel.setThreads(3);
+				if (q > 0) {
+					serial.setQuorum(q);
+					parallel.setQuorum(q);
+				}
+				assertEquals(serial.search(), parallel.search());
+				assertEquals(serial.getKMer().toString(), parallel.getKMer()
+						.toString());
+				assertEquals(serial.getStats().getNodes(), parallel.getStats()
+						.getNodes());
+			}
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testFindMedianKMerDeduplicated() {
+		Alphabet alpha = new Alphabet();
+		try {
+			DNASequence[] seqs = DNASequence.readFile(alpha,
+					"data/arcA_9.fasta");
+			// replicate peaks: three copies of the first, two of the fifth
+			DNASequence[] replicated = java.util.Arrays.copyOf(seqs,
+					seqs.length + 3);
+			replicated[seqs.length] = seqs[0];
+			replicated[seqs.length + 1] = seqs[4];
+			replicated[seqs.length + 2] = seqs[0];
+			MedianKMer all = new MedianKMer(replicated);
+			MedianKMer distinct = new MedianKMer(SequenceStore.fromSequences(
+					replicated).deduplicate());
+			assertEquals(seqs.length, distinct.getStore().getCount());
+			for (int q : new int[] { 0, 7 }) {
+				all.setQuorum(q);
+				distinct.setQuorum(q);
+				for (MedianKMer.Engine engine : new MedianKMer.Engine[] {
+						MedianKMer.Engine.NAIVE, MedianKMer.Engine.TRIE,
+						MedianKMer.Engine.EXHAUSTIVE })
+					assertEquals(all.findMedianKMer(7, engine).actual,
+							distinct.findMedianKMer(7, engine).actual);
+			}
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testHintedScorer() {
+		Alphabet alpha = new Alphabet();
+		try {
+			SequenceStore store = SequenceStore.fromSequences(DNASequence
+					.readFile(alpha, "data/ihfA_26.fasta"));
+			HintedScorer scorer = new HintedScorer(store);
+			KMer[] words = new KMer[3];
+			String[] text = { "AATAAAT", "AATAAAA", "AATAAAT" };
+			for (int i = 0; i < words.length; i++)
+				words[i] = new KMer(alpha, alpha.toIndex(text[i].toCharArray()));
+			for (KMer word : words) {
+				int exact = 0;
+				for (int s = 0; s < store.getCount(); s++)
+					exact += MedianKMer.getDistance(store, s, word);
+				assertEquals(exact, scorer.score(word.getKMer(), 7,
+						Integer.MAX_VALUE));
+				// below the limit the distance is exact, otherwise at least it
+				assertEquals(exact, scorer.score(word.getKMer(), 7, exact + 1));
+				assertTrue(scorer.score(word.getKMer(), 7, exact - 3) >= exact
+						- 3);
+			}
+			// the repeated word finds every minimum at a hint
+			assertTrue(scorer.getHits() >= store.getCount());
+			assertTrue(scorer.getHitRate() > 0 && scorer.getHitRate() <= 1);
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testFindMotifs() {
+		Alphabet alpha = new Alphabet();
+		try {
+			MedianKMer ms = new MedianKMer(DNASequence.readFile(alpha,
+					"data/arcA_9.fasta"));
+			SequenceStore store = ms.getStore();
+			MotifDiscovery naive = ms.discover(6, MedianKMer.Engine.NAIVE);
+			MotifDiscovery trie = ms.discover(6, MedianKMer.Engine.TRIE);
+			assertEquals(4, naive.run(4));
+			assertEquals(4, trie.run(4));
+			assertEquals(ms.findMedianKMer(6, MedianKMer.Engine.NAIVE).actual,
+					naive.getDistance(0));
+			boolean[][] masked = new boolean[store.getCount()][];
+			for (int s = 0; s < masked.length; s++)
+				masked[s] = new boolean[store.getLength(s)];
+			for (int m = 0; m < 4; m++) {
+				assertEquals(naive.getDistance(m), trie.getDistance(m));
+				if (m > 0)
+					assertTrue(naive.getDistance(m) >= naive.getDistance(m - 1));
+				for (int e = 0; e < m; e++)
+					assertFalse(naive.getKMer(m).toString().equals(
+							naive.getKMer(e).toString()));
+				// the distance over the windows left by the earlier motifs
+				int[] word = naive.getKMer(m).getKMer();
+				int total = 0;
+				for (int s = 0; s < masked.length; s++) {
+					int min = 6;
+					int[] d = MedianKMer.getDistances(store, s, naive.getKMer(m));
+					for (int w = 0; w < d.length; w++) {
+						boolean free = true;
+						for (int j = 0; j < word.length; j++)
+							free &= !masked[s][w + j];
+						if (free)
+							min = Math.min(min, d[w]);
+					}
+					assertEquals(min, naive.getMismatches(m, s));
+					total += min;
+				}
+				assertEquals(total, naive.getDistance(m));
+				for (int s = 0; s < masked.length; s++)
+					for (int j = 0; j < word.length; j++)
+						masked[s][naive.getPosition(m, s) + j] = true;
+			}
+			// two motifs mask every window, and the excluded is not found again
+			MedianKMer two = new MedianKMer(new DNASequence[] {
+					new DNASequence(alpha, "s1", "ACGTAC".toCharArray()),
+					new DNASequence(alpha, "s2", "ACGTTT".toCharArray()) });
+			for (MedianKMer.Engine engine : new MedianKMer.Engine[] {
+					MedianKMer.Engine.NAIVE, MedianKMer.Engine.TRIE }) {
+				MotifDiscovery d = two.discover(3, engine);
+				assertEquals(2, d.run(6));
+				assertEquals("ACG", d.getKMer(0).toString());
+				assertEquals("TAC", d.getKMer(1).toString());
+				assertEquals(3, d.getPosition(1, 1));
+				assertFalse(d.next());
+				assertEquals(2, d.getCount());
+			}
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testFindEditMedianKMer() {
+		Alphabet alpha = new Alphabet();
+		try {
+			MedianKMer ms = new MedianKMer(DNASequence.readFile(alpha,
+					"data/ihfA_26.fasta"));
+			SequenceStore store = ms.getStore();
+			for (int q = 0; q <= 5; q += 5) {
+				ms.setQuorum(q);
+				// all 4^5 k-mers scored by the dynamic program
+				int best = Integer.MAX_VALUE;
+				int[] word = new int[5];
+				for (int code = 0; code < 1 << 10; code++) {
+					for (int j = 0; j < 5; j++)
+						word[j] = (code >> (2 * (4 - j))) & 3;
+					int[] d = new int[store.getCount()];
+					for (int s = 0; s < d.length; s++)
+						d[s] = MedianKMer.getEditDistance(store, s, new KMer(
+								alpha, word));
+					java.util.Arrays.sort(d);
+					int total = 0;
+					for (int s = 0; s < (q > 0 ? q : d.length); s++)
+						total += d[s];
+					best = Math.min(best, total);
+				}
+				MedianKMer.Distance naive = ms.findEditMedianKMer(5,
+						MedianKMer.Engine.NAIVE);
+				MedianKMer.Distance trie = ms.findEditMedianKMer(5,
+						MedianKMer.Engine.TRIE);
+				assertEquals(best, naive.actual);
+				assertEquals(best, trie.actual);
+				assertTrue(best <= ms.findMedianKMer(5,
+						MedianKMer.Engine.NAIVE).actual);
+			}
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testFindMedianKMerDegenerate() {
+		Alphabet alpha = Alphabet.iupac(false);
+		String codes = "RYSWKMBDHVN";
+		java.util.Random random = new java.util.Random(7);
+		try {
+			DNASequence[] plain = DNASequence.readFile(new Alphabet(),
+					"data/arcA_9.fasta");
+			DNASequence[] seqs = new DNASequence[plain.length];
+			for (int s = 0; s < seqs.length; s++) {
+				char[] c = plain[s].getSymbolChars();
+				for (int i = 0; i < c.length; i++)
+					if (random.nextInt(20) == 0)
+						c[i] = codes.charAt(random.nextInt(codes.length()));
+				seqs[s] = new DNASequence(alpha, plain[s].getName(), c);
+			}
+			MedianKMer ms = new MedianKMer(seqs);
+			SequenceStore store = ms.getStore();
+			assertTrue(store.isDegenerate());
+			// all 4^5 k-mers, matching the codes by their sets
+			int best = Integer.MAX_VALUE;
+			int[] word = new int[5];
+			for (int code = 0; code < 1 << 10; code++) {
+				for (int j = 0; j < 5; j++)
+					word[j] = (code >> (2 * (4 - j))) & 3;
+				int total = 0;
+				for (int s = 0; s < seqs.length; s++) {
+					KMer kmer = new KMer(alpha, word);
+					int d = MedianKMer.getDistance(store, s, kmer);
+					assertEquals(MedianKMer.getDistance(seqs[s], kmer), d);
+					total += d;
+				}
+				best = Math.min(best, total);
+			}
+			assertEquals(best, ms.findMedianKMer(5, MedianKMer.Engine.NAIVE).actual);
+			assertEquals(best, ms.findMedianKMer(5, MedianKMer.Engine.TRIE).actual);
+			assertEquals(best, ms.findMedianKMer(5,
+					MedianKMer.Engine.EXHAUSTIVE).actual);
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	public void testFindMedianKMerProtein() {
+		Alphabet alpha = Alphabet.protein();
+		char[] residues = alpha.getSymbols();
+		java.util.Random random = new java.util.Random(11);
+		DNASequence[] seqs = new DNASequence[8];
+		for (int s = 0; s < seqs.length; s++) {
+			char[] c = new char[30 + random.nextInt(30)];
+			for (int i = 0; i < c.length; i++)
+				c[i] = residues[random.nextInt(20)];
+			seqs[s] = new DNASequence(alpha, "p" + s, c);
+		}
+		MedianKMer ms = new MedianKMer(seqs);
+		SequenceStore store = ms.getStore();
+		// all 20^3 k-mers
+		int best = Integer.MAX_VALUE;
+		int[] word = new int[3];
+		for (int code = 0; code < 8000; code++) {
+			word[0] = code / 400;
+			word[1] = code / 20 % 20;
+			word[2] = code % 20;
+			int total = 0;
+			for (int s = 0; s < seqs.length; s++)
+				total += MedianKMer.getDistance(store, s, new KMer(alpha, word));
+			best = Math.min(best, total);
+		}
+		assertEquals(best, ms.findMedianKMer(3, MedianKMer.Engine.NAIVE).actual);
+		assertEquals(best, ms.findMedianKMer(3, MedianKMer.Engine.TRIE).actual);
+		assertEquals(best, ms.findMedianKMer(3,
+				MedianKMer.Engine.EXHAUSTIVE).actual);
+		// sparse children count as the dense ones do
+		TrieKMer trie = new TrieKMer(store, 3, 1);
+		int[] path = { store.symbolAt(0), store.symbolAt(1), store.symbolAt(2) };
+		assertTrue(trie.getCount(path, 3) >= 1);
+		assertEquals(trie.getCount(path, 3), new TrieKMer(store, 3, 4)
+				.getCount(path, 3));
+	}
 }
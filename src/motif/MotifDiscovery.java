@@ -0,0 +1,386 @@
+package motif;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Finds several distinct motifs one after the other: the median k-mer is
+ * found, its best-matching window in every sequence (the one printed by
+ * {@link MedianKMer#printReport(KMer)}) is masked, and the next median k-mer
+ * is sought among the remaining windows, and so on. With a quorum q only
+ * the windows of the q best-matching sequences are masked, since the other
+ * sequences did not count towards the motif.
+ *
+ * Nothing is rebuilt between rounds. One {@link WindowSearch} is kept and
+ * the masked windows are dropped from its root lists, and the counts of a
+ * {@link TrieKMer} are decremented for just those windows. Masking can only
+ * raise the distance of any k-mer, which gives warm bounds for the later
+ * rounds: a search collects the best k-mers it meets, pruning at the
+ * distance of the worst of them (the threshold), and any other k-mer stays
+ * at or above the threshold however much is masked. As long as the best
+ * candidate, scored over the windows that are left, still reaches the
+ * threshold it is the next motif, without a search. Otherwise a new
+ * collecting search is run, which stops as soon as it meets the distance of
+ * the last motif (a lower bound).
+ */
+public class MotifDiscovery {
+
+	/**
+	 * The default number of candidates collected by a search
+	 */
+	public static final int CANDIDATES = 64;
+
+	private final SequenceStore store; // the sequences
+	private final int k; // the length of the motifs
+	private final CountIndex index; // ranks extensions, may be null
+	private final WindowSearch search; // kept over all rounds
+	private int quorum = 0; // sum over the best q sequences, 0 for all
+	private final BitSet[] masked; // per sequence, the masked positions
+	private int floor = -1; // the distance of the last motif
+	private int collect = CANDIDATES; // the number of candidates collected
+	private List<KMer> candidates; // of the last collecting search, or null
+	private int[] lower; // per candidate, a lower bound of its distance
+	private int threshold; // the distance below which all k-mers are known
+	private int searches; // the number of collecting searches run
+
+	private final List<KMer> motifs = new ArrayList<KMer>();
+	private final List<Integer> distances = new ArrayList<Integer>();
+	private final List<int[]> positions = new ArrayList<int[]>(); // per motif
+	private final List<int[]> mismatches = new ArrayList<int[]>(); // per motif
+	private final List<Integer> occurrences = new ArrayList<Integer>(); // masked
+	private final List<Long> times = new ArrayList<Long>(); // ms per motif
+
+	/**
+	 * Prepares a discovery over the sequences of a store
+	 *
+	 * @param store
+	 *            the sequences
+	 * @param k
+	 *            the length of the motifs
+	 * @param index
+	 *            prefix statistics used to visit promising extensions first,
+	 *            or null to visit them in alphabet order; the counts of a
+	 *            {@link TrieKMer} are updated as windows are masked
+	 */
+	public MotifDiscovery(SequenceStore store, int k, CountIndex index) {
+		this.store = store;
+		this.k = k;
+		this.index = index;
+		this.search = new WindowSearch(store, k, index);
+		this.masked = new BitSet[store.getCount()];
+	}
+
+	/**
+	 * Sums the distances of the q best-matching sequences only, and only
+	 * masks the windows of those sequences
+	 *
+	 * @param q
+	 *            the quorum, 0 for all sequences
+	 */
+	public void setQuorum(int q) {
+		if (q < 0)
+			throw new RuntimeException("Invalid quorum " + q);
+		this.quorum = q;
+		if (q > 0)
+			search.setQuorum(q);
+	}
+
+	/**
+	 * @param ordering
+	 *            the policy by which the index ranks extensions
+	 */
+	public void setOrdering(CountIndex.Ordering ordering) {
+		search.setOrdering(ordering);
+	}
+
+	/**
+	 * @param threads
+	 *            the number of threads that share the sweeps of large nodes
+	 */
+	public void setThreads(int threads) {
+		search.setThreads(threads);
+	}
+
+	/**
+	 * @param dynamic
+	 *            true to fix the most varying position first at each node
+	 */
+	public void setDynamic(boolean dynamic) {
+		search.setDynamic(dynamic);
+	}
+
+	/**
+	 * Sets the number of best k-mers that a search collects for the later
+	 * rounds. More candidates lower the threshold less, so more rounds are
+	 * settled without a search, but each search prunes later.
+	 *
+	 * @param count
+	 *            the number of candidates (at least 1)
+	 */
+	public void setCandidates(int count) {
+		this.collect = count < 1 ? 1 : count;
+	}
+
+	/**
+	 * Finds a number of motifs, or fewer if every k-mer has been found
+	 *
+	 * @param count
+	 *            the number of motifs
+	 * @return the number of motifs found so far
+	 */
+	public int run(int count) {
+		for (int m = 0; m < count; m++)
+			if (!next())
+				break;
+		return motifs.size();
+	}
+
+	/**
+	 * Finds the next motif and masks its best-matching windows
+	 *
+	 * @return false if every window is masked or no k-mer is left
+	 * @throws RuntimeException
+	 *             if the thread is interrupted during the search
+	 */
+	public boolean next() {
+		if (search.getWindows() == 0)
+			return false; // every window is masked
+		long start = System.currentTimeMillis();
+		boolean settled = false;
+		if (candidates != null)
+			settled = rescore();
+		if (!settled) {
+			search.setCollect(collect);
+			search.setFloor(floor);
+			search.search();
+			candidates = search.getCandidates();
+			lower = search.getCandidateDistances();
+			threshold = search.getThreshold();
+			searches++;
+		}
+		int distance = search.getDistance();
+		KMer motif = search.getKMer();
+		if (motif == null)
+			return false;
+
+		/* The best window of every sequence, as the report finds it */
+		int n = store.getCount();
+		int[] pos = new int[n], mm = new int[n];
+		for (int s = 0; s < n; s++)
+			locate(s, motif.getKMer(), pos, mm);
+		motifs.add(motif);
+		distances.add(distance);
+		positions.add(pos);
+		mismatches.add(mm);
+		search.exclude(motif);
+		floor = distance;
+
+		List<Integer> chosen = chosen(pos, mm);
+		for (int s : chosen)
+			mask(s, pos[s]);
+		occurrences.add(chosen.size());
+		times.add(System.currentTimeMillis() - start);
+		return true;
+	}
+
+	/**
+	 * Scores the candidates over the windows that are left, lowest bound
+	 * first. The distance of a candidate from an earlier round is a lower
+	 * bound of its distance now, and so is the partial sum at which an offer
+	 * gives up, so the candidates whose bound reaches the best so far are
+	 * not scored at all.
+	 *
+	 * @return true if the best candidate still reaches the threshold
+	 */
+	private boolean rescore() {
+		long[] order = new long[lower.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = (long) lower[i] << 32 | i;
+		Arrays.sort(order);
+		for (long key : order) {
+			int i = (int) key;
+			if (search.getKMer() != null && lower[i] >= search.getDistance())
+				break;
+			/* Excluded k-mers are scored but never taken */
+			lower[i] = Math.max(lower[i], search.offer(candidates.get(i)));
+		}
+		return search.getKMer() != null && search.getDistance() <= threshold;
+	}
+
+	/**
+	 * Finds the first window of a sequence with the fewest mismatches that
+	 * does not overlap a masked position
+	 */
+	private void locate(int s, int[] word, int[] pos, int[] mm) {
+		int W = store.getLength(s) - k + 1;
+		long start = store.getStart(s);
+		BitSet mask = masked[s];
+		Alphabet alpha = store.getAlphabet();
+		pos[s] = -1;
+		mm[s] = k;
+		for (int w = 0; w < W && mm[s] > 0; w++) {
+			if (mask != null) {
+				int m = mask.nextSetBit(w);
+				if (m >= 0 && m < w + k) {
+					w = m; // every window up to m overlaps it
+					continue;
+				}
+			}
+			int count = 0;
+			for (int j = 0; j < k && count < mm[s]; j++)
+				if (!alpha.matches(store.symbolAt(start + w + j), word[j]))
+					count++;
+			if (count < mm[s] || pos[s] < 0) {
+				pos[s] = w;
+				mm[s] = count;
+			}
+		}
+	}
+
+	/**
+	 * Selects the sequences whose windows are masked: all that have a
+	 * window, or with a quorum those that counted towards the distance
+	 * (fewest mismatches first, with their copies)
+	 */
+	private List<Integer> chosen(int[] pos, int[] mm) {
+		List<Integer> chosen = new ArrayList<Integer>();
+		for (int d = 0, taken = 0; d <= k; d++)
+			for (int s = 0; s < pos.length; s++) {
+				if (pos[s] < 0 || mm[s] != d)
+					continue;
+				if (quorum > 0 && taken >= quorum)
+					return chosen;
+				chosen.add(s);
+				taken += store.getWeight(s);
+			}
+		return chosen;
+	}
+
+	/**
+	 * Masks the positions w..w+k-1 of a sequence, dropping the windows that
+	 * overlap them from the search and from the counts of a trie (which does
+	 * not count windows with degenerate codes)
+	 */
+	private void mask(int s, int w) {
+		if (masked[s] == null)
+			masked[s] = new BitSet();
+		BitSet mask = masked[s];
+		int W = store.getLength(s) - k + 1;
+
+		/* The windows that are still counted and overlap the occurrence */
+		List<Integer> gone = new ArrayList<Integer>();
+		for (int v = Math.max(0, w - k + 1); v < Math.min(W, w + k); v++) {
+			int m = mask.nextSetBit(v);
+			if ((m < 0 || m >= v + k) && TrieKMer.isCounted(store, s, v, k))
+				gone.add(v);
+		}
+		mask.set(w, w + k);
+		search.mask(s, w, w + k);
+		if (!(index instanceof TrieKMer))
+			return;
+
+		/*
+		 * A prefix keeps its support in the sequence if a window that is
+		 * still counted starts with it; of the dropped windows, those not yet
+		 * taken out of the trie still count.
+		 */
+		TrieKMer trie = (TrieKMer) index;
+		long start = store.getStart(s);
+		int[] path = new int[k];
+		for (int g = 0; g < gone.size(); g++) {
+			int v = gone.get(g), shared = 0;
+			for (int u = 0; u < W && shared < k; u++) {
+				int m = mask.nextSetBit(u);
+				if (m >= 0 && m < u + k && !gone.subList(g + 1, gone.size())
+						.contains(u) || !TrieKMer.isCounted(store, s, u, k))
+					continue;
+				int j = 0;
+				while (j < k
+						&& store.symbolAt(start + u + j) == store
+								.symbolAt(start + v + j))
+					j++;
+				shared = Math.max(shared, j);
+			}
+			for (int j = 0; j < k; j++)
+				path[j] = store.symbolAt(start + v + j);
+			trie.removeKMer(path, store.getWeight(s), shared);
+		}
+	}
+
+	/**
+	 * @return the number of motifs found
+	 */
+	public int getCount() {
+		return motifs.size();
+	}
+
+	/**
+	 * @param m
+	 *            the number of the motif, in the order found
+	 * @return the motif
+	 */
+	public KMer getKMer(int m) {
+		return motifs.get(m);
+	}
+
+	/**
+	 * @param m
+	 *            the number of the motif
+	 * @return its distance over the windows that were not masked before it
+	 */
+	public int getDistance(int m) {
+		return distances.get(m);
+	}
+
+	/**
+	 * @param m
+	 *            the number of the motif
+	 * @param s
+	 *            the number of the sequence
+	 * @return the position of the best window of the sequence for the motif,
+	 *         -1 if no window was left
+	 */
+	public int getPosition(int m, int s) {
+		return positions.get(m)[s];
+	}
+
+	/**
+	 * @param m
+	 *            the number of the motif
+	 * @param s
+	 *            the number of the sequence
+	 * @return the mismatches of that window (k if no window was left)
+	 */
+	public int getMismatches(int m, int s) {
+		return mismatches.get(m)[s];
+	}
+
+	/**
+	 * @return the number of searches run so far; the other motifs were
+	 *         found among the candidates of earlier searches
+	 */
+	public int getSearches() {
+		return searches;
+	}
+
+	/**
+	 * @return the counters of all searches so far
+	 */
+	public SearchStats getStats() {
+		return search.getStats();
+	}
+
+	/**
+	 * Printable list of the motifs, one per line
+	 */
+	public String toString() {
+		StringBuffer sbuf = new StringBuffer();
+		for (int m = 0; m < motifs.size(); m++)
+			sbuf.append("Motif " + (m + 1) + ": " + motifs.get(m) + ":"
+					+ distances.get(m) + " (" + occurrences.get(m)
+					+ " occurrences masked, " + times.get(m) + " ms)\n");
+		return sbuf.toString();
+	}
+}
@@ -0,0 +1,240 @@
+package motif;
+
+import java.util.Arrays;
+
+/**
+ * Mismatch-tolerant prefix statistics: for a prefix P of length L, the number
+ * of windows of length L within d mismatches of P, and the number of
+ * sequences that contain such a window. The median k-mer rarely occurs
+ * exactly, but usually occurs approximately in most sequences, so these
+ * counts rank extensions better than exact counts.
+ *
+ * The statistics of a level are computed on first use, in one pass over the
+ * sequences: the distinct windows of each sequence are expanded into their
+ * d-neighbourhoods, and a per-code stamp makes sure that a sequence adds to
+ * the support of a code once. The tables are kept, so searches for other
+ * values of k reuse them. Levels are tabulated up to the largest L with at
+ * most {@link #MAX_CODES} codes; a longer prefix is scored by its last L
+ * symbols.
+ */
+public class NeighborhoodIndex implements CountIndex {
+
+	/**
+	 * The largest number of codes tabulated per level (4^10 for DNA)
+	 */
+	public static final int MAX_CODES = 1 << 20;
+
+	private final SequenceStore store; // the sequences
+	private final int d; // the number of mismatches tolerated
+	private final int radix; // the number of symbols in the alphabet
+	private final int maxLevel; // the longest tabulated prefix
+	private final int[][] counts; // per level, windows within d (by code)
+	private final int[][] supports; // per level, sequences within d
+
+	/* Work space of the level being built */
+	private int[] count, support, stamp, weight;
+	private int level, sequence, multiplicity;
+
+	/**
+	 * Prepares the statistics; the tables are built when first needed
+	 *
+	 * @param store
+	 *            the sequences
+	 * @param d
+	 *            the number of mismatches tolerated
+	 */
+	public NeighborhoodIndex(SequenceStore store, int d) {
+		if (d < 0)
+			throw new RuntimeException("Invalid number of mismatches " + d);
+		this.store = store;
+		this.d = d;
+		this.radix = store.getAlphabet().getSize();
+		int L = 0;
+		for (long codes = radix; codes <= MAX_CODES; codes *= radix)
+			L++;
+		this.maxLevel = L;
+		this.counts = new int[L + 1][];
+		this.supports = new int[L + 1][];
+	}
+
+	/**
+	 * @return the number of mismatches tolerated
+	 */
+	public int getMismatches() {
+		return d;
+	}
+
+	/**
+	 * @return the longest prefix that is tabulated
+	 */
+	public int getDepth() {
+		return maxLevel;
+	}
+
+	public int getCount(int[] path, int level) {
+		int L = Math.min(level, maxLevel);
+		return table(L, false)[code(path, level - L, level)];
+	}
+
+	public int getSupport(int[] path, int level) {
+		int L = Math.min(level, maxLevel);
+		return table(L, true)[code(path, level - L, level)];
+	}
+
+	/**
+	 * Proposes k-mers for a first incumbent: the prefixes of length
+	 * min(k, {@link #getDepth()}) with the largest support (ties by count),
+	 * each extended to length k one symbol at a time by the symbol that gives
+	 * the best supported suffix.
+	 *
+	 * @param k
+	 *            the length of the k-mers
+	 * @param n
+	 *            the number of k-mers proposed
+	 * @return up to n k-mers, best supported first
+	 */
+	public KMer[] getCandidates(int k, int n) {
+		if (n < 1)
+			return new KMer[0];
+		int L = Math.min(k, maxLevel);
+		int[] cnt = table(L, false), sup = table(L, true);
+
+		/* Keep the n best codes in descending order (insertion) */
+		int[] top = new int[Math.min(n, cnt.length)];
+		int found = 0;
+		for (int code = 0; code < cnt.length; code++) {
+			if (cnt[code] == 0)
+				continue;
+			int j;
+			if (found < top.length)
+				j = found++;
+			else if (better(sup, cnt, code, top[top.length - 1]))
+				j = top.length - 1; // replaces the last
+			else
+				continue;
+			while (j > 0 && better(sup, cnt, code, top[j - 1])) {
+				top[j] = top[j - 1];
+				j--;
+			}
+			top[j] = code;
+		}
+
+		KMer[] candidates = new KMer[found];
+		for (int i = 0; i < found; i++) {
+			int[] symbols = new int[k];
+			for (int p = L - 1, code = top[i]; p >= 0; p--, code /= radix)
+				symbols[p] = code % radix;
+			for (int p = L; p < k; p++) { // extend by the best suffix
+				int bestSymbol = 0;
+				long bestScore = -1;
+				for (int c = 0; c < radix; c++) {
+					symbols[p] = c;
+					long score = Ordering.COMBINED.score(this, symbols, p + 1);
+					if (score > bestScore) {
+						bestScore = score;
+						bestSymbol = c;
+					}
+				}
+				symbols[p] = bestSymbol;
+			}
+			candidates[i] = new KMer(store.getAlphabet(), symbols);
+		}
+		return candidates;
+	}
+
+	private static boolean better(int[] sup, int[] cnt, int a, int b) {
+		return sup[a] > sup[b] || (sup[a] == sup[b] && cnt[a] > cnt[b]);
+	}
+
+	/**
+	 * The code of path[from..to), first symbol most significant
+	 */
+	private int code(int[] path, int from, int to) {
+		int code = 0;
+		for (int i = from; i < to; i++)
+			code = code * radix + path[i];
+		return code;
+	}
+
+	/**
+	 * Retrieves the table of a level, building it if needed
+	 */
+	private synchronized int[] table(int L, boolean bySupport) {
+		if (counts[L] == null)
+			build(L);
+		return bySupport ? supports[L] : counts[L];
+	}
+
+	/**
+	 * Tabulates the windows of length L within d mismatches of every code
+	 */
+	private void build(int L) {
+		int size = 1;
+		weight = new int[L];
+		for (int p = L - 1; p >= 0; p--) {
+			weight[p] = size;
+			size *= radix;
+		}
+		count = new int[size];
+		support = new int[size];
+		stamp = new int[size];
+		level = L;
+
+		int[] codes = new int[0];
+		for (int s = 0; s < store.getCount(); s++) {
+			int W = store.getLength(s) - L + 1;
+			if (W < 1)
+				continue;
+			if (codes.length < W)
+				codes = new int[W];
+			long start = store.getStart(s);
+			/* Windows with a degenerate code are left out, as in the trie */
+			int code = 0, plain = 0, n = 0;
+			for (int i = 0; i < W + L - 1; i++) {
+				int symbol = store.symbolAt(start + i);
+				if (symbol >= radix) {
+					plain = 0;
+					continue;
+				}
+				code = code % weight[0] * radix + symbol; // roll the code
+				if (++plain >= L)
+					codes[n++] = code;
+			}
+			Arrays.sort(codes, 0, n);
+
+			/* Expand each distinct window once, weighted by its repeats */
+			sequence = s + 1;
+			for (int i = 0; i < n;) {
+				int j = i + 1;
+				while (j < n && codes[j] == codes[i])
+					j++;
+				multiplicity = j - i;
+				visit(codes[i], 0, d);
+				i = j;
+			}
+		}
+		counts[L] = count;
+		supports[L] = support;
+		count = support = stamp = weight = null;
+	}
+
+	/**
+	 * Adds a code and, with mismatches left, every code that differs from it
+	 * at a position from pos on (each neighbour is reached exactly once)
+	 */
+	private void visit(int code, int pos, int left) {
+		count[code] += multiplicity;
+		if (stamp[code] != sequence) {
+			stamp[code] = sequence;
+			support[code]++;
+		}
+		if (left == 0)
+			return;
+		for (int p = pos; p < level; p++) {
+			int digit = code / weight[p] % radix;
+			for (int c = 0; c < radix; c++)
+				if (c != digit)
+					visit(code + (c - digit) * weight[p], p + 1, left - 1);
+		}
+	}
+}
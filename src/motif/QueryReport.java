@@ -0,0 +1,372 @@
+package motif;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reports on many query k-mers at once, e.g. candidate motifs found by other
+ * tools: for every query, the best window of every sequence, the total
+ * distance and the counts of each symbol at each position of those windows.
+ *
+ * The sequences are scanned once, each by one of a number of partitions that
+ * run in parallel. A sequence is decoded into a local array and, for every
+ * query length, into packed window codes; every query of that length is then
+ * compared with each window in a few word operations (the symbols that
+ * differ are found by XOR and counted by bit count). Queries longer than a
+ * code are compared symbol by symbol.
+ *
+ * With degenerate codes in the alphabet (IUPAC), sequences and queries may
+ * both have them, so every position of a code holds the set of symbols it
+ * stands for, one bit per symbol. The positions that match are then found
+ * by AND and the mismatches are the positions left.
+ */
+public class QueryReport {
+
+	private final SequenceStore store; // the sequences
+	private final Alphabet alpha; // the alphabet of sequences and queries
+	private final boolean sets; // positions hold sets, matched by AND
+	private final int bits; // the number of bits per symbol in a code
+	private final long low; // the lowest bit of every symbol of a code
+
+	private KMer[] queries; // the queries of the last run
+	private int[][] positions; // per query and sequence, the best window
+	private int[][] distances; // per query and sequence, its mismatches
+
+	/**
+	 * Prepares reports over the sequences of a store
+	 *
+	 * @param store
+	 *            the sequences
+	 */
+	public QueryReport(SequenceStore store) {
+		this.store = store;
+		this.alpha = store.getAlphabet();
+		this.sets = alpha.isDegenerate();
+		this.bits = sets ? alpha.getSize() : SequenceStore.bitsFor(alpha);
+		long mask = 0;
+		for (int i = 0; i + bits <= 64; i += bits)
+			mask |= 1L << i;
+		this.low = mask;
+	}
+
+	/**
+	 * Reads queries from a file with one k-mer per line. Empty lines and
+	 * lines starting with '#' or '>' are skipped.
+	 *
+	 * @param alpha
+	 *            the alphabet of the queries
+	 * @param filename
+	 *            the name of the file
+	 * @return the queries in file order
+	 * @throws IOException
+	 *             if the file operation fails
+	 */
+	public static KMer[] readQueries(Alphabet alpha, String filename)
+			throws IOException {
+		List<KMer> queries = new ArrayList<KMer>();
+		BufferedReader br = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			int row = 0;
+			while ((line = br.readLine()) != null) {
+				row++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")
+						|| line.startsWith(">"))
+					continue;
+				try {
+					queries.add(new KMer(alpha, alpha.toIndex(line
+							.toCharArray())));
+				} catch (RuntimeException e) {
+					throw new RuntimeException("Invalid query in file "
+							+ filename + " at row " + row + ": "
+							+ e.getMessage());
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return queries.toArray(new KMer[queries.size()]);
+	}
+
+	/**
+	 * Finds the best window of every sequence for every query
+	 *
+	 * @param queries
+	 *            the complete query k-mers, of any lengths
+	 * @param threads
+	 *            the number of partitions scanned at the same time
+	 * @throws RuntimeException
+	 *             if the thread is interrupted during the scan
+	 */
+	public void run(KMer[] queries, int threads) {
+		int n = store.getCount();
+		this.queries = queries;
+		this.positions = new int[queries.length][n];
+		this.distances = new int[queries.length][n];
+
+		/* Group the queries by length */
+		List<Integer> lengths = new ArrayList<Integer>();
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		for (int q = 0; q < queries.length; q++) {
+			int K = queries[q].getK();
+			int g = lengths.indexOf(K);
+			if (g < 0) {
+				g = lengths.size();
+				lengths.add(K);
+				groups.add(new ArrayList<Integer>());
+			}
+			groups.get(g).add(q);
+		}
+		int[][] members = new int[groups.size()][];
+		for (int g = 0; g < members.length; g++) {
+			members[g] = new int[groups.get(g).size()];
+			for (int i = 0; i < members[g].length; i++)
+				members[g][i] = groups.get(g).get(i);
+		}
+
+		/* Partitions of about the same number of symbols */
+		int parts = Math.max(1, Math.min(threads, n));
+		long total = store.getTotalLength(), sum = 0;
+		int[] bounds = new int[parts + 1];
+		for (int s = 0, p = 1; s < n && p < parts; s++) {
+			sum += store.getLength(s);
+			if (sum * parts >= total * p)
+				bounds[p++] = s + 1;
+		}
+		for (int p = 1; p <= parts; p++)
+			bounds[p] = Math.max(bounds[p], p == parts ? n : bounds[p - 1]);
+
+		ExecutorService pool = Executors.newFixedThreadPool(parts);
+		try {
+			List<Future<Object>> scans = new ArrayList<Future<Object>>();
+			for (int p = 0; p < parts; p++)
+				scans.add(pool.submit(new Partition(bounds[p], bounds[p + 1],
+						members)));
+			for (Future<Object> f : scans) {
+				try {
+					f.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Search was interrupted");
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Scans the sequences from..to-1 for all queries
+	 */
+	private void scan(int from, int to, int[][] members) {
+		int[] symbols = new int[0];
+		long[] codes = new long[0];
+		for (int s = from; s < to; s++) {
+			int N = store.getLength(s);
+			if (symbols.length < N) {
+				symbols = new int[N];
+				codes = new long[N];
+			}
+			long start = store.getStart(s);
+			for (int i = 0; i < N; i++)
+				symbols[i] = sets ? alpha.getSet(store.symbolAt(start + i))
+						: store.symbolAt(start + i);
+
+			for (int[] group : members) {
+				int K = queries[group[0]].getK();
+				int W = N - K + 1;
+				if (W < 1) { // too short for the queries
+					for (int q : group) {
+						positions[q][s] = -1;
+						distances[q][s] = K;
+					}
+					continue;
+				}
+				if (K * bits <= 64) {
+					/* Pack every window once, first symbol most significant */
+					long mask = K * bits == 64 ? -1L : (1L << (K * bits)) - 1;
+					long code = 0;
+					for (int i = 0; i < N; i++) {
+						code = ((code << bits) | symbols[i]) & mask;
+						if (i >= K - 1)
+							codes[i - K + 1] = code;
+					}
+					for (int q : group)
+						scanPacked(q, s, codes, W, pack(queries[q]), mask);
+				} else {
+					for (int q : group)
+						scanSymbols(q, s, symbols, W);
+				}
+			}
+		}
+	}
+
+	private long pack(KMer kmer) {
+		long code = 0;
+		for (int symbol : kmer.getKMer())
+			code = (code << bits) | (sets ? alpha.getSet(symbol) : symbol);
+		return code;
+	}
+
+	private void scanPacked(int q, int s, long[] codes, int W, long query,
+			long mask) {
+		long lowBits = low & mask;
+		int best = Integer.MAX_VALUE, at = 0;
+		if (sets) {
+			int K = Long.bitCount(lowBits);
+			for (int w = 0; w < W && best > 0; w++) {
+				long both = codes[w] & query;
+				long any = both;
+				for (int b = 1; b < bits; b++)
+					any |= both >>> b;
+				int mm = K - Long.bitCount(any & lowBits);
+				if (mm < best) {
+					best = mm;
+					at = w;
+				}
+			}
+		} else
+			for (int w = 0; w < W && best > 0; w++) {
+				long diff = codes[w] ^ query;
+				long any = diff;
+				for (int b = 1; b < bits; b++)
+					any |= diff >>> b;
+				int mm = Long.bitCount(any & lowBits);
+				if (mm < best) {
+					best = mm;
+					at = w;
+				}
+			}
+		positions[q][s] = at;
+		distances[q][s] = best;
+	}
+
+	private void scanSymbols(int q, int s, int[] symbols, int W) {
+		int[] word = queries[q].getKMer();
+		int K = word.length;
+		int best = Integer.MAX_VALUE, at = 0;
+		for (int w = 0; w < W && best > 0; w++) {
+			int mm = 0;
+			for (int j = 0; j < K && mm < best; j++)
+				if (sets ? (symbols[w + j] & alpha.getSet(word[j])) == 0
+						: symbols[w + j] != word[j])
+					mm++;
+			if (mm < best) {
+				best = mm;
+				at = w;
+			}
+		}
+		positions[q][s] = at;
+		distances[q][s] = best;
+	}
+
+	/**
+	 * Retrieves the best window of a sequence for a query of the last run
+	 *
+	 * @param q
+	 *            the number of the query
+	 * @param s
+	 *            the number of the sequence
+	 * @return the position of the first best window, -1 if the sequence is
+	 *         shorter than the query
+	 */
+	public int getPosition(int q, int s) {
+		return positions[q][s];
+	}
+
+	/**
+	 * Retrieves the mismatches of the best window of a sequence for a query
+	 * of the last run
+	 *
+	 * @param q
+	 *            the number of the query
+	 * @param s
+	 *            the number of the sequence
+	 * @return the number of mismatches
+	 */
+	public int getDistance(int q, int s) {
+		return distances[q][s];
+	}
+
+	/**
+	 * Writes the report of the last run: for every query, in the layout of
+	 * {@link MedianKMer#printReport(KMer)}, one line per sequence (best
+	 * window, distance, position and name, with the number of copies of a
+	 * deduplicated sequence), the total distance and the counts of each
+	 * symbol at each position of the best windows
+	 *
+	 * @param out
+	 *            the destination, which should be buffered
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public void write(Writer out) throws IOException {
+		for (int q = 0; q < queries.length; q++) {
+			int K = queries[q].getK();
+			out.write("REPORT for " + queries[q] + "\n");
+			int[][] counts = new int[K][alpha.getSize()];
+			long total = 0;
+			for (int s = 0; s < store.getCount(); s++) {
+				int pos = positions[q][s], copies = store.getWeight(s);
+				String name = store.getName(s)
+						+ (copies > 1 ? " x" + copies : "");
+				total += copies * distances[q][s];
+				if (pos < 0) {
+					out.write("-\t" + distances[q][s] + "\t@ -\tin " + name
+							+ "\n");
+					continue;
+				}
+				long start = store.getStart(s) + pos;
+				char[] found = new char[K];
+				for (int j = 0; j < K; j++) {
+					int symbol = store.symbolAt(start + j);
+					found[j] = alpha.getSymbol(symbol);
+					if (symbol < alpha.getSize()) // not degenerate
+						counts[j][symbol] += copies;
+				}
+				out.write(new String(found) + "\t" + distances[q][s] + "\t@ "
+						+ pos + "\tin " + name + "\n");
+			}
+			out.write("Distance: " + total + "\n");
+			out.write("Counts (can use as TomTom input): \n");
+			for (int i = 0; i < alpha.getSize(); i++) {
+				for (int j = 0; j < K; j++)
+					out.write(String.format("%5d", counts[j][i]));
+				out.write("\n");
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * The scan of a range of sequences
+	 */
+	private class Partition implements Callable<Object> {
+
+		private final int from, to; // the sequences from..to-1
+		private final int[][] members; // the queries of each length
+
+		Partition(int from, int to, int[][] members) {
+			this.from = from;
+			this.to = to;
+			this.members = members;
+		}
+
+		public Object call() {
+			scan(from, to, members);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package motif;
+
+/**
+ * Selects the q smallest of a set of per-sequence distances. Distances are
+ * small integers (0..k, or k + 1 for a sequence that has been excluded), so
+ * they are kept in a histogram: adding a distance is O(1) and the sum of the
+ * q smallest or the q-th smallest is found in O(k).
+ */
+class Quorum {
+
+	private final int q; // the number of distances that are summed
+	private final int[] counts; // how many distances of each value were added
+
+	/**
+	 * Constructs an empty selection
+	 *
+	 * @param q
+	 *            the number of distances that are summed
+	 * @param k
+	 *            the largest (regular) distance
+	 */
+	Quorum(int q, int k) {
+		this.q = q;
+		this.counts = new int[k + 2];
+	}
+
+	/**
+	 * @return the number of distances that are summed
+	 */
+	int getQ() {
+		return q;
+	}
+
+	/**
+	 * Removes all distances
+	 */
+	void clear() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = 0;
+	}
+
+	/**
+	 * Adds a distance
+	 *
+	 * @param d
+	 *            the distance, 0..k+1
+	 */
+	void add(int d) {
+		counts[d]++;
+	}
+
+	/**
+	 * Adds a distance a number of times, e.g. for a sequence that stands for
+	 * several identical ones
+	 *
+	 * @param d
+	 *            the distance, 0..k+1
+	 * @param copies
+	 *            the number of times
+	 */
+	void add(int d, int copies) {
+		counts[d] += copies;
+	}
+
+	/**
+	 * @return the sum of the q smallest distances added
+	 */
+	int sum() {
+		int sum = 0, left = q;
+		for (int d = 0; d < counts.length && left > 0; d++) {
+			int take = counts[d] < left ? counts[d] : left;
+			sum += take * d;
+			left -= take;
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the q-th smallest distance added
+	 */
+	int kth() {
+		int seen = 0;
+		for (int d = 0; d < counts.length; d++) {
+			seen += counts[d];
+			if (seen >= q)
+				return d;
+		}
+		return counts.length - 1;
+	}
+}
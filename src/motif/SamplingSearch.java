@@ -0,0 +1,285 @@
+package motif;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Approximate search for the median k-mer of a large sequence set.
+ *
+ * The exact search is run on random subsamples of the sequences, starting
+ * small and doubling the subsample size every round. The winners of all
+ * subsamples are verified against the full set and the one with the smallest
+ * full-set distance becomes the top candidate. The search stops when the top
+ * candidate has not changed for a number of rounds, or when the subsamples
+ * reach the size of the full set. The subsamples of a round are searched in
+ * parallel and are drawn from a seeded generator, so a run is reproducible.
+ * The winners are much alike, so they are verified with a
+ * {@link HintedScorer}, which tries the windows where earlier winners matched
+ * first and stops once a winner cannot beat the top candidate.
+ *
+ * With a quorum q, the distance sums the q best-matching sequences. Each
+ * subsample is searched with the same share of its sequences (at least one),
+ * and the winners are verified with the quorum over the full set.
+ */
+public class SamplingSearch {
+
+	private final SequenceStore store; // the full sequence set
+	private final int k; // the length of the sought k-mer
+	private final long seed; // seed of the subsample generator
+	private final HintedScorer scorer; // verifies the winners
+
+	private int initialSize = 32; // sequences in the first subsamples
+	private int replicates = 4; // subsamples per round
+	private int patience = 2; // unchanged rounds before stopping
+	private int quorum = 0; // sum over the best q sequences, 0 for all
+
+	private final List<String> log = new ArrayList<String>();
+	private final List<int[]> winners = new ArrayList<int[]>();
+	private int[] top; // the best verified candidate
+	private int topDistance; // its distance over all sequences
+	private int searches; // the number of subsample searches run
+
+	/**
+	 * Prepares an approximate search
+	 *
+	 * @param store
+	 *            the full sequence set
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @param seed
+	 *            the seed for drawing subsamples
+	 */
+	public SamplingSearch(SequenceStore store, int k, long seed) {
+		this.store = store;
+		this.k = k;
+		this.seed = seed;
+		this.scorer = new HintedScorer(store);
+	}
+
+	/**
+	 * Sets the number of sequences in the first round of subsamples
+	 *
+	 * @param size
+	 *            the initial subsample size
+	 */
+	public void setInitialSize(int size) {
+		this.initialSize = size < 1 ? 1 : size;
+	}
+
+	/**
+	 * Sets the number of subsamples drawn in each round
+	 *
+	 * @param replicates
+	 *            the number of subsamples per round
+	 */
+	public void setReplicates(int replicates) {
+		this.replicates = replicates < 1 ? 1 : replicates;
+	}
+
+	/**
+	 * Sets the number of rounds the top candidate must survive unchanged
+	 * before the search stops
+	 *
+	 * @param patience
+	 *            the number of rounds
+	 */
+	public void setPatience(int patience) {
+		this.patience = patience < 1 ? 1 : patience;
+	}
+
+	/**
+	 * Restricts the distance to the sum over the q best-matching sequences
+	 *
+	 * @param q
+	 *            the quorum, or 0 to sum over all sequences
+	 */
+	public void setQuorum(int q) {
+		if (q < 0)
+			throw new RuntimeException("Invalid quorum " + q);
+		this.quorum = q;
+	}
+
+	/**
+	 * Runs rounds of subsample searches until the top candidate is stable
+	 *
+	 * @param threads
+	 *            the number of subsamples searched at the same time
+	 * @return the full-set distance of the top candidate
+	 */
+	public int search(int threads) {
+		int n = store.getCount();
+		Random random = new Random(seed);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+				threads));
+		log.clear();
+		winners.clear();
+		top = null;
+		topDistance = Integer.MAX_VALUE;
+		searches = 0;
+		try {
+			int unchanged = 0;
+			for (int size = Math.min(initialSize, n);; size = Math.min(
+					size * 2, n)) {
+				/* Draw all subsamples first so the result is reproducible */
+				List<Future<int[]>> round = new ArrayList<Future<int[]>>();
+				int draws = size == n ? 1 : replicates;
+				for (int r = 0; r < draws; r++)
+					round.add(pool.submit(new Subsample(draw(random, n, size))));
+
+				int[] previous = top;
+				int agree = 0;
+				List<int[]> found = new ArrayList<int[]>();
+				for (Future<int[]> f : round)
+					found.add(get(f));
+				for (int[] kmer : found) {
+					searches++;
+					winners.add(kmer);
+					verify(kmer);
+				}
+				for (int[] kmer : found)
+					if (Arrays.equals(kmer, top))
+						agree++;
+
+				unchanged = Arrays.equals(previous, top) ? unchanged + 1 : 0;
+				log.add(size + "\t" + draws + "\t" + agree + "\t"
+						+ toKMer(top) + ":" + topDistance);
+				if (unchanged >= patience || size == n)
+					break;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return topDistance;
+	}
+
+	/**
+	 * @return the best verified candidate
+	 */
+	public KMer getKMer() {
+		return toKMer(top);
+	}
+
+	/**
+	 * @return the distance of the best candidate over all sequences
+	 */
+	public int getDistance() {
+		return topDistance;
+	}
+
+	/**
+	 * Retrieves the fraction of all subsample searches whose winner was the
+	 * top candidate.
+	 *
+	 * @return the stability of the top candidate between 0 and 1
+	 */
+	public double getStability() {
+		int agree = 0;
+		for (int[] kmer : winners)
+			if (Arrays.equals(kmer, top))
+				agree++;
+		return winners.isEmpty() ? 0 : agree / (double) winners.size();
+	}
+
+	/**
+	 * @return the number of subsample searches that were run
+	 */
+	public int getSearches() {
+		return searches;
+	}
+
+	/**
+	 * Printable summary with one row per round
+	 */
+	public String toString() {
+		StringBuffer sbuf = new StringBuffer();
+		sbuf.append("size\tsamples\tagree\tcandidate\n");
+		for (String line : log)
+			sbuf.append(line + "\n");
+		sbuf.append("Approximate: " + toKMer(top) + ":" + topDistance
+				+ " (stability " + String.format("%.2f", getStability())
+				+ " over " + searches + " subsamples, hints hit in "
+				+ String.format("%.1f", 100 * scorer.getHitRate())
+				+ "% of " + scorer.getLookups() + " scans)");
+		return sbuf.toString();
+	}
+
+	/**
+	 * Scores a candidate on the full set and keeps it if it is the best so
+	 * far (ties go to the candidate found first)
+	 */
+	private void verify(int[] kmer) {
+		if (top != null && Arrays.equals(kmer, top))
+			return;
+		int distance = quorum > 0 && quorum < store.getTotalWeight() ? scorer
+				.score(kmer, k, new Quorum(quorum, k)) : scorer.score(kmer, k,
+				topDistance);
+		if (distance < topDistance) {
+			top = kmer;
+			topDistance = distance;
+		}
+	}
+
+	/**
+	 * Draws a sorted random subset of the sequence numbers 0..n-1
+	 */
+	private static int[] draw(Random random, int n, int size) {
+		int[] all = new int[n];
+		for (int i = 0; i < n; i++)
+			all[i] = i;
+		for (int i = 0; i < size; i++) { // partial Fisher-Yates shuffle
+			int j = i + random.nextInt(n - i);
+			int tmp = all[i];
+			all[i] = all[j];
+			all[j] = tmp;
+		}
+		int[] chosen = Arrays.copyOf(all, size);
+		Arrays.sort(chosen);
+		return chosen;
+	}
+
+	private KMer toKMer(int[] kmer) {
+		return kmer == null ? new KMer(store.getAlphabet(), k) : new KMer(
+				store.getAlphabet(), kmer.clone());
+	}
+
+	private static int[] get(Future<int[]> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Search was interrupted");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * An exact search on one subsample
+	 */
+	private class Subsample implements Callable<int[]> {
+
+		private final int[] selection;
+
+		Subsample(int[] selection) {
+			this.selection = selection;
+		}
+
+		public int[] call() {
+			SequenceStore subset = store.subset(selection);
+			WindowSearch search = new WindowSearch(subset, k, null);
+			if (quorum > 0) // the same share of the subsample
+				search.setQuorum((int) Math.max(1, (quorum
+						* subset.getTotalWeight() + store.getTotalWeight() - 1)
+						/ store.getTotalWeight()));
+			search.search();
+			return search.getKMer().getKMer();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ *
+ */
+package motif;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ */
+public class SamplingSearchTest {
+
+	@Test
+	public void testSamplingSearch() {
+		try {
+			SequenceStore store = SequenceStore.fromSequences(DNASequence
+					.readFile(new Alphabet(), "data/ihfA_26.fasta"));
+			SamplingSearch first = new SamplingSearch(store, 5, 42);
+			first.setInitialSize(4);
+			int distance = first.search(2);
+			// the reported distance is the winner's over all sequences
+			int sum = 0;
+			for (int s = 0; s < store.getCount(); s++)
+				sum += MedianKMer.getDistance(store, s, first.getKMer());
+			assertEquals(sum, distance);
+			assertEquals(distance, first.getDistance());
+			// the same seed gives the same subsamples, whatever the threads
+			SamplingSearch again = new SamplingSearch(store, 5, 42);
+			again.setInitialSize(4);
+			assertEquals(distance, again.search(1));
+			assertEquals(first.getKMer().toString(), again.getKMer().toString());
+			assertEquals(first.getSearches(), again.getSearches());
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSamplingSearchQuorum() {
+		try {
+			SequenceStore store = SequenceStore.fromSequences(DNASequence
+					.readFile(new Alphabet(), "data/ihfA_26.fasta"));
+			SamplingSearch approx = new SamplingSearch(store, 5, 3);
+			approx.setInitialSize(4);
+			approx.setQuorum(10);
+			int distance = approx.search(2);
+			// the distance of the winner over its 10 best sequences
+			int[] d = new int[store.getCount()];
+			for (int s = 0; s < d.length; s++)
+				d[s] = MedianKMer.getDistance(store, s, approx.getKMer());
+			Arrays.sort(d);
+			int sum = 0;
+			for (int s = 0; s < 10; s++)
+				sum += d[s];
+			assertEquals(sum, distance);
+			MedianKMer ms = new MedianKMer(store);
+			ms.setQuorum(10);
+			assertTrue(distance >= ms.findMedianKMer(5,
+					MedianKMer.Engine.NAIVE).getDistance());
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package motif;
+
+/**
+ * Counters collected during a branch-and-bound search, kept per depth of the
+ * search tree (depth d means that d positions of the k-mer are specified).
+ */
+public class SearchStats {
+
+	private final int k; // the length of the sought k-mer
+	private final long[] nodes; // nodes that were evaluated at each depth
+	private final long[] pruned; // nodes that were cut by the bound
+	private final long[] windowsIn; // windows carried over from the parents
+	private final long[] windowsKept; // windows that survived at each depth
+	private long hintLookups; // scans of complete k-mers that used hints
+	private long hintHits; // such scans whose minimum was at a hint
+
+	/**
+	 * Constructs empty counters for a search for k-mers of length k
+	 *
+	 * @param k
+	 *            the length of the sought k-mer
+	 */
+	public SearchStats(int k) {
+		this.k = k;
+		this.nodes = new long[k + 1];
+		this.pruned = new long[k + 1];
+		this.windowsIn = new long[k + 1];
+		this.windowsKept = new long[k + 1];
+	}
+
+	/**
+	 * Records that a node at the specified depth was evaluated
+	 *
+	 * @param depth
+	 *            the depth of the node
+	 * @param cut
+	 *            true if the node was pruned by the bound
+	 */
+	void node(int depth, boolean cut) {
+		nodes[depth]++;
+		if (cut)
+			pruned[depth]++;
+	}
+
+	/**
+	 * Records how many of the active windows of a sequence survived at a node
+	 *
+	 * @param depth
+	 *            the depth of the node
+	 * @param in
+	 *            the number of windows inherited from the parent
+	 * @param kept
+	 *            the number of windows that are still viable
+	 */
+	void windows(int depth, long in, long kept) {
+		windowsIn[depth] += in;
+		windowsKept[depth] += kept;
+	}
+
+	/**
+	 * Records scans of complete k-mers made with a {@link HintedScorer}
+	 *
+	 * @param lookups
+	 *            the number of scans that found a window below their cap
+	 * @param hits
+	 *            the number of those whose minimum was at a hint
+	 */
+	void hints(long lookups, long hits) {
+		hintLookups += lookups;
+		hintHits += hits;
+	}
+
+	/**
+	 * @return the number of hinted scans of complete k-mers
+	 */
+	public long getHintLookups() {
+		return hintLookups;
+	}
+
+	/**
+	 * @return the fraction of hinted scans whose minimum was at a hint, 0 if
+	 *         there were none
+	 */
+	public double getHintHitRate() {
+		return hintLookups == 0 ? 0 : hintHits / (double) hintLookups;
+	}
+
+	/**
+	 * @return the total number of nodes that were evaluated
+	 */
+	public long getNodes() {
+		long total = 0;
+		for (long n : nodes)
+			total += n;
+		return total;
+	}
+
+	/**
+	 * @return the total number of nodes that were cut by the bound
+	 */
+	public long getPruned() {
+		long total = 0;
+		for (long n : pruned)
+			total += n;
+		return total;
+	}
+
+	/**
+	 * Retrieves the fraction of inherited windows that survived at a depth
+	 *
+	 * @param depth
+	 *            the depth in the search tree (1..k)
+	 * @return the survival rate, or 1 if no windows were seen at that depth
+	 */
+	public double getSurvival(int depth) {
+		if (windowsIn[depth] == 0)
+			return 1.0;
+		return windowsKept[depth] / (double) windowsIn[depth];
+	}
+
+	/**
+	 * Printable table with one row per depth
+	 */
+	public String toString() {
+		StringBuffer sbuf = new StringBuffer();
+		sbuf.append("depth\tnodes\tpruned\twindows\tsurvival\n");
+		for (int d = 1; d <= k; d++) {
+			sbuf.append(d + "\t" + nodes[d] + "\t" + pruned[d] + "\t"
+					+ windowsKept[d] + "\t"
+					+ String.format("%.3f", getSurvival(d)) + "\n");
+		}
+		sbuf.append("total\t" + getNodes() + "\t" + getPruned());
+		if (hintLookups > 0)
+			sbuf.append("\nhints\t" + hintHits + " of " + hintLookups
+					+ " scans (" + String.format("%.1f", 100 * getHintHitRate())
+					+ "%)");
+		return sbuf.toString();
+	}
+}
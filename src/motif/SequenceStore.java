@@ -0,0 +1,923 @@
+package motif;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.StringTokenizer;
+import java.util.zip.CRC32;
+
+/**
+ * A read-only collection of sequences kept outside the Java heap.
+ *
+ * All symbols are packed into one direct (or memory-mapped) buffer using the
+ * smallest number of bits that can hold a symbol index of the alphabet, i.e.
+ * 2 bits per base for DNA and 5 per residue for proteins. A width that does
+ * not divide a byte lets symbols straddle two bytes, which are then read
+ * together; the widths that do (1, 2, 4 or 8) keep the single-byte read.
+ * The start of each sequence and of
+ * each name are kept in offset tables that are also off-heap, so the heap
+ * usage of a store does not depend on the number or length of the sequences.
+ * With degenerate codes in the alphabet (see {@link Alphabet#iupac(boolean)})
+ * the codes are packed as well, e.g. 4 bits per base with the IUPAC codes,
+ * and a store notes whether any of them occur: the searches only take the
+ * slower way of matching sets of bases if they do.
+ *
+ * Only absolute reads are used on the buffers, so a store can be shared by
+ * any number of threads without copying.
+ *
+ * A view may give each of its sequences a weight, the number of identical
+ * sequences that it stands for (see {@link #deduplicate()}). Searches count
+ * a sequence of weight w as w sequences, so that a weighted view gives the
+ * same distances as the sequences it was made from.
+ */
+public class SequenceStore {
+
+	private static final int MAGIC = 0x4D4B5331; // "MKS1"
+	private static final int VERSION = 3; // 2 adds degenerate codes, 3 width
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Alphabet alpha; // the alphabet of all sequences
+	private final int count; // the number of sequences
+	private final ByteBuffer bases; // the packed symbols
+	private final ByteBuffer starts; // count + 1 longs, symbol offsets
+	private final ByteBuffer names; // UTF-8 names
+	private final ByteBuffer nameStarts; // count + 1 ints, name offsets
+	private final int[] records; // the records of a view, null for all
+	private final int[] weights; // copies per sequence of a view, null for 1
+	private final boolean degenerate; // some symbol is a degenerate code
+
+	private final int bits; // bits per symbol (1..8)
+	private final boolean aligned; // bits divides 8: no symbol spans bytes
+	private final int logBits; // log2(bits) if aligned
+	private final int shift; // log2(symbols per byte) if aligned
+	private final int slot; // symbols per byte - 1 if aligned
+	private final int symbolMask; // (1 << bits) - 1
+
+	/**
+	 * Wraps buffers that have been filled (or mapped) elsewhere
+	 */
+	private SequenceStore(Alphabet alpha, int count, ByteBuffer bases,
+			ByteBuffer starts, ByteBuffer names, ByteBuffer nameStarts,
+			boolean degenerate, int bits) {
+		this.alpha = alpha;
+		this.count = count;
+		this.bases = bases;
+		this.starts = starts;
+		this.names = names;
+		this.nameStarts = nameStarts;
+		this.records = null;
+		this.weights = null;
+		this.degenerate = degenerate;
+		this.bits = bits;
+		this.aligned = isAligned(bits);
+		this.logBits = Integer.numberOfTrailingZeros(bits);
+		this.shift = 3 - logBits;
+		this.slot = (8 >> logBits) - 1;
+		this.symbolMask = (1 << bits) - 1;
+	}
+
+	/**
+	 * Creates a view of some of the records of another store, sharing its
+	 * buffers
+	 */
+	private SequenceStore(SequenceStore parent, int[] records, int[] weights) {
+		this.alpha = parent.alpha;
+		this.count = records.length;
+		this.bases = parent.bases;
+		this.starts = parent.starts;
+		this.names = parent.names;
+		this.nameStarts = parent.nameStarts;
+		this.records = records;
+		this.weights = weights;
+		this.degenerate = parent.degenerate;
+		this.bits = parent.bits;
+		this.aligned = parent.aligned;
+		this.logBits = parent.logBits;
+		this.shift = parent.shift;
+		this.slot = parent.slot;
+		this.symbolMask = parent.symbolMask;
+	}
+
+	/**
+	 * Creates a store holding a selection of the sequences of this store. No
+	 * symbols are copied; the new store reads from the same buffers. The
+	 * selected sequences keep their weights.
+	 *
+	 * @param selection
+	 *            the sequence numbers to include, in order
+	 * @return a view of the selected sequences
+	 */
+	public SequenceStore subset(int[] selection) {
+		int[] chosen = new int[selection.length];
+		int[] kept = weights == null ? null : new int[selection.length];
+		for (int i = 0; i < selection.length; i++) {
+			chosen[i] = record(selection[i]);
+			if (kept != null)
+				kept[i] = weights[selection[i]];
+		}
+		return new SequenceStore(this, chosen, kept);
+	}
+
+	/**
+	 * Collapses identical sequences into one representative, the first of
+	 * them, whose weight is the number of copies. The symbols of every
+	 * sequence are packed into 64-bit words and hashed, and sequences with the
+	 * same hash and length are compared symbol by symbol. Names do not matter.
+	 *
+	 * @return a view of the distinct sequences, or this store if they are all
+	 *         distinct
+	 */
+	public SequenceStore deduplicate() {
+		Map<Long, List<Integer>> seen = new HashMap<Long, List<Integer>>();
+		int[] firsts = new int[count], copies = new int[count];
+		int distinct = 0;
+		for (int s = 0; s < count; s++) {
+			Long key = hash(s);
+			List<Integer> same = seen.get(key);
+			if (same == null) {
+				same = new ArrayList<Integer>(1);
+				seen.put(key, same);
+			}
+			int found = -1;
+			for (int d : same)
+				if (sameSymbols(firsts[d], s)) {
+					found = d;
+					break;
+				}
+			if (found < 0) {
+				found = distinct++;
+				firsts[found] = s;
+				same.add(found);
+			}
+			copies[found] += getWeight(s);
+		}
+		if (distinct == count)
+			return this;
+		int[] chosen = new int[distinct];
+		for (int d = 0; d < distinct; d++)
+			chosen[d] = record(firsts[d]);
+		return new SequenceStore(this, chosen, Arrays
+				.copyOf(copies, distinct));
+	}
+
+	/**
+	 * Hashes the length and the packed symbols of a sequence
+	 */
+	private long hash(int s) {
+		long start = getStart(s);
+		int length = getLength(s), perWord = 64 / bits;
+		long h = length * 0x9E3779B97F4A7C15L;
+		for (int i = 0; i < length; i += perWord) {
+			long word = 0;
+			for (int j = i; j < i + perWord && j < length; j++)
+				word = (word << bits) | symbolAt(start + j);
+			h = (h ^ word) * 0xBF58476D1CE4E5B9L;
+			h ^= h >>> 31;
+		}
+		return h;
+	}
+
+	/**
+	 * Checks if two sequences have the same symbols
+	 */
+	private boolean sameSymbols(int s, int t) {
+		int length = getLength(s);
+		if (length != getLength(t))
+			return false;
+		long a = getStart(s), b = getStart(t);
+		for (int i = 0; i < length; i++)
+			if (symbolAt(a + i) != symbolAt(b + i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Retrieves the number of identical sequences that a sequence stands for
+	 *
+	 * @param s
+	 *            the sequence number 0..count-1
+	 * @return the weight, 1 unless the store was deduplicated
+	 */
+	public int getWeight(int s) {
+		return weights == null ? 1 : weights[s];
+	}
+
+	/**
+	 * @return true if some sequence stands for more than one
+	 */
+	public boolean isWeighted() {
+		return weights != null;
+	}
+
+	/**
+	 * @return the number of sequences counting each as its weight, i.e. the
+	 *         number before deduplication
+	 */
+	public long getTotalWeight() {
+		if (weights == null)
+			return count;
+		long total = 0;
+		for (int w : weights)
+			total += w;
+		return total;
+	}
+
+	/**
+	 * @return true if some symbol is a degenerate code of the alphabet, which
+	 *         matches by its set of symbols (of a view, if the symbols of its
+	 *         parent had one)
+	 */
+	public boolean isDegenerate() {
+		return degenerate;
+	}
+
+	/**
+	 * Maps a sequence number to the record it refers to in the buffers
+	 */
+	private int record(int s) {
+		return records == null ? s : records[s];
+	}
+
+	/**
+	 * Determines the number of bits used to pack a symbol of an alphabet into
+	 * the code of a k-mer (degenerate codes do not occur in k-mers)
+	 *
+	 * @param alpha
+	 *            the alphabet
+	 * @return 1..8, e.g. 2 for DNA and 5 for amino acids
+	 */
+	static int bitsFor(Alphabet alpha) {
+		return bitsFor(alpha == null ? 2 : alpha.getSize());
+	}
+
+	/**
+	 * Determines the number of bits used to pack a symbol or degenerate code
+	 * of an alphabet into a store
+	 *
+	 * @param alpha
+	 *            the alphabet
+	 * @return 1..8
+	 */
+	static int codeBitsFor(Alphabet alpha) {
+		return bitsFor(alpha == null ? 2 : alpha.getCodes().length);
+	}
+
+	private static int bitsFor(int size) {
+		if (size > 256)
+			throw new RuntimeException("Alphabets of more than 256 symbols "
+					+ "cannot be packed");
+		int bits = 1;
+		while ((1 << bits) < size)
+			bits++;
+		return bits;
+	}
+
+	/**
+	 * Determines the width of the symbols of a file from before the width was
+	 * recorded, when it was rounded up to a power of two
+	 */
+	private static int legacyBitsFor(int size) {
+		int bits = 1;
+		while ((1 << bits) < size)
+			bits <<= 1;
+		return bits;
+	}
+
+	private static boolean isAligned(int bits) {
+		return (bits & (bits - 1)) == 0;
+	}
+
+	/**
+	 * Retrieves the alphabet that is used for all sequences
+	 *
+	 * @return the alphabet
+	 */
+	public Alphabet getAlphabet() {
+		return alpha;
+	}
+
+	/**
+	 * @return the number of sequences in the store
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Retrieves the position of the first symbol of a sequence, to be used
+	 * with {@link #symbolAt(long)}
+	 *
+	 * @param s
+	 *            the sequence number 0..count-1
+	 * @return the offset of the sequence within the store
+	 */
+	public long getStart(int s) {
+		return starts.getLong(record(s) << 3);
+	}
+
+	/**
+	 * Retrieves the length of a sequence
+	 *
+	 * @param s
+	 *            the sequence number 0..count-1
+	 * @return the number of symbols
+	 */
+	public int getLength(int s) {
+		int r = record(s);
+		return (int) (starts.getLong((r + 1) << 3) - starts.getLong(r << 3));
+	}
+
+	/**
+	 * @return the total number of symbols of all sequences
+	 */
+	public long getTotalLength() {
+		if (records == null)
+			return starts.getLong(count << 3);
+		long total = 0;
+		for (int s = 0; s < count; s++)
+			total += getLength(s);
+		return total;
+	}
+
+	/**
+	 * Computes a checksum of the contents (the lengths, symbols and weights
+	 * of the sequences, not their names), so that files derived from the
+	 * sequences can be recognised.
+	 *
+	 * @return the number of sequences (high 32 bits) and a CRC-32 of the
+	 *         contents (low 32 bits)
+	 */
+	public long getFingerprint() {
+		if (records != null) {
+			long packed = pack().getFingerprint(); // as if the view were saved
+			if (weights == null)
+				return packed;
+			CRC32 crc = new CRC32();
+			ByteBuffer buf = ByteBuffer.allocate(8 + 4 * count);
+			buf.putLong(packed);
+			for (int w : weights)
+				buf.putInt(w);
+			crc.update(buf.array());
+			return ((long) count << 32) | crc.getValue();
+		}
+		CRC32 crc = new CRC32();
+		ByteBuffer region = starts.duplicate();
+		region.position(0);
+		crc.update(region);
+		region = bases.duplicate();
+		region.position(0);
+		crc.update(region);
+		return ((long) count << 32) | crc.getValue();
+	}
+
+	/**
+	 * @return the length of the longest sequence
+	 */
+	public int getMaxLength() {
+		int max = 0;
+		for (int s = 0; s < count; s++)
+			max = Math.max(max, getLength(s));
+		return max;
+	}
+
+	/**
+	 * Retrieves a symbol by its position in the store
+	 *
+	 * @param pos
+	 *            the position, e.g. getStart(s) + i for symbol i of sequence s
+	 * @return the symbol index
+	 */
+	public int symbolAt(long pos) {
+		if (aligned) {
+			int b = bases.get((int) (pos >>> shift));
+			return (b >>> (((int) pos & slot) << logBits)) & symbolMask;
+		}
+		/* The symbol lies in the two bytes from its first bit */
+		long bit = pos * bits;
+		int at = (int) (bit >>> 3);
+		int pair = (bases.get(at) & 0xFF) | (bases.get(at + 1) & 0xFF) << 8;
+		return (pair >>> ((int) bit & 7)) & symbolMask;
+	}
+
+	/**
+	 * Retrieves the index of the symbol found at the specified position of a
+	 * sequence.
+	 *
+	 * @param s
+	 *            the sequence number 0..count-1
+	 * @param i
+	 *            position of symbol 0..n-1 where n is the length of the
+	 *            sequence
+	 * @return the index of the symbol
+	 */
+	public int getSymbol(int s, int i) {
+		return symbolAt(getStart(s) + i);
+	}
+
+	/**
+	 * Retrieves the name of a sequence
+	 *
+	 * @param s
+	 *            the sequence number 0..count-1
+	 * @return the name
+	 */
+	public String getName(int s) {
+		int r = record(s);
+		int from = nameStarts.getInt(r << 2);
+		int to = nameStarts.getInt((r + 1) << 2);
+		byte[] buf = new byte[to - from];
+		for (int i = 0; i < buf.length; i++)
+			buf[i] = names.get(from + i);
+		return new String(buf, UTF8);
+	}
+
+	/**
+	 * Printable representation of a sequence, formatted as
+	 * {@link DNASequence#toString()}
+	 *
+	 * @param s
+	 *            the sequence number 0..count-1
+	 * @return the name and the length
+	 */
+	public String toString(int s) {
+		return getName(s) + " (" + getLength(s) + ")";
+	}
+
+	/**
+	 * Copies a sequence onto the heap
+	 *
+	 * @param s
+	 *            the sequence number 0..count-1
+	 * @return an equivalent {@link DNASequence}
+	 */
+	public DNASequence getSequence(int s) {
+		int[] symbols = new int[getLength(s)];
+		long start = getStart(s);
+		for (int i = 0; i < symbols.length; i++)
+			symbols[i] = symbolAt(start + i);
+		return new DNASequence(alpha, getName(s), alpha.toChar(symbols));
+	}
+
+	/**
+	 * Copies all sequences onto the heap
+	 *
+	 * @return an array of equivalent {@link DNASequence}s
+	 */
+	public DNASequence[] toSequences() {
+		DNASequence[] seqs = new DNASequence[count];
+		for (int s = 0; s < count; s++)
+			seqs[s] = getSequence(s);
+		return seqs;
+	}
+
+	/**
+	 * Copies the sequences of this store into buffers of their own
+	 */
+	private SequenceStore pack() {
+		Builder builder = new Builder(alpha);
+		for (int s = 0; s < count; s++) {
+			builder.begin(getName(s));
+			long start = getStart(s);
+			for (int i = 0; i < getLength(s); i++)
+				builder.append(symbolAt(start + i));
+			builder.end();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Packs sequences that are already on the heap
+	 *
+	 * @param seqs
+	 *            the sequences, which must share the same alphabet
+	 * @return a store holding the same sequences
+	 */
+	public static SequenceStore fromSequences(DNASequence[] seqs) {
+		Alphabet alpha = null;
+		for (DNASequence seq : seqs)
+			if (alpha == null)
+				alpha = seq.getAlphabet();
+			else if (!alpha.equals(seq.getAlphabet()))
+				throw new RuntimeException(
+						"Sequences are using different alphabets");
+		Builder builder = new Builder(alpha);
+		for (DNASequence seq : seqs) {
+			builder.begin(seq.getName());
+			for (int symbol : seq.getSymbolIndices())
+				builder.append(symbol);
+			builder.end();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Reads sequences from a file on the FASTA standard format straight into
+	 * off-heap storage. The degenerate codes of the alphabet are read like
+	 * its symbols. Records with invalid symbols are ignored, as in
+	 * {@link DNASequence#readFile(Alphabet, String)}. A gzip or BGZF file is
+	 * inflated by other threads while it is parsed (see
+	 * {@link CompressedInput}).
+	 *
+	 * @param alpha
+	 *            the alphabet from which valid symbols are drawn
+	 * @param filename
+	 *            the name of the file
+	 * @return the sequences
+	 * @throws IOException
+	 *             if the file operation fails
+	 */
+	public static SequenceStore readFile(Alphabet alpha, String filename)
+			throws IOException {
+		Builder builder = new Builder(alpha);
+		char[] symbols = alpha.getCodes();
+		int[] lookup = new int[128];
+		for (int i = 0; i < lookup.length; i++)
+			lookup[i] = -1;
+		for (int i = 0; i < symbols.length; i++)
+			if (symbols[i] < 128)
+				lookup[symbols[i]] = i;
+
+		BufferedReader br = new BufferedReader(new InputStreamReader(
+				CompressedInput.open(filename, Runtime.getRuntime()
+						.availableProcessors())), 1 << 16);
+		try {
+			String name = null; // name of the current record, null if none
+			String error = null; // first problem with the current record
+			int row = 0;
+			String line = br.readLine();
+			while (line != null) {
+				row++;
+				line = line.trim(); // remove any spaces, tabs etc at the ends
+				if (line.startsWith(">")) {
+					if (name != null)
+						finish(builder, name, error);
+					try {
+						StringTokenizer stok = new StringTokenizer(line, " \t");
+						name = stok.nextToken().substring(1);
+					} catch (NoSuchElementException e) {
+						throw new RuntimeException("Invalid format in file "
+								+ filename + " at row " + row);
+					}
+					error = null;
+					builder.begin(name);
+				} else if (name != null && error == null) {
+					for (int i = 0; i < line.length(); i++) {
+						char c = line.charAt(i);
+						int index = c < 128 ? lookup[c] : -1;
+						if (index < 0) {
+							error = "Invalid symbol \"" + c + "\" at position "
+									+ builder.length();
+							break;
+						}
+						builder.append(index);
+					}
+				}
+				line = br.readLine();
+			}
+			if (name != null)
+				finish(builder, name, error);
+		} finally {
+			br.close();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Keeps or drops the record that is being read
+	 */
+	private static void finish(Builder builder, String name, String error) {
+		if (error == null)
+			builder.end();
+		else {
+			builder.discard();
+			System.err.println("Ignored " + name + ": " + error);
+		}
+	}
+
+	/**
+	 * Opens a store file written by {@link #write(String)} or, if the file
+	 * is not a store, reads it as FASTA.
+	 *
+	 * @param alpha
+	 *            the alphabet used for FASTA input
+	 * @param filename
+	 *            the name of the file
+	 * @return the sequences
+	 * @throws IOException
+	 *             if the file operation fails
+	 */
+	public static SequenceStore open(Alphabet alpha, String filename)
+			throws IOException {
+		if (isStore(filename))
+			return map(filename);
+		return readFile(alpha, filename);
+	}
+
+	/**
+	 * Checks if a file starts like a store file
+	 */
+	private static boolean isStore(String filename) throws IOException {
+		FileInputStream in = new FileInputStream(filename);
+		try {
+			byte[] head = new byte[4];
+			if (in.read(head) < 4)
+				return false;
+			return ByteBuffer.wrap(head).getInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the store to a file that can later be memory-mapped
+	 *
+	 * @param filename
+	 *            the name of the file
+	 * @throws RuntimeException
+	 *             if the store is weighted
+	 * @throws IOException
+	 *             if the file operation fails
+	 * @see #map(String)
+	 */
+	public void write(String filename) throws IOException {
+		if (weights != null)
+			throw new RuntimeException("Cannot write the weights of a "
+					+ "deduplicated store");
+		if (records != null) {
+			pack().write(filename); // a view shares buffers with others
+			return;
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filename)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			char[] symbols = alpha.getSymbols();
+			out.writeInt(symbols.length);
+			for (char c : symbols)
+				out.writeChar(c);
+			char[] codes = alpha.getCodes();
+			out.writeInt(codes.length - symbols.length);
+			for (int i = symbols.length; i < codes.length; i++) {
+				out.writeChar(codes[i]);
+				out.writeInt(alpha.getSet(i));
+			}
+			out.writeBoolean(degenerate);
+			out.writeInt(bits);
+			out.writeInt(count);
+			out.writeInt(bases.limit());
+			out.writeInt(names.limit());
+			copy(starts, out);
+			copy(nameStarts, out);
+			copy(names, out);
+			copy(bases, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void copy(ByteBuffer buf, DataOutputStream out)
+			throws IOException {
+		for (int i = 0; i < buf.limit(); i++)
+			out.write(buf.get(i));
+	}
+
+	/**
+	 * Memory-maps a store file. Nothing but the header is read, the symbols
+	 * are paged in by the operating system when they are used.
+	 *
+	 * @param filename
+	 *            the name of a file written by {@link #write(String)}
+	 * @return the sequences
+	 * @throws IOException
+	 *             if the file operation fails or the file is not a store
+	 */
+	public static SequenceStore map(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer all = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			if (all.getInt() != MAGIC)
+				throw new IOException(filename + " is not a sequence store");
+			int version = all.getInt();
+			if (version < 1 || version > VERSION)
+				throw new IOException(filename
+						+ " was written by another version");
+			char[] symbols = new char[length(all, filename)];
+			for (int i = 0; i < symbols.length; i++)
+				symbols[i] = all.getChar();
+			Alphabet alpha = new Alphabet(symbols);
+			boolean degenerate = false;
+			if (version > 1) {
+				char[] codes = new char[length(all, filename)];
+				int[] sets = new int[codes.length];
+				for (int i = 0; i < codes.length; i++) {
+					codes[i] = all.getChar();
+					sets[i] = all.getInt();
+				}
+				if (codes.length > 0)
+					alpha = new Alphabet(symbols, codes, sets);
+				degenerate = all.get() != 0;
+			}
+			int bits = version > 2 ? all.getInt() : legacyBitsFor(alpha
+					.getCodes().length);
+			if (bits < codeBitsFor(alpha) || bits > 8)
+				throw new IOException(filename + " has an invalid width of "
+						+ bits + " bits per symbol");
+			int count = length(all, filename);
+			int baseBytes = length(all, filename);
+			int nameBytes = length(all, filename);
+			ByteBuffer starts = region(all, (count + 1L) << 3, filename);
+			ByteBuffer nameStarts = region(all, (count + 1L) << 2, filename);
+			ByteBuffer names = region(all, nameBytes, filename);
+			ByteBuffer bases = region(all, baseBytes, filename);
+			return new SequenceStore(alpha, count, bases, starts, names,
+					nameStarts, degenerate, bits);
+		} catch (BufferUnderflowException e) {
+			throw new IOException(filename + " is truncated");
+		} finally {
+			file.close(); // the mapping stays valid
+		}
+	}
+
+	/**
+	 * Reads a count or a length from the header of a store file
+	 */
+	private static int length(ByteBuffer buf, String filename)
+			throws IOException {
+		int length = buf.getInt();
+		if (length < 0)
+			throw new IOException(filename + " has a damaged header");
+		return length;
+	}
+
+	/**
+	 * Cuts the next region of a buffer into a buffer of its own
+	 */
+	private static ByteBuffer region(ByteBuffer buf, long length,
+			String filename) throws IOException {
+		if (length > buf.remaining())
+			throw new IOException(filename + " is truncated");
+		ByteBuffer part = buf.slice();
+		part.limit((int) length);
+		buf.position(buf.position() + (int) length);
+		return part;
+	}
+
+	/**
+	 * Fills the off-heap buffers of a store one symbol at a time. Buffers grow
+	 * by doubling; all growth happens off the heap.
+	 */
+	static class Builder {
+
+		private final Alphabet alpha;
+		private final int bits, logBits, shift, slot;
+		private final boolean aligned;
+		private ByteBuffer bases = ByteBuffer.allocateDirect(1 << 12);
+		private ByteBuffer starts = ByteBuffer.allocateDirect(1 << 12);
+		private ByteBuffer names = ByteBuffer.allocateDirect(1 << 12);
+		private ByteBuffer nameStarts = ByteBuffer.allocateDirect(1 << 12);
+		private int count = 0; // records that have been completed
+		private long total = 0; // symbols of the completed records
+		private long pos = 0; // symbols including the current record
+		private int nameEnd = 0; // bytes of names of completed records
+		private int nameLength = 0; // bytes of the name of the current record
+		private boolean degenerate; // a degenerate code was appended
+		private boolean current; // ... to the current record
+
+		Builder(Alphabet alpha) {
+			this.alpha = alpha;
+			this.bits = codeBitsFor(alpha);
+			this.aligned = isAligned(bits);
+			this.logBits = Integer.numberOfTrailingZeros(bits);
+			this.shift = 3 - logBits;
+			this.slot = (8 >> logBits) - 1;
+			starts.putLong(0, 0);
+			nameStarts.putInt(0, 0);
+		}
+
+		/**
+		 * Starts a new record
+		 */
+		void begin(String name) {
+			pos = total;
+			current = false;
+			byte[] utf = name.getBytes(UTF8);
+			names = ensure(names, fit((long) nameEnd + utf.length));
+			for (int i = 0; i < utf.length; i++)
+				names.put(nameEnd + i, utf[i]);
+			nameLength = utf.length;
+		}
+
+		/**
+		 * Adds a symbol to the current record
+		 */
+		void append(int symbol) {
+			if (aligned) {
+				bases = ensure(bases, fit((pos >>> shift) + 1));
+				int at = (int) (pos >>> shift);
+				int bit = ((int) pos & slot) << logBits;
+				/* Keep the bits below; a dropped record may have left others */
+				int b = bases.get(at) & ((1 << bit) - 1);
+				bases.put(at, (byte) (b | (symbol << bit)));
+			} else {
+				long first = pos * bits;
+				/* symbolAt reads a byte beyond */
+				bases = ensure(bases, fit((first >>> 3) + 2));
+				int at = (int) (first >>> 3), bit = (int) first & 7;
+				int b = bases.get(at) & ((1 << bit) - 1);
+				bases.put(at, (byte) (b | (symbol << bit)));
+				if (bit + bits > 8)
+					bases.put(at + 1, (byte) (symbol >>> (8 - bit)));
+			}
+			pos++;
+			current |= symbol >= alpha.getSize();
+		}
+
+		/**
+		 * @return the number of symbols in the current record
+		 */
+		int length() {
+			return (int) (pos - total);
+		}
+
+		/**
+		 * Completes the current record
+		 */
+		void end() {
+			count++;
+			starts = ensure(starts, fit((count + 1L) << 3));
+			starts.putLong(count << 3, pos);
+			total = pos;
+			degenerate |= current;
+			nameEnd += nameLength;
+			nameStarts = ensure(nameStarts, fit((count + 1L) << 2));
+			nameStarts.putInt(count << 2, nameEnd);
+		}
+
+		/**
+		 * Drops the current record
+		 */
+		void discard() {
+			pos = total;
+		}
+
+		/**
+		 * @return a store holding the completed records
+		 */
+		SequenceStore build() {
+			int length = aligned ? (int) ((total + slot) >>> shift)
+					: (int) ((total * bits + 7) >>> 3) + 1;
+			bases = ensure(bases, length);
+			ByteBuffer b = trim(bases, length);
+			return new SequenceStore(alpha, count, b, trim(starts,
+					(count + 1) << 3), trim(names, nameEnd), trim(nameStarts,
+					(count + 1) << 2), degenerate, bits);
+		}
+
+		/**
+		 * Checks that a buffer size still fits in an int
+		 */
+		private static int fit(long bytes) {
+			if (bytes > Integer.MAX_VALUE)
+				throw new RuntimeException(
+						"The sequences are too large for a store");
+			return (int) bytes;
+		}
+
+		private static ByteBuffer ensure(ByteBuffer buf, int capacity) {
+			if (capacity <= buf.capacity())
+				return buf;
+			long size = buf.capacity();
+			while (size < capacity)
+				size = Math.min(size << 1, Integer.MAX_VALUE);
+			ByteBuffer grown = ByteBuffer.allocateDirect((int) size);
+			buf.clear();
+			grown.put(buf);
+			return grown;
+		}
+
+		private static ByteBuffer trim(ByteBuffer buf, int length) {
+			ByteBuffer part = buf.duplicate();
+			part.position(0);
+			part.limit(length);
+			return part.slice();
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/**
+ *
+ */
+package motif;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+/**
+ */
+public class SequenceStoreTest {
+
+	@Test
+	public void testSequenceStore0() {
+		Alphabet alpha = new Alphabet();
+		DNASequence[] seqs = new DNASequence[] {
+				new DNASequence(alpha, "s1",
+						new char[] { 'T', 'C', 'G', 'G', 'A', 'C' }),
+				new DNASequence(alpha, "s2",
+						new char[] { 'A', 'G', 'G' }) };
+		SequenceStore store = SequenceStore.fromSequences(seqs);
+		assertEquals(2, store.getCount());
+		assertEquals(3, store.getLength(1));
+		assertEquals("s2", store.getName(1));
+		// 'A' of s1 (index 0) at position 4
+		assertEquals(0, store.getSymbol(0, 4));
+		assertArrayEquals(seqs[0].getSymbolIndices(), store.getSequence(0)
+				.getSymbolIndices());
+	}
+
+	@Test
+	public void testSequenceStore1() {
+		Alphabet alpha = new Alphabet();
+		try {
+			DNASequence[] seqs = DNASequence.readFile(alpha,
+					"data/malT_5.fasta");
+			SequenceStore store = SequenceStore.readFile(alpha,
+					"data/malT_5.fasta");
+			assertEquals(seqs.length, store.getCount());
+			for (int s = 0; s < seqs.length; s++) {
+				assertEquals(seqs[s].toString(), store.toString(s));
+				assertArrayEquals(seqs[s].getSymbolIndices(), store
+						.getSequence(s).getSymbolIndices());
+			}
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSequenceStore2() {
+		Alphabet alpha = new Alphabet();
+		try {
+			SequenceStore store = SequenceStore.readFile(alpha,
+					"data/malT_5.fasta");
+			File file = File.createTempFile("malT", ".mks");
+			file.deleteOnExit();
+			store.write(file.getPath());
+			SequenceStore mapped = SequenceStore.open(alpha, file.getPath());
+			assertEquals(store.getTotalLength(), mapped.getTotalLength());
+			for (int s = 0; s < store.getCount(); s++) {
+				assertEquals(store.getName(s), mapped.getName(s));
+				for (int i = 0; i < store.getLength(s); i++)
+					assertEquals(store.getSymbol(s, i), mapped.getSymbol(s, i));
+			}
+			// a cut file is reported, in the header or in the regions
+			for (long cut : new long[] { file.length() - 20, 30, 6 }) {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				raf.setLength(cut);
+				raf.close();
+				try {
+					SequenceStore.map(file.getPath());
+					fail("Mapped a store cut to " + cut + " bytes");
+				} catch (IOException e) {
+					assertTrue(e.getMessage().endsWith("is truncated"));
+				}
+			}
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSequenceStore3() {
+		Alphabet alpha = new Alphabet();
+		DNASequence[] seqs = new DNASequence[] {
+				new DNASequence(alpha, "s1",
+						new char[] { 'T', 'C', 'G', 'G', 'A', 'C' }),
+				new DNASequence(alpha, "s2",
+						new char[] { 'A', 'G', 'G' }),
+				new DNASequence(alpha, "s3", // same as s1
+						new char[] { 'T', 'C', 'G', 'G', 'A', 'C' }),
+				new DNASequence(alpha, "s4", // a prefix of s1
+						new char[] { 'T', 'C', 'G', 'G', 'A' }),
+				new DNASequence(alpha, "s5", // same as s1
+						new char[] { 'T', 'C', 'G', 'G', 'A', 'C' }) };
+		SequenceStore store = SequenceStore.fromSequences(seqs);
+		SequenceStore distinct = store.deduplicate();
+		assertEquals(3, distinct.getCount());
+		assertEquals(5, distinct.getTotalWeight());
+		assertEquals("s1", distinct.getName(0));
+		assertEquals(3, distinct.getWeight(0));
+		assertEquals(1, distinct.getWeight(2));
+		assertTrue(store.getFingerprint() != distinct.getFingerprint());
+		// a subset keeps the weights, and there is nothing left to collapse
+		SequenceStore subset = distinct.subset(new int[] { 0, 1 });
+		assertEquals(4, subset.getTotalWeight());
+		assertSame(subset, subset.deduplicate());
+		assertFalse(store.subset(new int[] { 1, 3 }).isWeighted());
+	}
+
+	@Test
+	public void testSequenceStore4() {
+		Alphabet alpha = new Alphabet();
+		try {
+			ByteArrayOutputStream fasta = new ByteArrayOutputStream();
+			InputStream in = new FileInputStream("data/ihfA_26.fasta");
+			for (int b; (b = in.read()) >= 0;)
+				fasta.write(b);
+			in.close();
+			byte[] data = fasta.toByteArray();
+
+			File gz = File.createTempFile("ihfA", ".fasta.gz");
+			gz.deleteOnExit();
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(gz));
+			out.write(data);
+			out.close();
+
+			// BGZF: blocks of 1000 bytes (several per record), then an empty one
+			File bgz = File.createTempFile("ihfA", ".fasta.bgz");
+			bgz.deleteOnExit();
+			out = new FileOutputStream(bgz);
+			for (int from = 0; from <= data.length; from += 1000)
+				writeBlock(out, data, from, Math.min(1000, data.length - from));
+			out.close();
+
+			SequenceStore plain = SequenceStore.readFile(alpha,
+					"data/ihfA_26.fasta");
+			for (File file : new File[] { gz, bgz }) {
+				SequenceStore store = SequenceStore.open(alpha, file.getPath());
+				assertEquals(plain.getFingerprint(), store.getFingerprint());
+				assertEquals(plain.getName(25), store.getName(25));
+			}
+			assertEquals(plain.getCount(), DNASequence.readFile(alpha,
+					bgz.getPath()).length);
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSequenceStoreDamagedBlock() {
+		byte[] data = ">s1\nACGT\n".getBytes();
+		try {
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			writeBlock(block, data, 0, data.length);
+			byte[] b = block.toByteArray();
+			b[b.length - 1] = 0x7F; // an ISIZE far above 64 KiB
+			File bgz = File.createTempFile("damaged", ".fasta.bgz");
+			bgz.deleteOnExit();
+			OutputStream out = new FileOutputStream(bgz);
+			out.write(b);
+			out.close();
+			try {
+				SequenceStore.open(new Alphabet(), bgz.getPath());
+				fail("Read a block with a bad size");
+			} catch (IOException e) {
+				assertEquals("Damaged BGZF block", e.getMessage());
+			}
+			// the BC subfield runs past the end of the extra field
+			b = block.toByteArray();
+			b[10] = 5;
+			out = new FileOutputStream(bgz);
+			out.write(b);
+			out.close();
+			try {
+				SequenceStore.open(new Alphabet(), bgz.getPath());
+				fail("Read a block with a bad extra field");
+			} catch (IOException e) {
+				assertEquals("Invalid BGZF block at byte 0", e.getMessage());
+			}
+		} catch (IOException e) {
+			fail("Temporary file failed: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSequenceStoreDropped() {
+		try {
+			File fasta = File.createTempFile("dropped", ".fasta");
+			fasta.deleteOnExit();
+			OutputStream out = new FileOutputStream(fasta);
+			out.write(">s1\nACG\n>bad\nTTTTN\n>s3\nAAAAAA\n"
+					.getBytes("US-ASCII"));
+			out.close();
+			// the dropped record ends mid-byte and must leave no bits behind
+			SequenceStore store = SequenceStore.readFile(new Alphabet(),
+					fasta.getPath());
+			DNASequence[] seqs = DNASequence.readFile(new Alphabet(), fasta
+					.getPath());
+			assertEquals(2, store.getCount());
+			assertEquals("ACG", new KMer(store, 0, 0, 3).toString());
+			assertEquals("AAAAAA", new KMer(store, 1, 0, 6).toString());
+			assertEquals(new String(seqs[1].getSymbolChars()), new KMer(store,
+					1, 0, 6).toString());
+			// the same with 5 bits per residue, where symbols straddle bytes
+			out = new FileOutputStream(fasta);
+			out.write(">p1\nACD\n>bad\nYYYYX\n>p3\nAAAAAA\n"
+					.getBytes("US-ASCII"));
+			out.close();
+			store = SequenceStore.readFile(Alphabet.protein(), fasta.getPath());
+			assertEquals(2, store.getCount());
+			assertEquals("ACD", new KMer(store, 0, 0, 3).toString());
+			assertEquals("AAAAAA", new KMer(store, 1, 0, 6).toString());
+		} catch (IOException e) {
+			fail("Temporary file failed: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSequenceStoreDegenerate() {
+		try {
+			File fasta = File.createTempFile("iupac", ".fasta");
+			fasta.deleteOnExit();
+			OutputStream out = new FileOutputStream(fasta);
+			out.write(">s1\nACGTNACRT\n>s2\nTTGCA\n".getBytes("US-ASCII"));
+			out.close();
+			// the plain alphabet drops the record with N and R
+			assertEquals(1, SequenceStore.readFile(new Alphabet(),
+					fasta.getPath()).getCount());
+			Alphabet alpha = Alphabet.iupac(false);
+			SequenceStore store = SequenceStore.readFile(alpha, fasta
+					.getPath());
+			assertEquals(2, store.getCount());
+			assertTrue(store.isDegenerate());
+			assertEquals("ACGTNACRT", new KMer(store, 0, 0, 9).toString());
+			assertFalse(SequenceStore.fromSequences(
+					new DNASequence[] { store.getSequence(1) }).isDegenerate());
+			// R matches A and G, N matches nothing unless skipped
+			int r = alpha.toIndex(new char[] { 'R' })[0];
+			int n = alpha.toIndex(new char[] { 'N' })[0];
+			assertTrue(alpha.matches(r, 0) && alpha.matches(r, 2));
+			assertFalse(alpha.matches(r, 1) || alpha.matches(n, n));
+			assertTrue(Alphabet.iupac(true).matches(n, 3));
+			File file = File.createTempFile("iupac", ".mks");
+			file.deleteOnExit();
+			store.write(file.getPath());
+			SequenceStore mapped = SequenceStore.open(new Alphabet(), file
+					.getPath());
+			assertTrue(mapped.isDegenerate());
+			assertTrue(alpha.equals(mapped.getAlphabet()));
+			assertEquals(store.getFingerprint(), mapped.getFingerprint());
+			assertEquals(r, mapped.getSymbol(0, 7));
+		} catch (IOException e) {
+			fail("Temporary file failed: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSequenceStoreProtein() {
+		try {
+			File fasta = File.createTempFile("protein", ".fasta");
+			fasta.deleteOnExit();
+			OutputStream out = new FileOutputStream(fasta);
+			out.write(">p1\nMKWVTFISLLYXACDEFGHIKLMNPQRSTVWY\n>p2\nWYV\n"
+					.getBytes("US-ASCII"));
+			out.close();
+			// 5 bits per residue, so most of them straddle two bytes
+			Alphabet alpha = Alphabet.protein(true);
+			SequenceStore store = SequenceStore.readFile(alpha, fasta
+					.getPath());
+			assertEquals(5, SequenceStore.bitsFor(alpha));
+			assertEquals(2, store.getCount());
+			assertEquals("MKWVTFISLLYXACDEFGHIKLMNPQRSTVWY", new KMer(store,
+					0, 0, 32).toString());
+			assertEquals("WYV", new KMer(store, 1, 0, 3).toString());
+			int x = alpha.toIndex(new char[] { 'X' })[0];
+			assertTrue(alpha.matches(x, 19));
+			assertFalse(Alphabet.protein(false).matches(x, 19));
+			File file = File.createTempFile("protein", ".mks");
+			file.deleteOnExit();
+			store.write(file.getPath());
+			SequenceStore mapped = SequenceStore.open(new Alphabet(), file
+					.getPath());
+			assertTrue(alpha.equals(mapped.getAlphabet()));
+			assertEquals(store.getFingerprint(), mapped.getFingerprint());
+			assertEquals("WYV", new KMer(mapped, 1, 0, 3).toString());
+		} catch (IOException e) {
+			fail("Temporary file failed: " + e.getMessage());
+		}
+	}
+
+	private static void writeBlock(OutputStream out, byte[] data, int from,
+			int length) throws IOException {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data, from, length);
+		deflater.finish();
+		byte[] cdata = new byte[length + 64];
+		int n = deflater.deflate(cdata);
+		deflater.end();
+		CRC32 crc = new CRC32();
+		crc.update(data, from, length);
+		int size = n + 25; // the block size - 1
+		out.write(new byte[] { 31, (byte) 139, 8, 4, 0, 0, 0, 0, 0,
+				(byte) 255, 6, 0, 'B', 'C', 2, 0, (byte) size,
+				(byte) (size >> 8) });
+		out.write(cdata, 0, n);
+		long c = crc.getValue();
+		for (long v : new long[] { c, length })
+			for (int i = 0; i < 4; i++)
+				out.write((int) (v >> (8 * i)));
+	}
+}
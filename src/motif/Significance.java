@@ -0,0 +1,332 @@
+package motif;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Significance of a median distance against a background model: the search
+ * is run again on shuffles of the sequences that keep the dinucleotide
+ * composition of every sequence, and the distance found on the real
+ * sequences is compared with the distances found on the shuffles.
+ *
+ * The p-value only needs to know whether a shuffle does at least as well as
+ * the real sequences, so most null searches get the real distance + 1 as
+ * their limit (see {@link WindowSearch#setLimit(int)}) and stop as soon as
+ * they prove that no k-mer reaches it. Their distance is then only known to
+ * exceed the real one (censored). A number of calibration shuffles are
+ * searched without a limit, and their distances give the mean and standard
+ * deviation behind the z-score. Shuffles are drawn from a seeded generator
+ * and searched in parallel, each into an off-heap store of its own.
+ */
+public class Significance {
+
+	private final SequenceStore store; // the real sequences
+	private final int k; // the length of the sought k-mer
+	private final long seed; // seed of the shuffle generator
+
+	private int shuffles = 100; // the number of null searches
+	private int calibration = 10; // null searches without a limit
+	private int quorum = 0; // sum over the best q sequences, 0 for all
+
+	private int distance; // the real distance
+	private int[] nulls; // the distance (or limit) of every shuffle
+	private boolean[] censored; // true if a shuffle stopped at the limit
+
+	/**
+	 * Prepares a significance test
+	 *
+	 * @param store
+	 *            the real sequences
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @param seed
+	 *            the seed for drawing shuffles
+	 */
+	public Significance(SequenceStore store, int k, long seed) {
+		this.store = store;
+		this.k = k;
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the number of shuffled sequence sets searched
+	 *
+	 * @param shuffles
+	 *            the number of shuffles (at least 1)
+	 */
+	public void setShuffles(int shuffles) {
+		this.shuffles = shuffles < 1 ? 1 : shuffles;
+	}
+
+	/**
+	 * Sets the number of shuffles that are searched to the end, for the
+	 * z-score
+	 *
+	 * @param calibration
+	 *            the number of unlimited searches (0 for no z-score)
+	 */
+	public void setCalibration(int calibration) {
+		this.calibration = calibration < 0 ? 0 : calibration;
+	}
+
+	/**
+	 * Restricts the distance to the sum over the q best-matching sequences,
+	 * as in the real search
+	 *
+	 * @param q
+	 *            the quorum, 0 for all sequences
+	 */
+	public void setQuorum(int q) {
+		if (q < 0)
+			throw new RuntimeException("Invalid quorum " + q);
+		this.quorum = q;
+	}
+
+	/**
+	 * Searches the shuffles and compares them with the real distance
+	 *
+	 * @param distance
+	 *            the median distance of the real sequences
+	 * @param threads
+	 *            the number of shuffles searched at the same time
+	 * @return the empirical p-value
+	 * @throws RuntimeException
+	 *             if the thread is interrupted during the test
+	 */
+	public double test(int distance, int threads) {
+		this.distance = distance;
+		this.nulls = new int[shuffles];
+		this.censored = new boolean[shuffles];
+		Random random = new Random(seed);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+				threads));
+		try {
+			/* Draw all seeds first so the result is reproducible */
+			List<Future<Integer>> runs = new ArrayList<Future<Integer>>();
+			for (int r = 0; r < shuffles; r++)
+				runs.add(pool.submit(new Null(random.nextLong(),
+						r < calibration ? Integer.MAX_VALUE : distance + 1)));
+			for (int r = 0; r < shuffles; r++) {
+				nulls[r] = get(runs.get(r));
+				censored[r] = r >= calibration && nulls[r] > distance;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return getPValue();
+	}
+
+	/**
+	 * Retrieves the fraction of shuffles that did at least as well as the
+	 * real sequences, counting the real sequences as one of them (so the
+	 * p-value is never 0)
+	 *
+	 * @return the empirical p-value
+	 */
+	public double getPValue() {
+		return (1 + getAtMost()) / (double) (1 + nulls.length);
+	}
+
+	/**
+	 * @return the number of shuffles with a distance at most the real one
+	 */
+	public int getAtMost() {
+		int atMost = 0;
+		for (int d : nulls)
+			if (d <= distance)
+				atMost++;
+		return atMost;
+	}
+
+	/**
+	 * @return the number of shuffles that stopped at the limit
+	 */
+	public int getCensored() {
+		int count = 0;
+		for (boolean c : censored)
+			if (c)
+				count++;
+		return count;
+	}
+
+	/**
+	 * Retrieves the number of standard deviations between the real distance
+	 * and the mean distance of the calibration shuffles (negative when the
+	 * real sequences do better)
+	 *
+	 * @return the z-score, NaN without two calibration shuffles or spread
+	 */
+	public double getZScore() {
+		int n = Math.min(calibration, nulls.length);
+		if (n < 2)
+			return Double.NaN;
+		double mean = 0;
+		for (int r = 0; r < n; r++)
+			mean += nulls[r];
+		mean /= n;
+		double var = 0;
+		for (int r = 0; r < n; r++)
+			var += (nulls[r] - mean) * (nulls[r] - mean);
+		double sd = Math.sqrt(var / (n - 1));
+		return sd == 0 ? Double.NaN : (distance - mean) / sd;
+	}
+
+	/**
+	 * Printable summary of the test
+	 */
+	public String toString() {
+		int n = Math.min(calibration, nulls.length);
+		return "Significance: " + getAtMost() + " of " + nulls.length
+				+ " shuffles at most " + distance + ", p = "
+				+ String.format("%.4g", getPValue()) + ", z = "
+				+ String.format("%.2f", getZScore()) + " (" + n
+				+ " unlimited, " + getCensored() + " stopped at the limit)";
+	}
+
+	/**
+	 * Shuffles every sequence of a store, keeping its first and last symbol
+	 * and the number of times each pair of symbols occurs next to each other
+	 * (Altschul and Erickson): the shuffle is a random Eulerian walk over the
+	 * pairs, whose last exits from each symbol form a random tree towards the
+	 * last symbol.
+	 *
+	 * @param store
+	 *            the sequences
+	 * @param random
+	 *            the generator
+	 * @return the shuffled sequences, with the same names; every copy of a
+	 *         deduplicated sequence is shuffled on its own, as it would be
+	 *         without deduplication, so the result is not weighted;
+	 *         degenerate codes are shuffled like symbols
+	 */
+	public static SequenceStore shuffle(SequenceStore store, Random random) {
+		int radix = store.getAlphabet().getCodes().length;
+		SequenceStore.Builder builder = new SequenceStore.Builder(store
+				.getAlphabet());
+		int[][] next = new int[radix][]; // per symbol, the symbols after it
+		int[] degree = new int[radix], used = new int[radix], last = new int[radix];
+		int[] symbols = new int[0];
+		for (int s = 0; s < store.getCount(); s++) {
+			int length = store.getLength(s);
+			if (symbols.length < length)
+				symbols = new int[length];
+			long start = store.getStart(s);
+			for (int c = 0; c < store.getWeight(s); c++) {
+				for (int i = 0; i < length; i++)
+					symbols[i] = store.symbolAt(start + i);
+				builder.begin(store.getName(s));
+				if (length > 2)
+					walk(symbols, length, random, next, degree, used, last);
+				for (int i = 0; i < length; i++)
+					builder.append(symbols[i]);
+				builder.end();
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Replaces symbols[0..length) by a random walk with the same pairs
+	 */
+	private static void walk(int[] symbols, int length, Random random,
+			int[][] next, int[] degree, int[] used, int[] last) {
+		int radix = next.length;
+		Arrays.fill(degree, 0);
+		for (int i = 0; i + 1 < length; i++)
+			degree[symbols[i]]++;
+		for (int v = 0; v < radix; v++) {
+			if (next[v] == null || next[v].length < degree[v])
+				next[v] = new int[Math.max(degree[v], 16)];
+			used[v] = 0;
+		}
+		for (int i = 0; i + 1 < length; i++)
+			next[symbols[i]][used[symbols[i]]++] = symbols[i + 1];
+		int first = symbols[0], end = symbols[length - 1];
+
+		/* Pick last exits until they lead every symbol to the end */
+		boolean tree;
+		do {
+			for (int v = 0; v < radix; v++)
+				last[v] = v == end || degree[v] == 0 ? -1 : next[v][random
+						.nextInt(degree[v])];
+			tree = true;
+			for (int v = 0; v < radix && tree; v++) {
+				int u = v, steps = 0;
+				while (last[u] >= 0 && steps++ < radix)
+					u = last[u];
+				tree = u == end;
+				if (degree[v] == 0 && v != end)
+					tree = true; // does not occur before the end
+			}
+		} while (!tree);
+
+		/* Shuffle the other exits and keep the chosen one for last */
+		for (int v = 0; v < radix; v++) {
+			int n = degree[v];
+			if (n == 0)
+				continue;
+			if (last[v] >= 0) {
+				for (int i = 0; i < n; i++)
+					if (next[v][i] == last[v]) {
+						next[v][i] = next[v][n - 1];
+						next[v][n - 1] = last[v];
+						break;
+					}
+				n--;
+			}
+			for (int i = n - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int tmp = next[v][i];
+				next[v][i] = next[v][j];
+				next[v][j] = tmp;
+			}
+			used[v] = 0;
+		}
+		symbols[0] = first;
+		for (int i = 1; i < length; i++) {
+			int v = symbols[i - 1];
+			symbols[i] = next[v][used[v]++];
+		}
+	}
+
+	private static int get(Future<Integer> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Search was interrupted");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * A search on one shuffle
+	 */
+	private class Null implements Callable<Integer> {
+
+		private final long seed; // the seed of the shuffle
+		private final int limit; // the distance a k-mer must beat
+
+		Null(long seed, int limit) {
+			this.seed = seed;
+			this.limit = limit;
+		}
+
+		public Integer call() {
+			WindowSearch search = new WindowSearch(shuffle(store, new Random(
+					seed)), k, null);
+			if (quorum > 0)
+				search.setQuorum(quorum);
+			search.setLimit(limit);
+			return search.search();
+		}
+	}
+}
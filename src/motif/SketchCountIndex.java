@@ -0,0 +1,214 @@
+package motif;
+
+/**
+ * An approximate count index in fixed memory, for sequence sets whose
+ * {@link TrieKMer} would not fit: the counts and supports of every prefix
+ * length are kept in a count-min sketch. An estimate is never below the true
+ * value and is exact when no other prefix shares its cells, which is all the
+ * ordering of extensions needs.
+ *
+ * Every level gets the same share of the memory, a number of rows of cells
+ * that each hold a count, a support and the last sequence that added to the
+ * support. A level with no more codes than cells in a row is kept exactly
+ * (one cell per code), so the short prefixes that decide the first branches
+ * are never confused. With conservative update a prefix raises its cells only
+ * up to its new estimate, which keeps collisions from piling up. The sketch
+ * is filled in one pass over the sequences.
+ */
+public class SketchCountIndex implements CountIndex {
+
+	/**
+	 * The number of rows (hash functions) per level
+	 */
+	public static final int ROWS = 4;
+
+	private static final int CELL_BYTES = 12; // count, support and stamp
+	private static final long[] SEEDS = { 0x9E3779B97F4A7C15L,
+			0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L };
+
+	private final int depth; // the length of the windows that were counted
+	private final int radix; // the number of symbols in the alphabet
+	private final boolean conservative; // raise cells only to the estimate
+	private final int width; // the number of cells per row
+	private final boolean[] exact; // per level, one cell per code
+	private final int[][][] counts; // per level and row, the cells
+	private final int[][][] supports;
+	private final int[][][] stamps; // the last sequence (1-based) per cell
+	private final int[] cells = new int[ROWS]; // the cells of the prefix
+	private int sequence; // the sequence being added (1-based)
+
+	/**
+	 * Builds the sketch of the windows of length k of a sequence set
+	 *
+	 * @param store
+	 *            the sequences
+	 * @param k
+	 *            the depth of the index
+	 * @param bytes
+	 *            the memory used by the cells of all levels
+	 * @param conservative
+	 *            true to use conservative update
+	 */
+	public SketchCountIndex(SequenceStore store, int k, long bytes,
+			boolean conservative) {
+		if (k < 1)
+			throw new RuntimeException("Invalid depth " + k);
+		long perRow = bytes / ((long) k * ROWS * CELL_BYTES);
+		if (perRow < 1)
+			throw new RuntimeException("Too little memory for a sketch: "
+					+ bytes + " bytes");
+		this.depth = k;
+		this.radix = store.getAlphabet().getSize();
+		this.conservative = conservative;
+		this.width = (int) Math.min(perRow, Integer.MAX_VALUE - 8);
+		this.exact = new boolean[k];
+		this.counts = new int[k][][];
+		this.supports = new int[k][][];
+		this.stamps = new int[k][][];
+		long codes = 1;
+		for (int L = 0; L < k; L++) {
+			codes = codes > Long.MAX_VALUE / radix ? Long.MAX_VALUE : codes
+					* radix;
+			exact[L] = codes <= width;
+			int rows = exact[L] ? 1 : ROWS;
+			int size = exact[L] ? (int) codes : width;
+			counts[L] = new int[rows][size];
+			supports[L] = new int[rows][size];
+			stamps[L] = new int[rows][size];
+		}
+		build(store);
+	}
+
+	/**
+	 * Adds every prefix of every window of length k, one sequence after the
+	 * other
+	 */
+	private void build(SequenceStore store) {
+		for (int s = 0; s < store.getCount(); s++) {
+			sequence = s + 1;
+			long start = store.getStart(s);
+			int length = store.getLength(s);
+			for (int i = 0; i + depth <= length; i++) { // as in the trie
+				if (!TrieKMer.isCounted(store, s, i, depth))
+					continue;
+				int code = 0; // exact code while it is used
+				long hash = 0;
+				for (int L = 0; L < depth; L++) {
+					int symbol = store.symbolAt(start + i + L);
+					if (exact[L])
+						code = code * radix + symbol;
+					hash = extend(hash, symbol);
+					add(L, code, hash);
+				}
+			}
+		}
+	}
+
+	private static long extend(long hash, int symbol) {
+		return (hash + symbol + 1) * 0x9E3779B97F4A7C15L;
+	}
+
+	/**
+	 * Finds the cells of a prefix in the rows of its level
+	 */
+	private int rows(int L, int code, long hash) {
+		if (exact[L]) {
+			cells[0] = code;
+			return 1;
+		}
+		for (int r = 0; r < ROWS; r++) {
+			long h = hash ^ SEEDS[r];
+			h = (h ^ (h >>> 31)) * 0xBF58476D1CE4E5B9L;
+			h ^= h >>> 29;
+			cells[r] = (int) ((h >>> 1) % width);
+		}
+		return ROWS;
+	}
+
+	private void add(int L, int code, long hash) {
+		int rows = rows(L, code, hash);
+		int[][] count = counts[L], support = supports[L], stamp = stamps[L];
+		if (!conservative) {
+			for (int r = 0; r < rows; r++) {
+				int c = cells[r];
+				count[r][c]++;
+				if (stamp[r][c] != sequence) {
+					stamp[r][c] = sequence;
+					support[r][c]++;
+				}
+			}
+			return;
+		}
+
+		/*
+		 * Raise each cell to the new estimate only. A cell already stamped
+		 * with this sequence has counted it; stamping only the cells that are
+		 * raised keeps every cell at least the support of its prefixes.
+		 */
+		int newCount = Integer.MAX_VALUE, newSupport = Integer.MAX_VALUE;
+		for (int r = 0; r < rows; r++) {
+			int c = cells[r];
+			newCount = Math.min(newCount, count[r][c] + 1);
+			newSupport = Math.min(newSupport, support[r][c]
+					+ (stamp[r][c] == sequence ? 0 : 1));
+		}
+		for (int r = 0; r < rows; r++) {
+			int c = cells[r];
+			if (count[r][c] < newCount)
+				count[r][c] = newCount;
+			if (support[r][c] < newSupport) {
+				support[r][c] = newSupport;
+				stamp[r][c] = sequence;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the sketch uses conservative update
+	 */
+	public boolean isConservative() {
+		return conservative;
+	}
+
+	/**
+	 * @return the memory used by the cells of all levels
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (int L = 0; L < depth; L++)
+			bytes += (long) counts[L].length * counts[L][0].length * CELL_BYTES;
+		return bytes;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getCount(int[] path, int level) {
+		return estimate(counts, path, level);
+	}
+
+	public int getSupport(int[] path, int level) {
+		return estimate(supports, path, level);
+	}
+
+	/**
+	 * The smallest cell of a prefix, 0 if the level is not counted
+	 */
+	private synchronized int estimate(int[][][] table, int[] path, int level) {
+		if (level < 1 || level > depth)
+			return 0;
+		int L = level - 1, code = 0;
+		long hash = 0;
+		for (int i = 0; i < level; i++) {
+			if (exact[L])
+				code = code * radix + path[i];
+			hash = extend(hash, path[i]);
+		}
+		int rows = rows(L, code, hash);
+		int min = Integer.MAX_VALUE;
+		for (int r = 0; r < rows; r++)
+			min = Math.min(min, table[L][r][cells[r]]);
+		return min;
+	}
+}
@@ -1,19 +1,28 @@
 package motif;
 
 import java.lang.Comparable;
+import java.util.Arrays;
 
 import motif.MedianKMer.Distance;
 
 
 /**
  * A class to build and maintain a tree representing all k-mers found in a DNA
- * sequence set
+ * sequence set. Besides the number of occurrences of each prefix, every node
+ * counts the number of distinct sequences in which the prefix occurs (its
+ * support): a node remembers the last sequence that reached it, so a
+ * sequence is counted once however often it repeats the prefix.
+ * Windows with a degenerate code (see {@link Alphabet#iupac(boolean)}) are
+ * not counted, as they are no occurrence of any one k-mer.
  */
-public class TrieKMer {
+public class TrieKMer implements CountIndex {
 
 	private final TrieNode root; // the root of the tree structure
 	private final Alphabet alpha; // the alphabet from which all k-mers are
 									// constructed
+	private final int depth; // the maximum length of the counted k-mers
+	private int stamp; // the number of the sequence being added (from 1)
+	private int weight = 1; // the copies of the sequence being added
 	
 	/**
 	 * Method for adding a k-mer to the tree structure. Adds a count of one to
@@ -30,15 +39,13 @@ public class TrieKMer {
 	public void putKMer(TrieNode parent, KMer kmer) {
 		int[] symbols = kmer.getKMer();
 		for (int i = 0; i < symbols.length; i++) {
-			TrieNode current = parent.children[symbols[i]];
+			TrieNode current = parent.addChild(symbols[i]);
 			
-			if (current == null) {
-				current = new TrieNode(this.alpha);
-				current.symbol = symbols[i];
-				parent.children[symbols[i]] = current;
+			current.count += weight;
+			if (current.lastSeen != stamp) { // first time for this sequence
+				current.lastSeen = stamp;
+				current.support += weight;
 			}
-			
-			current.count++;
 				
 			parent = current;
 		}
@@ -54,6 +61,9 @@ public class TrieKMer {
 	 * 			The length of each k-mer to add to the tree
 	 */
 	public void buildTrie(DNASequence DNA, int K) {
+		stamp++; // a new sequence
+		weight = 1;
+		
 		/* 
 		 * The number of possible k-mers for the given length is
 		 * |DNA| - K
@@ -62,11 +72,71 @@ public class TrieKMer {
 			/* Get next kmer */
 			KMer kmer = new KMer(DNA, i, K);
 			
+			/* put kmer in trie, unless it has a degenerate code */
+			boolean plain = true;
+			for (int symbol : kmer.getKMer())
+				plain &= symbol < alpha.getSize();
+			if (plain)
+				putKMer(this.root, kmer);
+		}
+	}
+
+	/**
+	 * Helper method for constructing a TrieKMer object from a store
+	 * 
+	 * @param store
+	 * 			The sequences
+	 * 
+	 * @param s
+	 * 			The number of the sequence whose k-mers will be added
+	 * 
+	 * @param K
+	 * 			The length of each k-mer to add to the tree
+	 */
+	public void buildTrie(SequenceStore store, int s, int K) {
+		stamp++; // a new sequence
+		weight = store.getWeight(s); // counts for each of its copies
+		
+		for (int i = 0; i <= store.getLength(s) - K; i++) {
+			if (!isCounted(store, s, i, K))
+				continue;
+
+			/* Get next kmer */
+			KMer kmer = new KMer(store, s, i, K);
+			
 			/* put kmer in trie */
 			putKMer(this.root, kmer);
 		}
 	}
 
+	/**
+	 * Checks if a window is counted by a trie, i.e. it has no degenerate code
+	 * 
+	 * @param store
+	 * 			The sequences
+	 * 
+	 * @param s
+	 * 			The number of the sequence
+	 * 
+	 * @param w
+	 * 			The position of the window
+	 * 
+	 * @param K
+	 * 			The length of the window
+	 * 
+	 * @return true if every symbol of the window is a plain symbol
+	 */
+	public static boolean isCounted(SequenceStore store, int s, int w, int K) {
+		if (!store.isDegenerate())
+			return true;
+		int size = store.getAlphabet().getSize();
+		long start = store.getStart(s) + w;
+		for (int j = 0; j < K; j++)
+			if (store.symbolAt(start + j) >= size)
+				return false;
+		return true;
+	}
+
 	public int[] sortedChildren(KMer prefix) {
 		/* The path to follow */
 		int[] path = prefix.getKMer();
@@ -81,9 +151,9 @@ public class TrieKMer {
 		 * Continue traversing the path until either we have traversed the
 		 * whole path or we have reached a leaf node
 		 */
-		while(depth < prefix.getLevel() && current.children[path[depth]] != null) {
+		while(depth < prefix.getLevel() && current.getChild(path[depth]) != null) {
 			/* go to the correct child and increase the depth*/
-			current = current.children[path[depth++]];
+			current = current.getChild(path[depth++]);
 		}
 		
 		if (depth > prefix.getLevel()) {
@@ -117,9 +187,20 @@ public class TrieKMer {
 	 * @return the number of times this exact k-mer has been observed
 	 */
 	public int getCount(KMer kmer) {
-		/* The path t0 follow */
-		int[] path = kmer.getKMer();
-		
+		return getCount(kmer.getKMer(), kmer.getLevel());
+	}
+
+	/**
+	 * Method for querying the tree structure without constructing a k-mer.
+	 * 
+	 * @param path
+	 *            the symbol indices of the query
+	 * @param level
+	 *            the number of symbols of the query (from the start of path)
+	 * @return the number of times this exact prefix has been observed
+	 * @see #getCount(KMer)
+	 */
+	public int getCount(int[] path, int level) {
 		/* The current node of the trie*/
 		TrieNode current = this.root;
 		
@@ -137,12 +218,12 @@ public class TrieKMer {
 		 * Continue traversing the path until either we have traversed the
 		 * whole path or we have reached a leaf node
 		 */
-		while(depth < kmer.getLevel() && current.children[path[depth]] != null) {
+		while(depth < level && current.getChild(path[depth]) != null) {
 			/* go to the correct child and increase the depth*/
-			current = current.children[path[depth++]];
+			current = current.getChild(path[depth++]);
 		}
 		
-		if (depth < kmer.getLevel()) {
+		if (depth < level) {
 			/* Followed the path but didn't find kmer */
 			return 0;
 		} else {
@@ -153,6 +234,63 @@ public class TrieKMer {
 		return count;
 	}
 
+	/**
+	 * Retrieves the number of distinct sequences in which a prefix occurs (at
+	 * the start of a full-length window).
+	 * 
+	 * @param path
+	 *            the symbol indices of the query
+	 * @param level
+	 *            the number of symbols of the query (from the start of path)
+	 * @return the number of sequences, 0 if the prefix is not found
+	 */
+	public int getSupport(int[] path, int level) {
+		TrieNode current = this.root;
+		for (int d = 0; d < level; d++) {
+			current = current.getChild(path[d]);
+			if (current == null)
+				return 0;
+		}
+		return current.support;
+	}
+
+	/**
+	 * @param kmer
+	 *            the query k-mer
+	 * @return the number of sequences in which the k-mer occurs
+	 * @see #getSupport(int[], int)
+	 */
+	public int getSupport(KMer kmer) {
+		return getSupport(kmer.getKMer(), kmer.getLevel());
+	}
+
+	/**
+	 * Takes a window out of the counts, e.g. when an occurrence of a motif is
+	 * masked, so that the trie need not be rebuilt. The support of a prefix
+	 * only drops if the sequence has no other window that starts with it;
+	 * the caller knows the other windows and gives the longest prefix they
+	 * share with this one.
+	 *
+	 * @param path
+	 *            the symbols of the window
+	 * @param copies
+	 *            the weight of its sequence
+	 * @param shared
+	 *            the number of leading symbols that the sequence still has
+	 *            in another window (whose support is kept)
+	 */
+	public void removeKMer(int[] path, int copies, int shared) {
+		TrieNode current = this.root;
+		for (int d = 0; d < depth && d < path.length; d++) {
+			current = current.getChild(path[d]);
+			if (current == null)
+				throw new RuntimeException("Window was not counted");
+			current.count -= copies;
+			if (d >= shared)
+				current.support -= copies;
+		}
+	}
+
 	/**
 	 * Extracts all sub-sequences of the specified length (depth) and then
 	 * constructs a trie representing all of them. Note that the counts in the
@@ -181,32 +319,387 @@ public class TrieKMer {
 		}
 		
 		/* The root of the tree begins life as a leaf */
-		root = new TrieNode(this.alpha);
+		root = new TrieNode(this.alpha, true);
 		
 		/* Build up the tree sequence by sequence */
 		for (DNASequence seq : seqs) {
 			buildTrie(seq, depth);
 		}
+		this.depth = depth;
+	}
+
+	/**
+	 * Constructs the trie from sequences in a store, reading the symbols in
+	 * place, using all processors.
+	 * 
+	 * @param store
+	 *            the sequences
+	 * @param depth
+	 *            the depth of the tree and the maximum length of the counted
+	 *            k-mers
+	 * @see #TrieKMer(SequenceStore, int, int)
+	 */
+	public TrieKMer(SequenceStore store, int depth) {
+		this(store, depth, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructs the trie from sequences in a store using several threads.
+	 * 
+	 * The sequences are split into one shard per thread. Each thread packs
+	 * the windows of its shard into codes (the first symbol in the most
+	 * significant bits) in a primitive array and sorts the codes of every
+	 * sequence, so that equal windows are adjacent and no object is allocated
+	 * per window. The shards are then merged into the tree, one symbol's
+	 * subtree per task: the codes of each first symbol form a contiguous range
+	 * of every sequence, and the subtrees do not share any node. Each task
+	 * visits the sequences in order, so the support stamps work as in a
+	 * sequential build. Windows too long to pack into a code are inserted one
+	 * by one instead. A sequence of a weighted store adds its windows and
+	 * support once for each of its copies.
+	 * 
+	 * @param store
+	 *            the sequences
+	 * @param depth
+	 *            the depth of the tree and the maximum length of the counted
+	 *            k-mers
+	 * @param threads
+	 *            the number of threads to use
+	 */
+	public TrieKMer(SequenceStore store, int depth, int threads) {
+		this.alpha = store.getAlphabet();
+		this.depth = depth;
+		
+		/* The root of the tree begins life as a leaf */
+		root = new TrieNode(this.alpha, true);
+		
+		int bits = SequenceStore.bitsFor(alpha);
+		if (depth < 1 || depth * bits > 63) {
+			/* Build up the tree sequence by sequence */
+			for (int s = 0; s < store.getCount(); s++) {
+				buildTrie(store, s, depth);
+			}
+			return;
+		}
+
+		/* Split the sequences into shards with (almost) equal window counts */
+		long windows = 0;
+		for (int s = 0; s < store.getCount(); s++)
+			windows += Math.max(0, store.getLength(s) - depth + 1);
+		threads = Math.max(1, Math.min(threads, store.getCount()));
+		Shard[] shards = new Shard[threads];
+		int from = 0;
+		long seen = 0;
+		for (int t = 0; t < threads; t++) {
+			int to = from;
+			long target = windows * (t + 1) / threads;
+			while (to < store.getCount() && (seen < target || t == threads - 1)) {
+				seen += Math.max(0, store.getLength(to) - depth + 1);
+				to++;
+			}
+			shards[t] = new Shard(store, from, to, depth, bits);
+			from = to;
+		}
+		runAll(shards);
+
+		/* Merge the shards, one subtree (first symbol) at a time */
+		Runnable[] merges = new Runnable[Math.min(threads, alpha.getSize())];
+		for (int t = 0; t < merges.length; t++)
+			merges[t] = new Merge(shards, t, merges.length, bits);
+		runAll(merges);
+	}
+
+	/**
+	 * @return the maximum length of the counted k-mers
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Lists the prefixes of every level of the tree in code order (the first
+	 * symbol in the most significant bits) with their counts and supports.
+	 * 
+	 * @param bits
+	 *            the number of bits per symbol in a code
+	 * @param codes
+	 *            receives the codes of level L at codes[L - 1]
+	 * @param counts
+	 *            receives the counts of level L at counts[L - 1]
+	 * @param supports
+	 *            receives the supports of level L at supports[L - 1]
+	 */
+	void flatten(int bits, long[][] codes, int[][] counts, int[][] supports) {
+		int[] sizes = new int[depth];
+		measure(root, 0, sizes);
+		for (int L = 0; L < depth; L++) {
+			codes[L] = new long[sizes[L]];
+			counts[L] = new int[sizes[L]];
+			supports[L] = new int[sizes[L]];
+		}
+		flatten(root, 0, 0, bits, new int[depth], codes, counts, supports);
+	}
+
+	private void measure(TrieNode node, int level, int[] sizes) {
+		for (TrieNode child : node.children) {
+			if (child != null && level < depth) {
+				sizes[level]++;
+				measure(child, level + 1, sizes);
+			}
+		}
+	}
+
+	/* Children are visited in symbol order, so each level comes out sorted */
+	private void flatten(TrieNode node, int level, long code, int bits,
+			int[] next, long[][] codes, int[][] counts, int[][] supports) {
+		for (TrieNode child : node.children) {
+			if (child != null && level < depth) {
+				long childCode = (code << bits) | child.symbol;
+				int i = next[level]++;
+				codes[level][i] = childCode;
+				counts[level][i] = child.count;
+				supports[level][i] = child.support;
+				flatten(child, level + 1, childCode, bits, next, codes, counts,
+						supports);
+			}
+		}
+	}
+
+	/**
+	 * Adds a number of occurrences of a k-mer given by its code
+	 * 
+	 * @param code
+	 *            the symbols of the k-mer, the first in the most significant
+	 *            bits
+	 * @param count
+	 *            the number of occurrences
+	 * @param bits
+	 *            the number of bits per symbol
+	 * @param stamp
+	 *            the number of the sequence (from 1)
+	 * @param copies
+	 *            the weight of the sequence, added to the supports
+	 */
+	private void putCode(long code, int count, int bits, int stamp,
+			int copies) {
+		TrieNode parent = root;
+		int mask = (1 << bits) - 1;
+		for (int i = depth - 1; i >= 0; i--) {
+			int symbol = (int) (code >>> (i * bits)) & mask;
+			TrieNode current = parent.addChild(symbol);
+			current.count += count;
+			if (current.lastSeen != stamp) { // first time for this sequence
+				current.lastSeen = stamp;
+				current.support += copies;
+			}
+			parent = current;
+		}
+	}
+
+	/**
+	 * Runs tasks on threads of their own (the first on the calling thread)
+	 * and waits for all of them
+	 */
+	private static void runAll(Runnable[] tasks) {
+		Thread[] running = new Thread[tasks.length];
+		for (int t = 1; t < tasks.length; t++) {
+			running[t] = new Thread(tasks[t], "trie-" + t);
+			running[t].start();
+		}
+		tasks[0].run();
+		for (int t = 1; t < tasks.length; t++) {
+			try {
+				running[t].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Index construction was interrupted");
+			}
+		}
+	}
+
+	/**
+	 * The window codes of a range of sequences, sorted per sequence
+	 */
+	private static class Shard implements Runnable {
+
+		private final SequenceStore store;
+		private final int from, to; // sequences [from, to)
+		private final int depth, bits;
+		long[] codes; // the codes of all windows, sorted per sequence
+		int[] ends; // the end of the codes of each sequence
+
+		Shard(SequenceStore store, int from, int to, int depth, int bits) {
+			this.store = store;
+			this.from = from;
+			this.to = to;
+			this.depth = depth;
+			this.bits = bits;
+		}
+
+		public void run() {
+			int count = 0;
+			for (int s = from; s < to; s++)
+				count += Math.max(0, store.getLength(s) - depth + 1);
+			codes = new long[count];
+			ends = new int[to - from];
+			long mask = (1L << (depth * bits)) - 1;
+			int size = store.getAlphabet().getSize(), n = 0;
+			for (int s = from; s < to; s++) {
+				int begin = n;
+				long start = store.getStart(s);
+				int length = store.getLength(s);
+				long code = 0;
+				int plain = 0; // the symbols since the last degenerate code
+				/* Roll the code along the sequence */
+				for (int i = 0; i < length; i++) {
+					int symbol = store.symbolAt(start + i);
+					if (symbol >= size) {
+						plain = 0;
+						continue;
+					}
+					code = ((code << bits) | symbol) & mask;
+					if (++plain >= depth)
+						codes[n++] = code;
+				}
+				Arrays.sort(codes, begin, n);
+				ends[s - from] = n;
+			}
+		}
+	}
+
+	/**
+	 * Merges the shards into the subtrees of some first symbols
+	 */
+	private class Merge implements Runnable {
+
+		private final Shard[] shards;
+		private final int first, step; // symbols first, first+step, ...
+		private final int bits;
+
+		Merge(Shard[] shards, int first, int step, int bits) {
+			this.shards = shards;
+			this.first = first;
+			this.step = step;
+			this.bits = bits;
+		}
+
+		public void run() {
+			int top = (depth - 1) * bits; // the shift of the first symbol
+			for (int c = first; c < alpha.getSize(); c += step) {
+				for (Shard shard : shards) {
+					long[] codes = shard.codes;
+					for (int s = 0, begin = 0; s < shard.ends.length; begin = shard.ends[s++]) {
+						/* The codes of sequence s that start with symbol c */
+						int i = lowerBound(codes, begin, shard.ends[s],
+								(long) c << top);
+						int end = lowerBound(codes, i, shard.ends[s],
+								(long) (c + 1) << top);
+						while (i < end) {
+							int j = i + 1;
+							while (j < end && codes[j] == codes[i])
+								j++;
+							int copies = shard.store.getWeight(shard.from + s);
+							putCode(codes[i], (j - i) * copies, bits,
+									shard.from + s + 1, copies);
+							i = j;
+						}
+					}
+				}
+			}
+		}
+
+		private int lowerBound(long[] codes, int lo, int hi, long key) {
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (codes[mid] < key)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
 	}
 }
 
 /**
  * A class for representing node instances (each representing a symbol that is
- * part of a k-mer).
+ * part of a k-mer). With a small alphabet the children are indexed by symbol;
+ * with a larger one (amino acids) a node only holds the children it has, in
+ * symbol order, so a trie takes memory in proportion to its nodes whatever the
+ * alphabet.
  */
 class TrieNode {
+	static final int DENSE = 8; // the largest alphabet with indexed children
+	private static final TrieNode[] NONE = new TrieNode[0];
+
 	public int symbol;	// The letter of k-mer stored in this node
 	public int count;	// The frequency of the prefix stored in this node
-	public TrieNode[] children;
+	public int support;	// The number of sequences containing the prefix
+	int lastSeen;	// The stamp of the last sequence that reached this node
+	public TrieNode[] children;	// by symbol if dense, else present ones in order
+	private final boolean dense;
 	public Alphabet alpha;
 	
 	public TrieNode(Alphabet alpha) {
+		this(alpha, alpha.getSize() <= DENSE);
+	}
+	
+	/**
+	 * @param alpha
+	 *            the alphabet of the k-mers
+	 * @param dense
+	 *            true to index the children by symbol, as for the root, whose
+	 *            subtrees are filled by several threads at once
+	 */
+	TrieNode(Alphabet alpha, boolean dense) {
 		symbol = -1;	// No letter is stored here
 		count = 0;
-		children = new TrieNode[alpha.getSize()];
+		children = dense ? new TrieNode[alpha.getSize()] : NONE;
+		this.dense = dense;
 		this.alpha = alpha;
 	}
 	
+	/**
+	 * @param symbol
+	 *            the symbol of the child
+	 * @return the child, or null if there is none
+	 */
+	public TrieNode getChild(int symbol) {
+		if (dense)
+			return children[symbol];
+		for (TrieNode child : children)
+			if (child.symbol >= symbol)
+				return child.symbol == symbol ? child : null;
+		return null;
+	}
+	
+	/**
+	 * @param symbol
+	 *            the symbol of the child
+	 * @return the child, which is added (with no counts) if there was none
+	 */
+	public TrieNode addChild(int symbol) {
+		TrieNode child = getChild(symbol);
+		if (child != null)
+			return child;
+		child = new TrieNode(alpha);
+		child.symbol = symbol;
+		if (dense) {
+			children[symbol] = child;
+			return child;
+		}
+		
+		/* Keep the children in symbol order */
+		int i = children.length;
+		children = Arrays.copyOf(children, i + 1);
+		while (i > 0 && children[i - 1].symbol > symbol) {
+			children[i] = children[i - 1];
+			i--;
+		}
+		children[i] = child;
+		return child;
+	}
+	
 	public boolean isLeaf() {
 		for(TrieNode child : children) {
 			if (child != null) {
@@ -221,12 +714,12 @@ class TrieNode {
 	}
 	
 	public TrieNode[] sortedChildren() {
-		TrieNode[] sorted = new TrieNode[this.children.length];
+		TrieNode[] sorted = new TrieNode[alpha.getSize()];
 		for (int i = 0; i < sorted.length; i++) {
-			if (this.children[i] == null) {
+			if (getChild(i) == null) {
 				sorted[i] = new TrieNode(this.alpha);
 			} else {
-				sorted[i] = this.children[i];
+				sorted[i] = getChild(i);
 			}
 		}
 		
@@ -64,4 +64,147 @@ public class TrieKMerTest {
 		}
 	}
 
+	@Test
+	public void testTrieKMer4() {
+		Alphabet alpha = new Alphabet();
+		try {
+			DNASequence[] seqs = DNASequence.readFile(alpha,
+					"data/malT_5.fasta");
+			TrieKMer single = new TrieKMer(seqs, 4);
+			// built from 3 shards, merged by first symbol
+			TrieKMer sharded = new TrieKMer(SequenceStore.fromSequences(seqs),
+					4, 3);
+			for (int code = 0; code < 4 * 4 * 4 * 4; code++) {
+				int[] path = new int[] { code >> 6, (code >> 4) & 3,
+						(code >> 2) & 3, code & 3 };
+				for (int level = 1; level <= 4; level++) {
+					assertEquals(single.getCount(path, level), sharded.getCount(
+							path, level));
+					assertEquals(single.getSupport(path, level), sharded
+							.getSupport(path, level));
+				}
+			}
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testTrieKMer5() {
+		Alphabet alpha = new Alphabet();
+		DNASequence[] seqs = new DNASequence[] {
+				new DNASequence(alpha, "s1",
+						new char[] { 'A', 'C', 'A', 'C', 'A', 'C', 'A' }),
+				new DNASequence(alpha, "s2",
+						new char[] { 'G', 'G', 'T', 'A', 'C' }) };
+		TrieKMer tkm = new TrieKMer(seqs, 2);
+		// 'AC' occurs 3 times in s1 and once in s2, but in 2 sequences
+		assertEquals(4, tkm.getCount(new KMer(alpha, new int[] { 0, 1 })));
+		assertEquals(2, tkm.getSupport(new KMer(alpha, new int[] { 0, 1 })));
+		// 'CA' occurs 3 times, in s1 only
+		assertEquals(3, tkm.getCount(new KMer(alpha, new int[] { 1, 0 })));
+		assertEquals(1, tkm.getSupport(new KMer(alpha, new int[] { 1, 0 })));
+		MedianKMer ms = new MedianKMer(seqs);
+		KMer[] bySupport = ms.sortedExtensions(new KMer(alpha, 2), tkm,
+				CountIndex.Ordering.SUPPORT);
+		// A (s1 and s2) first, then C, G and T (one each) in alphabet order
+		assertEquals(0, bySupport[0].getKMer()[0]);
+		assertEquals(1, bySupport[1].getKMer()[0]);
+	}
+
+	@Test
+	public void testMappedCountIndex() {
+		Alphabet alpha = new Alphabet();
+		try {
+			SequenceStore store = SequenceStore.fromSequences(DNASequence
+					.readFile(alpha, "data/malT_5.fasta"));
+			TrieKMer trie = new TrieKMer(store, 4);
+			java.io.File file = java.io.File.createTempFile("malT", ".mki");
+			file.deleteOnExit();
+			MappedCountIndex.write(trie, store, file.getPath());
+			MappedCountIndex mapped = MappedCountIndex.map(file.getPath());
+			assertTrue(mapped.matches(store, 4));
+			assertFalse(mapped.matches(store, 5));
+			for (int code = 0; code < 4 * 4 * 4 * 4; code++) {
+				int[] path = new int[] { code >> 6, (code >> 4) & 3,
+						(code >> 2) & 3, code & 3 };
+				for (int level = 1; level <= 4; level++) {
+					assertEquals(trie.getCount(path, level), mapped.getCount(
+							path, level));
+					assertEquals(trie.getSupport(path, level), mapped
+							.getSupport(path, level));
+				}
+			}
+			// reopening for another depth rebuilds the file
+			assertEquals(5, MappedCountIndex.open(store, 5, file.getPath(), 1)
+					.getDepth());
+			// damaged tables are only caught when asked to verify them
+			java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file,
+					"rw");
+			raf.seek(raf.length() - 1);
+			int last = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(last ^ 1);
+			raf.close();
+			MappedCountIndex.map(file.getPath());
+			try {
+				MappedCountIndex.map(file.getPath(), true);
+				fail("Damaged tables were not detected");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("damaged tables"));
+			}
+			// a cut header or a negative symbol count is rebuilt by open
+			for (int cut : new int[] { 2, 20, -1 }) {
+				raf = new java.io.RandomAccessFile(file, "rw");
+				if (cut < 0) {
+					raf.seek(8);
+					raf.writeInt(cut);
+				} else
+					raf.setLength(cut);
+				raf.close();
+				try {
+					MappedCountIndex.map(file.getPath());
+					fail("A damaged header was not detected");
+				} catch (IOException e) {
+					assertTrue(e.getMessage().contains(
+							cut < 0 ? "damaged header" : "truncated"));
+				}
+				assertEquals(5, MappedCountIndex.open(store, 5,
+						file.getPath(), 1).getDepth());
+			}
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSketchCountIndex() {
+		Alphabet alpha = new Alphabet();
+		try {
+			SequenceStore store = SequenceStore.fromSequences(DNASequence
+					.readFile(alpha, "data/malT_5.fasta"));
+			TrieKMer trie = new TrieKMer(store, 6);
+			// ample memory keeps every level exactly, little memory collides
+			SketchCountIndex ample = new SketchCountIndex(store, 6, 1 << 22,
+					true);
+			SketchCountIndex small = new SketchCountIndex(store, 6, 1 << 12,
+					true);
+			int[] path = new int[6];
+			for (int code = 0; code < 1 << 12; code++) {
+				for (int p = 0; p < 6; p++)
+					path[p] = (code >> (10 - 2 * p)) & 3;
+				for (int level = 1; level <= 6; level++) {
+					int count = trie.getCount(path, level);
+					int support = trie.getSupport(path, level);
+					assertEquals(count, ample.getCount(path, level));
+					assertEquals(support, ample.getSupport(path, level));
+					assertTrue(small.getCount(path, level) >= count);
+					assertTrue(small.getSupport(path, level) >= support);
+				}
+			}
+		} catch (IOException e) {
+			fail("Sequence file not found: " + e.getMessage());
+		}
+	}
+
 }
@@ -0,0 +1,959 @@
+package motif;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Branch-and-bound search for the median k-mer that keeps track of which
+ * windows of each sequence can still be that sequence's best match.
+ *
+ * For every depth of the search tree and every sequence, a compact list of
+ * window offsets is kept together with the number of mismatches of the
+ * current prefix in each window. A window whose partial mismatch count
+ * already exceeds what the sequence can afford, given the incumbent and the
+ * minima of all other sequences, can never be the sequence's minimum in a
+ * better k-mer. Mismatch counts only grow as the prefix is extended and the
+ * incumbent only shrinks, so such windows are dropped for the whole subtree.
+ * Deep nodes therefore touch a handful of windows instead of all N-k+1.
+ *
+ * The lists are stored in primitive buffers (one pair per depth) that are
+ * allocated once and reused by all nodes.
+ *
+ * The children of a node are scored together: one sweep over the viable
+ * windows of a sequence reads the next symbol of each window, which is a
+ * match for one child and a mismatch for all others, so each child's minimum
+ * is the smaller of the best window followed by its symbol and the best
+ * window overall plus one. The symbols are kept for the windows of the
+ * children that are expanded, so the sequences are read once per node rather
+ * than once per child. Children whose bound reaches the incumbent are pruned
+ * without touching their windows, and without an index the others are
+ * visited in order of their bounds.
+ *
+ * Positions are fixed left to right by default. With dynamic position
+ * ordering, each node fixes next the free position whose column varies most
+ * (has the highest entropy) across the best-matching windows of the
+ * sequences: whichever symbol a child puts there, many sequences lose their
+ * best windows, so the bounds of all children rise and bad branches are cut
+ * early (fail first). Mismatch counts are sums over the fixed positions, so
+ * they do not depend on the order. The count index can only rank prefixes,
+ * so it orders the children only while the fixed positions are a prefix.
+ *
+ * By default the distance of a k-mer is the sum over all sequences. With a
+ * quorum q only the q best-matching sequences are summed (as in ZOOPS motif
+ * models), so sequences without the motif do not dominate the score. The
+ * lower bound is then the sum of the q smallest partial distances, and a
+ * sequence whose windows are all dropped is excluded from the quorum.
+ *
+ * A sequence that stands for w identical ones (see
+ * {@link SequenceStore#deduplicate()}) adds w times its minimum to the
+ * distances and bounds and counts w times towards the quorum. Without a
+ * quorum, a window then only survives if w times its extra mismatches fit
+ * in the room below the incumbent.
+ *
+ * The sweeps of a node are done over blocks of consecutive sequences with
+ * about {@link #BLOCK} windows each, so that the window state of a block
+ * stays in cache. When several threads are allowed and a node still has many
+ * viable windows (thousands of sequences, short prefixes), the blocks are
+ * shared out among them; deeper nodes are swept by the calling thread alone.
+ * The partial bounds of the finished blocks are added up as they come in,
+ * and once every child's partial bound reaches the incumbent the remaining
+ * blocks are skipped: all children are pruned anyway.
+ *
+ * If the store has degenerate codes (IUPAC), a window's next code is kept
+ * as it is and matches every symbol of its set: the best window followed by
+ * the code counts for each of those children, and a descend adds a mismatch
+ * through a table of the codes that miss the child. Stores of plain symbols
+ * keep the comparisons of single symbols.
+ *
+ * To find several motifs one after the other (see {@link MotifDiscovery}),
+ * the same search is run again after the windows of the motifs found so far
+ * have been masked: they are dropped from the root lists, which every node
+ * is derived from, and the motifs are excluded as results. The distances of
+ * all k-mers can only grow, so the last distance is a lower bound that ends
+ * the next search as soon as the incumbent reaches it. A search can also
+ * collect the best k-mers it meets, pruning at the distance of the worst of
+ * them: any other k-mer stays above that threshold however many windows
+ * are masked, so later rounds only rescore the candidates while the best of
+ * them still reaches it.
+ */
+public class WindowSearch {
+
+	private final Alphabet alpha; // the alphabet of the sequences
+	private final SequenceStore store; // the sequences
+	private final long[] starts; // the position of each sequence in store
+	private final int k; // the length of the sought k-mer
+	private final CountIndex index; // statistics for ordering, may be null
+	private CountIndex.Ordering ordering = CountIndex.Ordering.COUNT;
+	private final SearchStats stats; // counters for this search
+
+	private final int[] base; // first buffer slot of each sequence
+	private final int[][] offsets; // per depth, the viable window offsets
+	private final byte[][] mismatches; // per depth, mismatches per window
+	private final int[][] active; // per depth, viable windows per sequence
+	private final byte[][] next; // per depth, the next symbol per window
+	private final int[][][] minima; // per depth and child, the minimum of
+									// each sequence
+	private final int[][] bounds; // per depth, the lower bound of each child
+	private final int[] widths; // the number of windows of each sequence
+								// (0 once all are masked)
+	private final int[] weights; // the number of copies of each sequence
+	private final boolean degenerate; // the store has degenerate codes
+	private final byte[][] misses; // per child, 1 for the codes that miss it
+	private final long copies; // the number of sequences with their copies
+	private Quorum quorum; // selection of the best q sequences, null for all
+	private HintedScorer scorer; // scores offered k-mers, made on first use
+
+	private final int[] pattern; // the symbols of the current node, or -1
+	private final int[] column; // per depth, the position fixed at it
+	private final double[][] columns; // symbol counts of the free positions
+	private boolean dynamic; // choose the next position per node
+	private final int[][] order; // per depth, the order of the children
+	private final long[][] scores; // per depth, the score of each child
+	private int best; // the distance of the incumbent
+	private int[] bestKMer; // the incumbent, null until one is found
+	private int limit = Integer.MAX_VALUE; // only k-mers below are sought
+	private int floor = -1; // a known lower bound of the distance
+	private boolean masked; // some windows were dropped from the root
+	private final List<int[]> excluded = new ArrayList<int[]>(); // banned
+	private int collect; // the number of best k-mers kept, 0 for one
+	private int[][] candidates; // the best k-mers met, by distance
+	private int[] scored; // the distance of each candidate
+	private int found; // the number of candidates
+	private int threshold; // what a k-mer had to beat to be collected
+
+	private static final int POLL = 256; // nodes between cancellation checks
+	private int poll = POLL; // nodes left until the next check
+
+	/**
+	 * The number of windows per block of sequences
+	 */
+	public static final int BLOCK = 1 << 13;
+
+	/**
+	 * The number of viable windows from which a node is swept in parallel
+	 */
+	public static final long PARALLEL = 1 << 16;
+
+	private final int[] blocks; // first sequence of each block, n at the end
+	private final long[] windows; // per depth, the viable windows of the node
+	private int threads = 1; // the number of threads that share a sweep
+	private ExecutorService pool; // the helper threads, null until needed
+	private Sweep[] sweeps; // per thread, its share of a sweep
+	private final AtomicInteger claimed = new AtomicInteger(); // next block
+	private volatile boolean abort; // all children are known to be pruned
+	private final int[] partial; // the partial bound of each child
+	private int sweepDepth, sweepChild, sweepBound, sweepKth; // of a sweep
+	private boolean scoring; // true for a score sweep, false for descend
+
+	/**
+	 * Prepares a search over the specified sequences
+	 *
+	 * @param store
+	 *            the sequence data
+	 * @param k
+	 *            the length of the sought k-mer
+	 * @param index
+	 *            prefix statistics used to visit promising extensions first,
+	 *            or null to visit them in alphabet order
+	 */
+	public WindowSearch(SequenceStore store, int k, CountIndex index) {
+		int n = store.getCount();
+		if (n < 1)
+			throw new RuntimeException("No sequences to search");
+		if (k > Byte.MAX_VALUE)
+			throw new RuntimeException("k-mers longer than " + Byte.MAX_VALUE
+					+ " are not supported");
+		this.alpha = store.getAlphabet();
+		this.store = store;
+		this.k = k;
+		this.index = index;
+		this.stats = new SearchStats(k);
+
+		this.starts = new long[n];
+		this.base = new int[n];
+		this.widths = new int[n];
+		this.weights = new int[n];
+		this.copies = store.getTotalWeight();
+		int total = 0;
+		List<Integer> firsts = new ArrayList<Integer>();
+		for (int s = 0, size = BLOCK; s < n; s++) {
+			starts[s] = store.getStart(s);
+			base[s] = total;
+			int W = store.getLength(s) - k + 1;
+			widths[s] = W > 0 ? W : 0;
+			weights[s] = store.getWeight(s);
+			total += widths[s];
+			if (size >= BLOCK) {
+				firsts.add(s);
+				size = 0;
+			}
+			size += widths[s];
+		}
+		this.blocks = new int[firsts.size() + 1];
+		for (int b = 0; b < firsts.size(); b++)
+			blocks[b] = firsts.get(b);
+		blocks[firsts.size()] = n;
+		this.windows = new long[k + 1];
+		windows[0] = total;
+
+		this.offsets = new int[k + 1][total];
+		this.mismatches = new byte[k + 1][total];
+		this.active = new int[k + 1][n];
+		this.next = new byte[k][total];
+		this.degenerate = store.isDegenerate();
+		int codes = alpha.getCodes().length;
+		this.misses = new byte[alpha.getSize()][codes];
+		for (int c = 0; c < alpha.getSize(); c++)
+			for (int v = 0; v < codes; v++)
+				misses[c][v] = (byte) (alpha.matches(v, c) ? 0 : 1);
+		this.minima = new int[k][alpha.getSize()][n];
+		this.bounds = new int[k][alpha.getSize()];
+		this.partial = new int[alpha.getSize()];
+		this.sweeps = new Sweep[] { new Sweep() };
+		this.pattern = new int[k];
+		this.column = new int[k];
+		this.columns = new double[k][codes];
+		for (int i = 0; i < k; i++) {
+			pattern[i] = -1;
+			column[i] = i;
+		}
+		this.order = new int[k][alpha.getSize()];
+		this.scores = new long[k][alpha.getSize()];
+
+		/* At the root every window that fits a k-mer is viable */
+		for (int s = 0; s < n; s++) {
+			for (int w = 0; w < widths[s]; w++)
+				offsets[0][base[s] + w] = w;
+			active[0][s] = widths[s];
+		}
+	}
+
+	/**
+	 * Restricts the distance to the sum over the q best-matching sequences
+	 *
+	 * @param q
+	 *            the quorum, 1..n (n or more sums over all sequences)
+	 */
+	public void setQuorum(int q) {
+		if (q < 1)
+			throw new RuntimeException("Invalid quorum " + q);
+		quorum = q < copies ? new Quorum(q, k) : null;
+	}
+
+	/**
+	 * Sets the policy by which the extensions of a prefix are ranked when an
+	 * index is available
+	 *
+	 * @param ordering
+	 *            the policy (COUNT by default)
+	 */
+	public void setOrdering(CountIndex.Ordering ordering) {
+		this.ordering = ordering;
+	}
+
+	/**
+	 * Only looks for k-mers whose distance is below a limit, e.g. to find out
+	 * whether some k-mer beats a known distance: the limit prunes like an
+	 * incumbent from the start, so the search stops as soon as no subtree can
+	 * beat it. If no k-mer does, the search returns the limit and there is
+	 * no median k-mer.
+	 *
+	 * @param limit
+	 *            the distance that a k-mer must beat
+	 */
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Lets nodes with at least {@link #PARALLEL} viable windows be swept by
+	 * several threads
+	 *
+	 * @param threads
+	 *            the number of threads, including the calling one
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads < 1 ? 1 : threads;
+	}
+
+	/**
+	 * Makes each node fix the free position whose column varies most (has the
+	 * highest entropy) in the best-matching windows, rather than the leftmost
+	 * one
+	 *
+	 * @param dynamic
+	 *            true to choose positions per node
+	 */
+	public void setDynamic(boolean dynamic) {
+		this.dynamic = dynamic;
+	}
+
+	/**
+	 * Sets a known lower bound of the distance, e.g. the distance of a
+	 * search before windows were masked: the search stops as soon as the
+	 * incumbent reaches it.
+	 *
+	 * @param floor
+	 *            the lower bound, or -1 if none is known
+	 */
+	public void setFloor(int floor) {
+		this.floor = floor;
+	}
+
+	/**
+	 * Keeps a k-mer from being the result of later searches, e.g. a motif
+	 * that was found before
+	 *
+	 * @param kmer
+	 *            a complete k-mer
+	 */
+	public void exclude(KMer kmer) {
+		excluded.add(kmer.getKMer().clone());
+		if (bestKMer != null && Arrays.equals(bestKMer, kmer.getKMer()))
+			bestKMer = null; // the incumbent may not be a result any more
+	}
+
+	/**
+	 * Drops the windows of a sequence that overlap a region from all later
+	 * searches, e.g. an occurrence of a motif found before, so that the
+	 * sequence can only match elsewhere. A sequence without any window left
+	 * adds k to the distance, as if it were too short. The distances of all
+	 * k-mers can only grow, so the incumbent is forgotten.
+	 *
+	 * @param s
+	 *            the number of the sequence
+	 * @param from
+	 *            the first position of the region
+	 * @param to
+	 *            the position after the region
+	 * @return the number of windows dropped
+	 */
+	public int mask(int s, int from, int to) {
+		int[] off = offsets[0];
+		int first = base[s], last = first + active[0][s], j = first;
+		for (int i = first; i < last; i++)
+			if (off[i] + k <= from || off[i] >= to)
+				off[j++] = off[i];
+		int dropped = last - j;
+		active[0][s] = j - first;
+		windows[0] -= dropped;
+		if (active[0][s] == 0)
+			widths[s] = 0;
+		if (dropped > 0) {
+			masked = true;
+			bestKMer = null;
+		}
+		return dropped;
+	}
+
+	/**
+	 * @return the number of windows that are not masked
+	 */
+	public long getWindows() {
+		return windows[0];
+	}
+
+	/**
+	 * Makes the search keep the best k-mers it meets rather than only the
+	 * best one. Subtrees are then pruned at the distance of the count-th best
+	 * k-mer so far instead of the incumbent, so every k-mer below the final
+	 * threshold is among the candidates (see {@link #getThreshold()}). Since
+	 * masking can only raise distances, the candidates are all that need to
+	 * be scored again after masking as long as the best of them still
+	 * reaches the threshold.
+	 *
+	 * @param count
+	 *            the number of k-mers kept, 0 to keep only the best one
+	 */
+	public void setCollect(int count) {
+		this.collect = count < 0 ? 0 : count;
+	}
+
+	/**
+	 * @return the k-mers collected by the last search, best first
+	 */
+	public List<KMer> getCandidates() {
+		List<KMer> list = new ArrayList<KMer>();
+		for (int i = 0; i < found; i++)
+			list.add(new KMer(alpha, candidates[i].clone()));
+		return list;
+	}
+
+	/**
+	 * @return the distances of the candidates of the last search, best first
+	 */
+	public int[] getCandidateDistances() {
+		return found == 0 ? new int[0] : Arrays.copyOf(scored, found);
+	}
+
+	/**
+	 * Retrieves the threshold of the last collecting search: every k-mer
+	 * with a lower distance that is not excluded is one of the candidates
+	 *
+	 * @return the threshold
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Scores a complete k-mer and makes it the incumbent if it beats the
+	 * current one. A good incumbent before the search lets the bound prune
+	 * from the start; the search then only replaces it by a strictly better
+	 * k-mer. Offered k-mers are usually alike, so they are scored with a
+	 * {@link HintedScorer}, and only as far as needed to beat the incumbent.
+	 * Once windows are masked, the remaining windows are scanned instead.
+	 * Excluded k-mers are scored but never become the incumbent.
+	 *
+	 * @param kmer
+	 *            a complete k-mer
+	 * @return the distance of the k-mer, or a value of at least the distance
+	 *         of the incumbent (or the limit) if it does not beat it
+	 */
+	public int offer(KMer kmer) {
+		int[] symbols = kmer.getKMer();
+		if (scorer == null)
+			scorer = new HintedScorer(store);
+		long lookups = scorer.getLookups(), hits = scorer.getHits();
+		int beat = bestKMer == null ? limit : Math.min(best, limit);
+		int distance;
+		if (quorum == null && !masked)
+			distance = scorer.score(symbols, k, beat);
+		else if (quorum == null) {
+			long total = 0;
+			for (int s = 0; s < starts.length && total < beat; s++) {
+				long room = beat - total;
+				int cap = (int) Math.min((room + weights[s] - 1) / weights[s],
+						k + 1);
+				total += (long) weights[s] * unmasked(s, symbols, cap);
+			}
+			distance = (int) Math.min(total, Integer.MAX_VALUE);
+		} else {
+			/* Any sequence may fall out of the quorum, so no caps */
+			quorum.clear();
+			for (int s = 0; s < starts.length; s++)
+				quorum.add(masked ? unmasked(s, symbols, k + 1) : scorer
+						.getDistance(s, symbols, k, k + 1), weights[s]);
+			distance = quorum.sum();
+		}
+		stats.hints(scorer.getLookups() - lookups, scorer.getHits() - hits);
+		if (distance < limit && (bestKMer == null || distance < best)
+				&& !isExcluded(symbols)) {
+			best = distance;
+			bestKMer = symbols.clone();
+		}
+		return distance;
+	}
+
+	/**
+	 * Determines the minimum number of mismatches of a k-mer in the windows
+	 * of a sequence that are not masked, if it is below a cap
+	 *
+	 * @return the minimum if it is below the cap, otherwise a value of at
+	 *         least the cap (k if no window is left)
+	 */
+	private int unmasked(int s, int[] symbols, int cap) {
+		int[] off = offsets[0];
+		int first = base[s], last = first + active[0][s];
+		int min = first == last ? k : Math.min(k, cap);
+		for (int i = first; i < last && min > 0; i++) {
+			long start = starts[s] + off[i];
+			int mm = 0;
+			for (int j = 0; j < k && mm < min; j++)
+				if (!alpha.matches(store.symbolAt(start + j), symbols[j]))
+					mm++;
+			min = Math.min(min, mm);
+		}
+		return min;
+	}
+
+	/**
+	 * @return true if a complete k-mer may not be the result
+	 */
+	private boolean isExcluded(int[] symbols) {
+		for (int[] banned : excluded)
+			if (Arrays.equals(banned, symbols))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Adds the current pattern to the candidates, in order of distance, and
+	 * raises the bar to the last candidate once there are enough
+	 */
+	private void addCandidate(int distance) {
+		if (candidates == null || candidates.length != collect) {
+			candidates = new int[collect][];
+			scored = new int[collect];
+		}
+		int j = found < collect ? found++ : collect - 1; // replaces the last
+		while (j > 0 && scored[j - 1] > distance) {
+			candidates[j] = candidates[j - 1];
+			scored[j] = scored[j - 1];
+			j--;
+		}
+		candidates[j] = pattern.clone();
+		scored[j] = distance;
+		if (found == collect)
+			best = scored[collect - 1];
+	}
+
+	/**
+	 * Runs the search, starting from the incumbent if one was offered (and
+	 * not collecting)
+	 *
+	 * @return the distance of the median k-mer, or the limit if no k-mer
+	 *         beats it
+	 * @throws RuntimeException
+	 *             if the thread is interrupted during the search
+	 */
+	public int search() {
+		if (bestKMer == null || collect > 0)
+			best = (int) Math.min(k * copies + 1, limit);
+		found = 0;
+		try {
+			expand(0, rootBound());
+			if (collect > 0) {
+				threshold = best;
+				if (found > 0) {
+					best = scored[0];
+					bestKMer = candidates[0].clone();
+				}
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+				pool = null;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the distance found by the last search
+	 */
+	public int getDistance() {
+		return best;
+	}
+
+	/**
+	 * @return the (first found) median k-mer of the last search, or null if
+	 *         no k-mer beat the limit
+	 */
+	public KMer getKMer() {
+		if (bestKMer == null)
+			return null;
+		return new KMer(alpha, bestKMer.clone());
+	}
+
+	/**
+	 * @return the counters collected by the last search
+	 */
+	public SearchStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Visits the children of a node whose state is stored at the specified
+	 * depth
+	 *
+	 * @param depth
+	 *            the number of specified positions
+	 * @param bound
+	 *            the lower bound of the node
+	 */
+	private void expand(int depth, int bound) {
+		if (depth == k) {
+			if (bound < best && !isExcluded(pattern)) {
+				if (collect > 0)
+					addCandidate(bound);
+				else {
+					best = bound;
+					bestKMer = pattern.clone();
+				}
+			}
+			return;
+		}
+		if (best <= floor)
+			return; // the incumbent cannot be beaten
+		if (--poll == 0) { // look for cancellation now and then
+			poll = POLL;
+			if (Thread.currentThread().isInterrupted())
+				throw new RuntimeException("Search was interrupted");
+		}
+		column[depth] = dynamic ? choosePosition(depth) : depth;
+		score(depth);
+		int[] children = orderChildren(depth);
+		for (int c : children) {
+			pattern[column[depth]] = c;
+			int childBound = bounds[depth][c];
+			boolean cut = childBound >= best; // the incumbent may have improved
+			stats.node(depth + 1, cut);
+			if (!cut) {
+				descend(depth, c, childBound);
+				expand(depth + 1, childBound);
+			}
+		}
+		pattern[column[depth]] = -1;
+	}
+
+	/**
+	 * Chooses the free position whose symbols in the best windows of the
+	 * sequences have the highest entropy (the leftmost on ties)
+	 *
+	 * @param depth
+	 *            the depth of the node
+	 * @return the position to fix next
+	 */
+	private int choosePosition(int depth) {
+		int[] off = offsets[depth], count = active[depth];
+		byte[] mm = mismatches[depth];
+		for (int p = 0; p < k; p++)
+			if (pattern[p] < 0)
+				Arrays.fill(columns[p], 0);
+		for (int s = 0; s < starts.length; s++) {
+			int n = count[s];
+			if (n == 0)
+				continue;
+			int from = base[s], to = from + n, min = k;
+			for (int i = from; i < to; i++)
+				min = Math.min(min, mm[i]);
+			for (int i = from; i < to; i++) {
+				if (mm[i] != min)
+					continue;
+				long start = starts[s] + off[i];
+				for (int p = 0; p < k; p++)
+					if (pattern[p] < 0)
+						columns[p][store.symbolAt(start + p)] += weights[s];
+			}
+		}
+		int chosen = -1;
+		double highest = -1;
+		for (int p = 0; p < k; p++) {
+			if (pattern[p] >= 0)
+				continue;
+			double total = 0, entropy = 0;
+			for (double f : columns[p])
+				total += f;
+			for (double f : columns[p])
+				if (f > 0)
+					entropy -= f / total * Math.log(f / total);
+			if (entropy > highest + 1e-12) {
+				chosen = p;
+				highest = entropy;
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * @return the lower bound of the empty k-mer, where only sequences that
+	 *         are too short for a k-mer contribute (k each)
+	 */
+	private int rootBound() {
+		int bound = 0;
+		if (quorum != null)
+			quorum.clear();
+		for (int s = 0; s < starts.length; s++) {
+			int d = widths[s] == 0 ? k : 0;
+			bound += weights[s] * d;
+			if (quorum != null)
+				quorum.add(d, weights[s]);
+		}
+		return quorum == null ? bound : quorum.sum();
+	}
+
+	/**
+	 * Computes the minimum of every sequence and the lower bound of every
+	 * child of a node in one sweep over the viable windows, and keeps the
+	 * next symbol of each window for {@link #descend(int, int, int)}. If all
+	 * children are pruned before the sweep is done, the bounds are partial
+	 * but all at least the incumbent.
+	 *
+	 * @param depth
+	 *            the depth of the node
+	 */
+	private void score(int depth) {
+		int radix = partial.length;
+		Arrays.fill(partial, 0);
+		scoring = true;
+		sweep(depth);
+		int[][] mins = minima[depth];
+		for (int c = 0; c < radix; c++) {
+			int bound = partial[c];
+			if (quorum != null) {
+				quorum.clear();
+				for (int s = 0; s < starts.length; s++)
+					quorum.add(mins[c][s], weights[s]);
+				bound = quorum.sum();
+			}
+			bounds[depth][c] = bound;
+		}
+	}
+
+	/**
+	 * Computes the minima of the children in the sequences from..to-1
+	 *
+	 * @param bySymbol
+	 *            scratch for the best window followed by each symbol or
+	 *            degenerate code
+	 * @param sums
+	 *            the partial bound of each child, added to
+	 */
+	private void score(int depth, int from, int to, int[] bySymbol,
+			int[] sums) {
+		int radix = sums.length;
+		int[] off = offsets[depth], count = active[depth];
+		byte[] mm = mismatches[depth], sym = next[depth];
+		int[][] mins = minima[depth];
+		for (int s = from; s < to; s++) {
+			int n = count[s];
+			if (n == 0) {
+				/* too short for a k-mer (k), or excluded from the quorum */
+				int min = widths[s] == 0 ? k : k + 1;
+				for (int c = 0; c < radix; c++) {
+					mins[c][s] = min;
+					sums[c] += weights[s] * min;
+				}
+				continue;
+			}
+			long start = starts[s] + column[depth];
+			int first = base[s], last = first + n, all = k;
+			for (int c = 0; c < bySymbol.length; c++)
+				bySymbol[c] = k;
+			for (int i = first; i < last; i++) {
+				int v = store.symbolAt(start + off[i]), x = mm[i];
+				sym[i] = (byte) v;
+				all = Math.min(all, x);
+				bySymbol[v] = Math.min(bySymbol[v], x);
+			}
+			if (degenerate) // a code is followed by each symbol of its set
+				for (int v = radix; v < bySymbol.length; v++)
+					for (int c = 0; c < radix; c++)
+						if (misses[c][v] == 0 && bySymbol[v] < bySymbol[c])
+							bySymbol[c] = bySymbol[v];
+			for (int c = 0; c < radix; c++) {
+				int min = Math.min(bySymbol[c], all + 1);
+				mins[c][s] = min;
+				sums[c] += weights[s] * min;
+			}
+		}
+	}
+
+	/**
+	 * Extends the windows of a node by the symbol of a child and stores the
+	 * viable ones for the child at depth + 1.
+	 *
+	 * @param depth
+	 *            the depth of the parent
+	 * @param c
+	 *            the symbol of the child
+	 * @param bound
+	 *            the lower bound of the child
+	 */
+	private void descend(int depth, int c, int bound) {
+		int[] mins = minima[depth][c];
+		int kth = k + 1;
+		if (quorum != null) {
+			quorum.clear();
+			for (int s = 0; s < starts.length; s++)
+				quorum.add(mins[s], weights[s]);
+			kth = quorum.kth();
+		}
+		sweepChild = c;
+		sweepBound = bound;
+		sweepKth = kth;
+		scoring = false;
+		sweep(depth);
+		long in = 0, kept = 0;
+		for (Sweep share : sweeps) {
+			in += share.in;
+			kept += share.kept;
+		}
+		stats.windows(depth + 1, in, kept);
+		windows[depth + 1] = kept;
+	}
+
+	/**
+	 * Keeps the viable windows of the child in the sequences from..to-1
+	 *
+	 * @return the number of windows kept
+	 */
+	private int keep(int depth, int from, int to) {
+		int[] off = offsets[depth], offNext = offsets[depth + 1];
+		byte[] mm = mismatches[depth], mmNext = mismatches[depth + 1];
+		byte[] sym = next[depth];
+		int[] count = active[depth], countNext = active[depth + 1];
+		int[] mins = minima[depth][sweepChild];
+		int c = sweepChild, bound = sweepBound, kth = sweepKth, kept = 0;
+
+		/*
+		 * A window survives if, with the other sequences of the quorum at
+		 * their minima, it could still give a total below the incumbent.
+		 * Summing over all sequences, the others contribute bound - min; with
+		 * a quorum, the best q - 1 others contribute bound - min(min, kth)
+		 * where kth is the q-th smallest minimum. The copies of a sequence
+		 * of weight w all take the same window, so without a quorum the
+		 * room below the incumbent is shared by w extra mismatches each;
+		 * with a quorum only one copy is sure to count.
+		 */
+		for (int s = from; s < to; s++) {
+			int n = count[s];
+			if (n == 0) {
+				countNext[s] = 0;
+				continue;
+			}
+			int min = mins[s];
+			int limit = quorum == null ? min + (best - 1 - bound) / weights[s]
+					: best - 1 - bound + (min < kth ? min : kth);
+			int first = base[s], last = first + n, j = first;
+			if (degenerate) {
+				byte[] miss = misses[c];
+				for (int i = first; i < last; i++) {
+					int v = mm[i] + miss[sym[i]];
+					if (v <= limit) {
+						offNext[j] = off[i];
+						mmNext[j] = (byte) v;
+						j++;
+					}
+				}
+			} else
+				for (int i = first; i < last; i++) {
+					int v = mm[i] + (sym[i] == c ? 0 : 1);
+					if (v <= limit) {
+						offNext[j] = off[i];
+						mmNext[j] = (byte) v;
+						j++;
+					}
+				}
+			countNext[s] = j - first;
+			kept += j - first;
+		}
+		return kept;
+	}
+
+	/**
+	 * Runs a score or descend sweep over all blocks of sequences, sharing
+	 * the blocks out among the threads if the node has enough windows
+	 *
+	 * @param depth
+	 *            the depth of the node
+	 * @throws RuntimeException
+	 *             if the thread is interrupted while waiting for the helpers
+	 */
+	private void sweep(int depth) {
+		sweepDepth = depth;
+		claimed.set(0);
+		abort = false;
+		for (Sweep share : sweeps)
+			share.in = share.kept = 0;
+		int helpers = Math.min(threads, blocks.length - 1) - 1;
+		if (helpers < 1 || windows[depth] < PARALLEL) {
+			sweeps[0].call();
+			return;
+		}
+		if (pool == null)
+			pool = Executors.newFixedThreadPool(threads - 1);
+		if (sweeps.length <= helpers) {
+			Sweep[] more = Arrays.copyOf(sweeps, helpers + 1);
+			for (int t = sweeps.length; t <= helpers; t++)
+				more[t] = new Sweep();
+			sweeps = more;
+		}
+		List<Future<Object>> shares = new ArrayList<Future<Object>>();
+		for (int t = 1; t <= helpers; t++)
+			shares.add(pool.submit(sweeps[t]));
+		sweeps[0].call();
+		for (Future<Object> f : shares) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Search was interrupted");
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Determines the order in which the children of a node are visited: by
+	 * the index if there is one and the node is a prefix, otherwise lowest
+	 * bound first
+	 *
+	 * @param depth
+	 *            the depth of the node
+	 * @return the symbols of the children in visiting order
+	 */
+	private int[] orderChildren(int depth) {
+		int[] children = order[depth];
+		for (int c = 0; c < children.length; c++)
+			children[c] = c;
+
+		/* Highest score first, ties in alphabet order (insertion sort) */
+		boolean prefix = index != null;
+		for (int d = 0; d <= depth && prefix; d++)
+			prefix = column[d] == d;
+		long[] counts = scores[depth];
+		for (int c = 0; c < children.length; c++) {
+			pattern[column[depth]] = c;
+			counts[c] = prefix ? ordering.score(index, pattern, depth + 1)
+					: -bounds[depth][c];
+		}
+		for (int i = 1; i < children.length; i++) {
+			int current = children[i], j = i;
+			while (j > 0 && counts[children[j - 1]] < counts[current]) {
+				children[j] = children[j - 1];
+				j--;
+			}
+			children[j] = current;
+		}
+		return children;
+	}
+
+	/**
+	 * The share of one thread in a sweep: it claims blocks of sequences
+	 * until none are left or the sweep is aborted
+	 */
+	private class Sweep implements Callable<Object> {
+
+		private final int[] bySymbol = new int[alpha.getCodes().length];
+		private final int[] sums = new int[partial.length];
+		private long in, kept; // the windows of the last descend sweep
+
+		public Object call() {
+			int depth = sweepDepth;
+			int b;
+			while (!abort
+					&& (b = claimed.getAndIncrement()) < blocks.length - 1) {
+				int from = blocks[b], to = blocks[b + 1];
+				if (!scoring) {
+					for (int s = from; s < to; s++)
+						in += active[depth][s];
+					kept += keep(depth, from, to);
+					continue;
+				}
+				Arrays.fill(sums, 0);
+				score(depth, from, to, bySymbol, sums);
+				synchronized (partial) {
+					int lowest = Integer.MAX_VALUE;
+					for (int c = 0; c < sums.length; c++) {
+						partial[c] += sums[c];
+						lowest = Math.min(lowest, partial[c]);
+					}
+					/* partial sums only grow; a quorum sum does not */
+					if (quorum == null && lowest >= best)
+						abort = true;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.UUID;
+
+/**
+ * A thin client of {@link MotifServer} that accepts the options of the
+ * command line application and prints the server's answer, so that a search
+ * can be sent to a warm server by changing the name of the class only.
+ */
+public class MotifClient {
+
+	/**
+	 * Sends a request to the server and returns its answer
+	 *
+	 * @param base
+	 *            the address of the server, e.g. "http://127.0.0.1:7070"
+	 * @param path
+	 *            the path and query of the request
+	 * @param out
+	 *            receives the answer (or the error message)
+	 * @return the HTTP status of the answer
+	 * @throws IOException
+	 *             if the server cannot be reached
+	 */
+	public static int request(String base, String path, StringBuffer out)
+			throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(base + path)
+				.openConnection();
+		try {
+			int status = conn.getResponseCode();
+			InputStream in = status == 200 ? conn.getInputStream() : conn
+					.getErrorStream();
+			if (in != null) {
+				try {
+					byte[] buf = new byte[8192];
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					for (int n; (n = in.read(buf)) > 0;)
+						bytes.write(buf, 0, n);
+					out.append(bytes.toString("UTF-8"));
+				} finally {
+					in.close();
+				}
+			}
+			return status;
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	/**
+	 * Encodes a parameter of the query string
+	 */
+	private static String param(String name, String value) {
+		try {
+			return "&" + name + "=" + URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e); // UTF-8 is always supported
+		}
+	}
+
+	/**
+	 * A command line application that accepts these parameters of
+	 * {@link motif.MedianKMer#main(String[])}: -f, -k, -q, -e, -t, -v, -a,
+	 * -z, -r, -n, -y and -l; and the following.
+	 * -h <host>
+	 * -p <port>
+	 * -w <timeout>
+	 * Interrupting the client cancels the search on the server.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String host = "127.0.0.1";
+		int port = 7070;
+		String file = null; // FASTA file or saved store
+		final StringBuffer query = new StringBuffer();
+
+		// parse the parameters
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].charAt(0) == '-') // option
+			{
+				char option = args[i].charAt(1);
+				switch (option) {
+				case 'h':
+					if (i + 1 < args.length)
+						host = args[++i];
+					break;
+				case 'p':
+					if (i + 1 < args.length)
+						port = Integer.parseInt(args[++i]);
+					break;
+				case 'w':
+					if (i + 1 < args.length)
+						query.append(param("timeout", args[++i]));
+					break;
+				case 'f': // the server may run elsewhere in the file system
+					if (i + 1 < args.length)
+						file = new File(args[++i]).getAbsolutePath();
+					break;
+				case 'v':
+					query.append("&v");
+					break;
+				case 'k':
+				case 'q':
+				case 'e':
+				case 't':
+				case 'a':
+				case 'z':
+				case 'r':
+				case 'n':
+				case 'y':
+				case 'l':
+					if (i + 1 < args.length)
+						query.append(param(String.valueOf(option), args[++i]));
+					break;
+				default:
+					System.err.println("Unknown option \"-" + option + "\"");
+				}
+			}
+		}
+
+		if (file == null) {
+			System.err
+					.println("Usage: MotifClient [-h <host>] [-p <port>] [-w <timeout>] -f <filename> { -q <query-k-mer> | -k <length> [-e <engine>] [-t <threads>] [-v] [-a <seed>] [-z <quorum>] [-r <ordering>] [-n <mismatches>] [-y <unknown>] [-l <alphabet>] }");
+			System.err
+					.println("-h and -p select the server (default: 127.0.0.1:7070)");
+			System.err
+					.println("-w sets the time limit of the search in milliseconds");
+			System.err
+					.println("the other options are those of MedianKMer");
+			System.exit(1);
+		}
+
+		final String base = "http://" + host + ":" + port;
+		final String id = UUID.randomUUID().toString();
+		final boolean[] done = new boolean[1];
+
+		/* Cancel the search on the server if the client is interrupted */
+		Thread hook = new Thread() {
+			public void run() {
+				synchronized (done) {
+					if (done[0])
+						return;
+				}
+				try {
+					request(base, "/cancel?id=" + id, new StringBuffer());
+				} catch (IOException e) {
+					// the server is gone as well
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(hook);
+
+		StringBuffer answer = new StringBuffer();
+		int status;
+		try {
+			status = request(base, "/search?id=" + id + param("f", file)
+					+ query, answer);
+		} catch (IOException e) {
+			System.err.println("Cannot reach " + base + ": " + e.getMessage());
+			status = -1;
+		}
+		synchronized (done) {
+			done[0] = true;
+		}
+
+		if (status == 200)
+			System.out.print(answer);
+		else {
+			System.err.print(answer);
+			System.exit(status == 404 ? 2 : 4);
+		}
+	}
+}
@@ -0,0 +1,421 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import motif.Alphabet;
+import motif.CountIndex;
+import motif.DatasetCache;
+import motif.KMer;
+import motif.MedianKMer;
+import motif.SamplingSearch;
+import motif.SequenceStore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-running motif search service. The JVM stays warm between searches
+ * and loaded datasets (with their count indexes) are kept in a
+ * {@link DatasetCache}, so repeated searches skip the start-up, parsing and
+ * index building costs of the command line application.
+ *
+ * Requests are plain HTTP GETs on the loopback interface whose parameters
+ * are named after the options of {@link MedianKMer#main(String[])}:
+ * <pre>
+ * /search?f=&lt;file&gt;&amp;k=&lt;length&gt;[&amp;e=&lt;engine&gt;][&amp;t=&lt;threads&gt;][&amp;z=&lt;quorum&gt;][&amp;r=&lt;ordering&gt;][&amp;n=&lt;mismatches&gt;][&amp;a=&lt;seed&gt;][&amp;y=&lt;unknown&gt;][&amp;l=&lt;alphabet&gt;][&amp;v]
+ * /search?f=&lt;file&gt;&amp;q=&lt;query-k-mer&gt;[&amp;y=&lt;unknown&gt;][&amp;l=&lt;alphabet&gt;]
+ * /cancel?id=&lt;request-id&gt;
+ * /health
+ * /metrics
+ * </pre>
+ * Every search runs in a task of its own (on a virtual thread where the JVM
+ * supports them) and can be given an id, a timeout in milliseconds, or both.
+ * A search that times out or is cancelled is interrupted; the engines check
+ * the interrupt flag as they go and give up.
+ */
+public class MotifServer {
+
+	private final HttpServer http; // the listening server
+	private final ExecutorService executor; // runs handlers and searches
+	private final DatasetCache cache; // datasets shared by all searches
+	private final long timeout; // default time limit (ms, 0 for none)
+	private final long started = System.currentTimeMillis();
+
+	private final Map<String, Future<String>> running = new ConcurrentHashMap<String, Future<String>>();
+	private final AtomicLong ids = new AtomicLong(); // generated request ids
+	private final AtomicLong requests = new AtomicLong(); // searches received
+	private final AtomicLong completed = new AtomicLong(); // searches answered
+	private final AtomicLong failed = new AtomicLong(); // bad requests, errors
+	private final AtomicLong cancelled = new AtomicLong(); // by /cancel
+	private final AtomicLong timeouts = new AtomicLong(); // past their limit
+
+	/**
+	 * Constructs a server on the loopback interface; call {@link #start()} to
+	 * accept requests.
+	 *
+	 * @param port
+	 *            the port to listen on
+	 * @param capacity
+	 *            the number of datasets that are kept loaded
+	 * @param timeout
+	 *            the default time limit of a search in milliseconds (0 for
+	 *            none)
+	 * @throws IOException
+	 *             if the port cannot be bound
+	 */
+	public MotifServer(int port, int capacity, long timeout) throws IOException {
+		this.cache = new DatasetCache(capacity);
+		this.timeout = timeout;
+		this.executor = newExecutor();
+		this.http = HttpServer.create(new InetSocketAddress("127.0.0.1", port),
+				0);
+		http.setExecutor(executor);
+		http.createContext("/search", new Handler() {
+			String handle(Map<String, String> params) throws Exception {
+				return search(params);
+			}
+		});
+		http.createContext("/cancel", new Handler() {
+			String handle(Map<String, String> params) {
+				return cancel(params.get("id"));
+			}
+		});
+		http.createContext("/health", new Handler() {
+			String handle(Map<String, String> params) {
+				return "OK\n";
+			}
+		});
+		http.createContext("/metrics", new Handler() {
+			String handle(Map<String, String> params) {
+				return metrics();
+			}
+		});
+	}
+
+	/**
+	 * Starts accepting requests
+	 */
+	public void start() {
+		http.start();
+	}
+
+	/**
+	 * Stops accepting requests, cancels the running searches and releases the
+	 * threads
+	 */
+	public void stop() {
+		http.stop(0);
+		for (Future<String> f : running.values())
+			f.cancel(true);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return http.getAddress().getPort();
+	}
+
+	/**
+	 * @return the datasets kept by the server
+	 */
+	public DatasetCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Runs a search (or a report) and waits for its result, giving up when
+	 * the time limit is reached
+	 */
+	private String search(final Map<String, String> params) throws Exception {
+		requests.incrementAndGet();
+		String id = params.containsKey("id") ? params.get("id") : "r"
+				+ ids.incrementAndGet();
+		long limit = params.containsKey("timeout") ? Long.parseLong(params
+				.get("timeout")) : timeout;
+
+		Future<String> f = executor.submit(new Callable<String>() {
+			public String call() throws Exception {
+				return run(params);
+			}
+		});
+		if (running.putIfAbsent(id, f) != null) {
+			f.cancel(true);
+			throw new RequestException(409, "Request " + id
+					+ " is already running");
+		}
+		try {
+			String result = limit > 0 ? f.get(limit, TimeUnit.MILLISECONDS) : f
+					.get();
+			completed.incrementAndGet();
+			return result;
+		} catch (TimeoutException e) {
+			f.cancel(true);
+			timeouts.incrementAndGet();
+			throw new RequestException(503, "Request " + id
+					+ " timed out after " + limit + " ms");
+		} catch (CancellationException e) {
+			cancelled.incrementAndGet();
+			throw new RequestException(503, "Request " + id + " was cancelled");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		} finally {
+			running.remove(id);
+		}
+	}
+
+	/**
+	 * Performs a search on the cached dataset; the output matches that of the
+	 * command line application (without the start and end times)
+	 */
+	private String run(Map<String, String> params) throws IOException {
+		String file = params.get("f");
+		if (file == null)
+			throw new RequestException(400, "No file specified (f)");
+		DatasetCache.Dataset dataset = cache.get(file, Alphabet.forName(params
+				.get("l"), params.get("y")));
+		SequenceStore seqs = dataset.getStore();
+
+		MedianKMer ms = new MedianKMer(seqs);
+		if (params.containsKey("t"))
+			ms.setThreads(Integer.parseInt(params.get("t")));
+		if (params.containsKey("z"))
+			ms.setQuorum(Integer.parseInt(params.get("z")));
+		if (params.containsKey("r"))
+			ms.setOrdering(CountIndex.Ordering.valueOf(params.get("r")
+					.toUpperCase()));
+		if (params.containsKey("n"))
+			ms.setNeighborhood(Integer.parseInt(params.get("n")));
+		int k = params.containsKey("k") ? Integer.parseInt(params.get("k"))
+				: 10;
+		MedianKMer.Engine engine = params.containsKey("e") ? MedianKMer.Engine
+				.valueOf(params.get("e").toUpperCase()) : MedianKMer.Engine.NAIVE;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes, false, "UTF-8");
+		if (params.containsKey("q")) { // query
+			String kstr = params.get("q");
+			ms.printReport(new KMer(ms.getAlphabet(), ms.getAlphabet().toIndex(
+					kstr.toCharArray())), out);
+		} else if (params.containsKey("a")) { // approximate search
+			SamplingSearch approx = new SamplingSearch(seqs, k, Long
+					.parseLong(params.get("a")));
+			if (params.containsKey("z"))
+				approx.setQuorum(Integer.parseInt(params.get("z")));
+			approx.search(params.containsKey("t") ? Integer.parseInt(params
+					.get("t")) : Runtime.getRuntime().availableProcessors());
+			out.println(approx);
+		} else { // search
+			if (engine == MedianKMer.Engine.TRIE)
+				ms.setIndex(dataset.getIndex(k));
+			out.println(ms.findMedianKMer(k, engine));
+			if (params.containsKey("v") && ms.getStats() != null)
+				out.println(ms.getStats());
+		}
+		out.flush();
+		return bytes.toString("UTF-8");
+	}
+
+	/**
+	 * Interrupts a running search
+	 */
+	private String cancel(String id) {
+		if (id == null)
+			throw new RequestException(400, "No request id specified (id)");
+		Future<String> f = running.get(id);
+		if (f == null)
+			throw new RequestException(404, "No running request " + id);
+		f.cancel(true);
+		return "Cancelled " + id + "\n";
+	}
+
+	/**
+	 * One "name value" line per counter
+	 */
+	private String metrics() {
+		Runtime rt = Runtime.getRuntime();
+		StringBuffer sbuf = new StringBuffer();
+		sbuf.append("uptime_ms " + (System.currentTimeMillis() - started) + "\n");
+		sbuf.append("requests " + requests.get() + "\n");
+		sbuf.append("active " + running.size() + "\n");
+		sbuf.append("completed " + completed.get() + "\n");
+		sbuf.append("failed " + failed.get() + "\n");
+		sbuf.append("cancelled " + cancelled.get() + "\n");
+		sbuf.append("timeouts " + timeouts.get() + "\n");
+		sbuf.append("cache_entries " + cache.size() + "\n");
+		sbuf.append("cache_hits " + cache.getHits() + "\n");
+		sbuf.append("cache_misses " + cache.getMisses() + "\n");
+		sbuf.append("cache_evictions " + cache.getEvictions() + "\n");
+		sbuf.append("heap_used " + (rt.totalMemory() - rt.freeMemory()) + "\n");
+		sbuf.append("heap_max " + rt.maxMemory() + "\n");
+		return sbuf.toString();
+	}
+
+	/**
+	 * Creates an executor that starts a virtual thread per task if the JVM
+	 * has them (Java 21 and later), or else a pool of platform threads that
+	 * grows as needed.
+	 */
+	private static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Splits the query string of a request into its parameters; a parameter
+	 * without a value (such as "v") maps to the empty string
+	 */
+	static Map<String, String> parse(String query)
+			throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null)
+			return params;
+		for (String pair : query.split("&")) {
+			if (pair.length() == 0)
+				continue;
+			int eq = pair.indexOf('=');
+			String name = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(
+					value, "UTF-8"));
+		}
+		return params;
+	}
+
+	/**
+	 * Answers a request with the text produced by handle(), or with an error
+	 * status and message
+	 */
+	private abstract class Handler implements HttpHandler {
+
+		abstract String handle(Map<String, String> params) throws Exception;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			int status = 200;
+			String body;
+			try {
+				body = handle(parse(exchange.getRequestURI().getRawQuery()));
+			} catch (RequestException e) {
+				status = e.status;
+				body = e.getMessage() + "\n";
+			} catch (IOException e) {
+				status = 404;
+				body = e.getMessage() + "\n";
+			} catch (RuntimeException e) { // bad numbers, symbols, engines
+				status = 400;
+				body = e.getMessage() + "\n";
+			} catch (Exception e) {
+				status = 500;
+				body = e + "\n";
+			}
+			if (status != 200 && status != 503)
+				failed.incrementAndGet();
+
+			byte[] bytes = body.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type",
+					"text/plain; charset=UTF-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream os = exchange.getResponseBody();
+			try {
+				os.write(bytes);
+			} finally {
+				os.close();
+			}
+		}
+	}
+
+	/**
+	 * A command line application that starts the server.
+	 * -p <port>
+	 * -c <capacity>
+	 * -w <timeout>
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int port = 7070; // port on the loopback interface
+		int capacity = 4; // number of datasets kept loaded
+		long timeout = 0; // default time limit of a search (0 for none)
+
+		// parse the parameters
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].charAt(0) == '-') // option
+			{
+				switch (args[i].charAt(1)) {
+				case 'p':
+					if (i + 1 < args.length)
+						port = Integer.parseInt(args[++i]);
+					break;
+				case 'c':
+					if (i + 1 < args.length)
+						capacity = Integer.parseInt(args[++i]);
+					break;
+				case 'w':
+					if (i + 1 < args.length)
+						timeout = Long.parseLong(args[++i]);
+					break;
+				default:
+					System.err.println("Usage: MotifServer [-p <port>] [-c <capacity>] [-w <timeout>]");
+					System.err.println("-p sets the port on the loopback interface (default: 7070)");
+					System.err.println("-c sets the number of datasets kept loaded (default: 4)");
+					System.err.println("-w sets the default time limit of a search in milliseconds (default: none)");
+					System.exit(1);
+				}
+			}
+		}
+
+		try {
+			final MotifServer server = new MotifServer(port, capacity, timeout);
+			server.start();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					server.stop();
+				}
+			});
+			System.out.println("Listening on 127.0.0.1:" + server.getPort());
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+	}
+}
+
+/**
+ * Thrown for a request that cannot be answered; carries the HTTP status
+ */
+class RequestException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	final int status; // the HTTP status of the response
+
+	public RequestException(int status, String message) {
+		super(message);
+		this.status = status;
+	}
+}
@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ */
+public class MotifServerTest {
+
+	@Test
+	public void testParse() throws UnsupportedEncodingException {
+		Map<String, String> params = MotifServer
+				.parse("f=data%2FarcA_9.fasta&k=8&&v&q=A+C");
+		assertEquals(4, params.size());
+		assertEquals("data/arcA_9.fasta", params.get("f"));
+		assertEquals("8", params.get("k"));
+		assertEquals("", params.get("v")); // a flag without a value
+		assertEquals("A C", params.get("q"));
+		assertTrue(MotifServer.parse(null).isEmpty());
+	}
+}